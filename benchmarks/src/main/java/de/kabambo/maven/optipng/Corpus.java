@@ -0,0 +1,233 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Generates reproducible PNG images resembling those found in web
+ * projects: small icons, sprite sheets and photos.
+ */
+final class Corpus {
+    /**
+     * Kind and size of generated images.
+     */
+    enum SizeClass {
+        /**
+         * Small anti-aliased icon with alpha channel.
+         */
+        ICON(32, 32),
+
+        /**
+         * Sheet of flat-colored shapes on a transparent background.
+         */
+        SPRITE(512, 512),
+
+        /**
+         * Noisy gradient without alpha channel, compressing poorly.
+         */
+        PHOTO(1024, 768);
+
+        /**
+         * Width in pixels.
+         */
+        private final int width;
+
+        /**
+         * Height in pixels.
+         */
+        private final int height;
+
+        /**
+         * Creates a size class.
+         *
+         * @param width width in pixels
+         * @param height height in pixels
+         */
+        SizeClass(final int width, final int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Size of a sprite tile in pixels.
+     */
+    private static final int TILE_SIZE = 32;
+
+    /**
+     * Maximum deviation of photo pixels from their gradient.
+     */
+    private static final int NOISE = 24;
+
+    /**
+     * Not instantiable.
+     */
+    private Corpus() {
+    }
+
+    /**
+     * Generates images into a directory. Images of the same size class,
+     * index and seed are identical across runs.
+     *
+     * @param directory directory to write to, created if missing
+     * @param sizeClass kind of images
+     * @param count number of images
+     * @param seed seed for random content
+     * @return generated images
+     * @throws IOException in case writing failed
+     */
+    static List<File> generate(final File directory,
+            final SizeClass sizeClass, final int count, final long seed)
+            throws IOException {
+        Files.createDirectories(directory.toPath());
+        final List<File> images = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++) {
+            final Random random = new Random(seed * 31 + i);
+            final File image = new File(directory, String.format("%s-%04d.png",
+                sizeClass.name().toLowerCase(), i));
+            ImageIO.write(render(sizeClass, random), "png", image);
+            images.add(image);
+        }
+        return images;
+    }
+
+    /**
+     * Deletes a directory with all its contents.
+     *
+     * @param directory directory to delete
+     * @throws IOException in case deleting failed
+     */
+    static void delete(final File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file,
+                    final BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir,
+                    final IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Renders an image.
+     *
+     * @param sizeClass kind of image
+     * @param random source of random content
+     * @return image
+     */
+    private static BufferedImage render(final SizeClass sizeClass,
+            final Random random) {
+        final int width = sizeClass.width;
+        final int height = sizeClass.height;
+        if (sizeClass == SizeClass.PHOTO) {
+            final BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+            final float[] hsb = {random.nextFloat(), 0.6f, 0.8f};
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    final int base = Color.HSBtoRGB(hsb[0] + x / (4f * width),
+                        hsb[1], hsb[2] * (0.5f + y / (2f * height)));
+                    image.setRGB(x, y, addNoise(base, random));
+                }
+            }
+            return image;
+        }
+
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+            if (sizeClass == SizeClass.ICON) {
+                graphics.setPaint(new GradientPaint(0, 0, randomColor(random),
+                    width, height, randomColor(random)));
+                graphics.fillOval(2, 2, width - 4, height - 4);
+            } else {
+                for (int y = 0; y < height; y += TILE_SIZE) {
+                    for (int x = 0; x < width; x += TILE_SIZE) {
+                        graphics.setColor(randomColor(random));
+                        if (random.nextBoolean()) {
+                            graphics.fillRect(x + 4, y + 4, TILE_SIZE - 8,
+                                TILE_SIZE - 8);
+                        } else {
+                            graphics.fillOval(x + 2, y + 2, TILE_SIZE - 4,
+                                TILE_SIZE - 4);
+                        }
+                    }
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Picks a random opaque color.
+     *
+     * @param random source of randomness
+     * @return color
+     */
+    private static Color randomColor(final Random random) {
+        return new Color(random.nextInt(256), random.nextInt(256),
+            random.nextInt(256));
+    }
+
+    /**
+     * Adds random noise to each channel of a pixel.
+     *
+     * @param rgb pixel
+     * @param random source of randomness
+     * @return noisy pixel
+     */
+    private static int addNoise(final int rgb, final Random random) {
+        int result = 0;
+        for (int shift = 0; shift < 24; shift += 8) {
+            final int channel = (rgb >> shift & 0xff)
+                + random.nextInt(2 * NOISE + 1) - NOISE;
+            result |= Math.max(0, Math.min(255, channel)) << shift;
+        }
+        return result;
+    }
+}
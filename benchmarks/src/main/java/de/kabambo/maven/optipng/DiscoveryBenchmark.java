@@ -0,0 +1,121 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures searching a directory tree of icons for images to optimize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiscoveryBenchmark {
+    /**
+     * Number of directories in the tree.
+     */
+    private static final int DIRECTORIES = 20;
+
+    /**
+     * Number of images per directory.
+     */
+    private static final int IMAGES_PER_DIRECTORY = 100;
+
+    /**
+     * Whether to apply exclude patterns, half of which prune directories.
+     */
+    @Param({"false", "true"})
+    public boolean excluding;
+
+    /**
+     * Root of the generated tree.
+     */
+    private File root;
+
+    /**
+     * Scanner under test.
+     */
+    private ImageScanner scanner;
+
+    /**
+     * Generates the tree.
+     *
+     * @throws IOException in case generating failed
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("optipng-discovery").toFile();
+        for (int i = 0; i < DIRECTORIES; i++) {
+            Corpus.generate(new File(root, "dir" + i + "/icons"),
+                Corpus.SizeClass.ICON, IMAGES_PER_DIRECTORY, i);
+        }
+
+        final List<String> excludes = excluding ? Arrays.asList("dir1*/**",
+            "**/icon-00*.png") : Collections.<String>emptyList();
+        scanner = new ImageScanner(null, excludes, false, new QuietLog());
+    }
+
+    /**
+     * Deletes the tree.
+     *
+     * @throws IOException in case deleting failed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Corpus.delete(root);
+    }
+
+    /**
+     * Searches the tree.
+     *
+     * @return number of images found
+     * @throws IOException in case searching failed
+     */
+    @Benchmark
+    public int scan() throws IOException {
+        final int[] found = new int[1];
+        scanner.scan(root, new ImageScanner.Listener() {
+            @Override
+            public void imageFound(final File directory, final File image) {
+                found[0]++;
+            }
+        });
+        return found[0];
+    }
+}
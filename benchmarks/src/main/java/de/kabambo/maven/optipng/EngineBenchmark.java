@@ -0,0 +1,194 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a single engine optimizing a batch of images of one size class.
+ * For the optipng engine this is the cost of spawning the stub and parsing
+ * its output, for the java engine the actual recompression.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EngineBenchmark {
+    /**
+     * Number of icons per batch, matching a typical batch size.
+     */
+    private static final int ICONS_PER_BATCH = 16;
+
+    /**
+     * Timeout per image, generous enough never to expire.
+     */
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Engine under test.
+     */
+    @Param({OptipngEngine.NAME, JavaPngEngine.NAME})
+    public String engine;
+
+    /**
+     * Kind of images to optimize.
+     */
+    @Param({"ICON", "SPRITE", "PHOTO"})
+    public String sizeClass;
+
+    /**
+     * Optimization level.
+     */
+    @Param({"2"})
+    public int level;
+
+    /**
+     * Iterations of optimal deflating by the java engine, zero for none.
+     */
+    @Param({"0"})
+    public int deflateIterations;
+
+    /**
+     * Megabytes of unfiltered image data above which the java engine
+     * streams images.
+     */
+    @Param({"64"})
+    public int streamingThreshold;
+
+    /**
+     * Megabytes of buffers and compressors the java engine keeps for reuse,
+     * zero to allocate afresh for every trial.
+     */
+    @Param({"0", "64"})
+    public int bufferPoolSize;
+
+    /**
+     * Directory of the generated images and working copies.
+     */
+    private File root;
+
+    /**
+     * Generated images.
+     */
+    private List<File> images;
+
+    /**
+     * Working copies of the images, refreshed before every invocation.
+     */
+    private final List<ImageJob> jobs = new ArrayList<ImageJob>();
+
+    /**
+     * Instance of the engine under test.
+     */
+    private OptimizationEngine optimizer;
+
+    /**
+     * Pool the java engine runs on, <code>null</code> for optipng.
+     */
+    private ForkJoinPool trialPool;
+
+    /**
+     * Generates the images and creates the engine.
+     *
+     * @throws IOException in case generating failed
+     * @throws MojoExecutionException if optipng is not the stub
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, MojoExecutionException {
+        root = Files.createTempDirectory("optipng-engine").toFile();
+        final Corpus.SizeClass kind = Corpus.SizeClass.valueOf(sizeClass);
+        images = Corpus.generate(new File(root, "images"), kind,
+            kind == Corpus.SizeClass.ICON ? ICONS_PER_BATCH : 1, 1);
+        if (OptipngEngine.NAME.equals(engine)) {
+            StubOptipng.verify();
+            optimizer = OptipngEngine.create(new QuietLog());
+        } else {
+            trialPool = new ForkJoinPool(1);
+            optimizer = new JavaPngEngine(trialPool, deflateIterations,
+                streamingThreshold * 1024L * 1024L,
+                bufferPoolSize * 1024L * 1024L, new QuietLog());
+        }
+    }
+
+    /**
+     * Replaces the working copies by the unoptimized images.
+     *
+     * @throws IOException in case copying failed
+     */
+    @Setup(Level.Invocation)
+    public void copyImages() throws IOException {
+        jobs.clear();
+        for (File image : images) {
+            final ImageJob job = new ImageJob(image, image);
+            final File copy = new File(root, image.getName());
+            Files.copy(image.toPath(), copy.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+            job.setWorkingCopy(copy);
+            job.setLevel(level);
+            job.setTimeout(TIMEOUT);
+            jobs.add(job);
+        }
+    }
+
+    /**
+     * Shuts the engine down and deletes all images.
+     *
+     * @throws IOException in case deleting failed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        optimizer.shutdown();
+        if (trialPool != null) {
+            trialPool.shutdownNow();
+        }
+        Corpus.delete(root);
+    }
+
+    /**
+     * Optimizes the working copies.
+     *
+     * @return optimized working copies
+     */
+    @Benchmark
+    public List<ImageJob> optimize() {
+        optimizer.optimize(jobs);
+        return jobs;
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a complete execution of {@link OptimizePngMojo} on a mixed
+ * corpus: discovery, scheduling, working copies, the engine and publishing
+ * the results. Images are written to an output directory, which is cleared
+ * before every invocation, so that sources stay unoptimized and nothing is
+ * skipped. Cache and manifest are disabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PipelineBenchmark {
+    /**
+     * Engine optimizing images.
+     */
+    @Param({OptipngEngine.NAME, JavaPngEngine.NAME})
+    public String engine;
+
+    /**
+     * Maximum number of images per batch.
+     */
+    @Param({"1", "16"})
+    public int batchSize;
+
+    /**
+     * Number of worker threads.
+     */
+    @Param({"1C"})
+    public String threads;
+
+    /**
+     * Optimization level.
+     */
+    @Param({"1"})
+    public int level;
+
+    /**
+     * Megabytes of unfiltered image data above which the java engine
+     * streams images, as the mojo's default.
+     */
+    @Param({"64"})
+    public int streamingThreshold;
+
+    /**
+     * Megabytes of buffers and compressors the java engine keeps for reuse,
+     * as the mojo's default.
+     */
+    @Param({"64"})
+    public int bufferPoolSize;
+
+    /**
+     * Directory of sources, output and working copies.
+     */
+    private File root;
+
+    /**
+     * Directory of the generated corpus.
+     */
+    private File sources;
+
+    /**
+     * Directory of the optimized images.
+     */
+    private File output;
+
+    /**
+     * Generates a corpus of icons in several directories, sprites and
+     * photos.
+     *
+     * @throws IOException in case generating failed
+     * @throws MojoExecutionException if optipng is not the stub
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, MojoExecutionException {
+        if (OptipngEngine.NAME.equals(engine)) {
+            StubOptipng.verify();
+        }
+        root = Files.createTempDirectory("optipng-pipeline").toFile();
+        sources = new File(root, "src");
+        output = new File(root, "out");
+        for (int i = 0; i < 4; i++) {
+            Corpus.generate(new File(sources, "icons/set" + i),
+                Corpus.SizeClass.ICON, 50, i);
+        }
+        Corpus.generate(new File(sources, "sprites"),
+            Corpus.SizeClass.SPRITE, 10, 1);
+        Corpus.generate(new File(sources, "photos"), Corpus.SizeClass.PHOTO,
+            2, 1);
+    }
+
+    /**
+     * Clears the output of the previous invocation.
+     *
+     * @throws IOException in case deleting failed
+     */
+    @Setup(Level.Invocation)
+    public void clearOutput() throws IOException {
+        Corpus.delete(output);
+    }
+
+    /**
+     * Deletes all images.
+     *
+     * @throws IOException in case deleting failed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Corpus.delete(root);
+    }
+
+    /**
+     * Executes the mojo. Parameters are set by reflection, which does not
+     * apply their default values, so all parameters whose zero value
+     * differs from their default must be set here.
+     *
+     * @return executed mojo
+     * @throws Exception in case configuring or executing failed
+     */
+    @Benchmark
+    public OptimizePngMojo execute() throws Exception {
+        final OptimizePngMojo mojo = new OptimizePngMojo();
+        mojo.setLog(new QuietLog());
+        set(mojo, "pngDirectories",
+            Collections.singletonList(sources.getPath()));
+        set(mojo, "batchSize", batchSize);
+        set(mojo, "maxBatchBytes", Long.MAX_VALUE);
+        set(mojo, "level", level);
+        set(mojo, "engine", engine);
+        set(mojo, "streamingThreshold", streamingThreshold);
+        set(mojo, "bufferPoolSize", bufferPoolSize);
+        set(mojo, "threads", threads);
+        set(mojo, "hashThreads", threads);
+        set(mojo, "writeThreads", threads);
+        set(mojo, "queueCapacity", 512);
+        set(mojo, "timeout", 600);
+        set(mojo, "timeoutPerMegabyte", 0);
+        set(mojo, "outputDirectory", output);
+        set(mojo, "workDirectory", new File(root, "work"));
+        set(mojo, "useCache", false);
+        set(mojo, "deduplicate", true);
+        set(mojo, "incremental", false);
+        mojo.execute();
+        return mojo;
+    }
+
+    /**
+     * Sets a parameter of a mojo, as Maven would.
+     *
+     * @param mojo mojo to configure
+     * @param name name of the parameter
+     * @param value value to set
+     * @throws ReflectiveOperationException if there is no such parameter
+     */
+    private static void set(final OptimizePngMojo mojo, final String name,
+            final Object value) throws ReflectiveOperationException {
+        final Field field = OptimizePngMojo.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(mojo, value);
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Log discarding everything but errors, so that logging per image does not
+ * dominate measurements.
+ */
+final class QuietLog implements Log {
+    @Override
+    public boolean isDebugEnabled() {
+        return false;
+    }
+
+    @Override
+    public void debug(final CharSequence content) {
+    }
+
+    @Override
+    public void debug(final CharSequence content, final Throwable error) {
+    }
+
+    @Override
+    public void debug(final Throwable error) {
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return false;
+    }
+
+    @Override
+    public void info(final CharSequence content) {
+    }
+
+    @Override
+    public void info(final CharSequence content, final Throwable error) {
+    }
+
+    @Override
+    public void info(final Throwable error) {
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return false;
+    }
+
+    @Override
+    public void warn(final CharSequence content) {
+    }
+
+    @Override
+    public void warn(final CharSequence content, final Throwable error) {
+    }
+
+    @Override
+    public void warn(final Throwable error) {
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return true;
+    }
+
+    @Override
+    public void error(final CharSequence content) {
+        System.err.println("[ERROR] " + content);
+    }
+
+    @Override
+    public void error(final CharSequence content, final Throwable error) {
+        error(content);
+        error.printStackTrace();
+    }
+
+    @Override
+    public void error(final Throwable error) {
+        error.printStackTrace();
+    }
+}
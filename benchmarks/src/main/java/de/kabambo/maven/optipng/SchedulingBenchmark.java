@@ -0,0 +1,101 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures estimating the cost of images, which the scheduler does for
+ * every image found before queuing it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SchedulingBenchmark {
+    /**
+     * Directory of the generated corpus.
+     */
+    private File root;
+
+    /**
+     * Images of the corpus.
+     */
+    private final List<File> images = new ArrayList<File>();
+
+    /**
+     * Estimator without history, reading image headers.
+     */
+    private CostEstimator estimator;
+
+    /**
+     * Generates a mixed corpus.
+     *
+     * @throws IOException in case generating failed
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("optipng-scheduling").toFile();
+        images.addAll(Corpus.generate(root, Corpus.SizeClass.ICON, 100, 1));
+        images.addAll(Corpus.generate(root, Corpus.SizeClass.SPRITE, 10, 2));
+        images.addAll(Corpus.generate(root, Corpus.SizeClass.PHOTO, 2, 3));
+        estimator = new CostEstimator(null);
+    }
+
+    /**
+     * Deletes the corpus.
+     *
+     * @throws IOException in case deleting failed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Corpus.delete(root);
+    }
+
+    /**
+     * Estimates the cost of every image of the corpus.
+     *
+     * @return total estimated cost
+     */
+    @Benchmark
+    public long estimate() {
+        long cost = 0;
+        for (File image : images) {
+            cost += estimator.estimate(image, 2);
+        }
+        return cost;
+    }
+}
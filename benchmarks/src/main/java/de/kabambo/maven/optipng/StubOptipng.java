@@ -0,0 +1,56 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Guards benchmarks spawning optipng against measuring a real installation,
+ * whose run time depends on its version and the images rather than on the
+ * plugin.
+ */
+final class StubOptipng {
+    /**
+     * Suffix of the version reported by the stub.
+     */
+    private static final String STUB_VERSION_SUFFIX = "-stub";
+
+    /**
+     * Not instantiable.
+     */
+    private StubOptipng() {
+    }
+
+    /**
+     * Verifies that <code>optipng</code> on the path is the stub shipped
+     * in <code>src/main/stub</code>.
+     *
+     * @throws MojoExecutionException if optipng is missing
+     * @throws IllegalStateException if optipng is not the stub
+     */
+    static void verify() throws MojoExecutionException {
+        final OptipngEngine engine = OptipngEngine.create(new QuietLog());
+        try {
+            if (!engine.getIdentifier().endsWith(STUB_VERSION_SUFFIX)) {
+                throw new IllegalStateException("Expected the stub optipng "
+                    + "from src/main/stub on the PATH, found "
+                    + engine.getIdentifier());
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+}
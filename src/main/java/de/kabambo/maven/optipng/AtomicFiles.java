@@ -0,0 +1,108 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * File operations which never expose partially written files at their
+ * target location.
+ */
+final class AtomicFiles {
+    /**
+     * File extension of partially written files.
+     */
+    static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Utility class, not instantiable.
+     */
+    private AtomicFiles() {
+    }
+
+    /**
+     * Atomically replaces a file by a copy of another one. Missing parent
+     * directories of the target are created.
+     *
+     * @param source file to copy
+     * @param target file to replace
+     * @throws IOException in case copying failed
+     */
+    static void copy(final Path source, final Path target)
+            throws IOException {
+        Files.createDirectories(target.getParent());
+        final Path temp = Files.createTempFile(target.getParent(), null,
+            TEMP_SUFFIX);
+        try {
+            Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Atomically replaces a file by another one, which is removed. If both
+     * are on different file systems, the source is copied first. Missing
+     * parent directories of the target are created.
+     *
+     * @param source file to move
+     * @param target file to replace
+     * @throws IOException in case moving failed
+     */
+    static void move(final Path source, final Path target)
+            throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            copy(source, target);
+            Files.delete(source);
+        }
+    }
+
+    /**
+     * Atomically replaces a file by a hard link to another one, falling
+     * back to a copy if the file system does not support hard links between
+     * both. Missing parent directories of the target are created.
+     *
+     * @param existing file to link to
+     * @param target file to replace
+     * @throws IOException in case linking and copying failed
+     */
+    static void link(final Path existing, final Path target)
+            throws IOException {
+        Files.createDirectories(target.getParent());
+        final Path temp = target.resolveSibling(target.getFileName() + "."
+            + UUID.randomUUID() + TEMP_SUFFIX);
+        try {
+            Files.createLink(temp, existing);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            copy(existing, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
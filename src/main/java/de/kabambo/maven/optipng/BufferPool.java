@@ -0,0 +1,303 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of buffers and zlib compressors reused across trials and images, so
+ * that recompressing many images in-process does not churn large
+ * allocations. Buffers are pooled by power of two size classes and have at
+ * least the requested length. Idle buffers and compressors, whose native
+ * state is accounted at an estimate, are retained up to a capacity; beyond
+ * it, released ones are left to the garbage collector. Rows, which only
+ * live within a single synchronous loop, are instead kept per thread with
+ * their exact length.
+ */
+final class BufferPool {
+    /**
+     * Smallest size class in bytes.
+     */
+    private static final int MIN_SIZE = 4096;
+
+    /**
+     * Largest size class as a power of two.
+     */
+    private static final int MAX_CLASS = 30;
+
+    /**
+     * Estimated native memory of a deflater, mostly its window and hash
+     * tables at the default memory level.
+     */
+    private static final long DEFLATER_SIZE = 256 * 1024;
+
+    /**
+     * Estimated native memory of an inflater, mostly its window.
+     */
+    private static final long INFLATER_SIZE = 40 * 1024;
+
+    /**
+     * Maximum size of idle buffers and compressors in bytes.
+     */
+    private final long capacity;
+
+    /**
+     * Idle buffers per size class.
+     */
+    private final List<Deque<byte[]>> buffers;
+
+    /**
+     * Idle deflaters.
+     */
+    private final Deque<Deflater> deflaters = new ArrayDeque<Deflater>();
+
+    /**
+     * Idle inflaters.
+     */
+    private final Deque<Inflater> inflaters = new ArrayDeque<Inflater>();
+
+    /**
+     * Size of idle buffers and compressors in bytes.
+     */
+    private long retained;
+
+    /**
+     * Number of requests served from the pool.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of requests requiring an allocation.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Rows of the current thread.
+     */
+    private final ThreadLocal<byte[][]> rows = new ThreadLocal<byte[][]>();
+
+    /**
+     * Creates a pool.
+     *
+     * @param capacity maximum size of idle buffers and compressors in bytes
+     */
+    BufferPool(final long capacity) {
+        this.capacity = capacity;
+        this.buffers = new ArrayList<Deque<byte[]>>(MAX_CLASS + 1);
+        for (int i = 0; i <= MAX_CLASS; i++) {
+            buffers.add(new ArrayDeque<byte[]>());
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool or allocates one.
+     *
+     * @param size minimum length
+     * @return buffer of at least the given length, with arbitrary content
+     */
+    byte[] acquire(final int size) {
+        final int sizeClass = sizeClass(size);
+        if (sizeClass > MAX_CLASS) {
+            misses.incrementAndGet();
+            return new byte[size];
+        }
+        synchronized (this) {
+            final byte[] buffer = buffers.get(sizeClass).poll();
+            if (buffer != null) {
+                retained -= buffer.length;
+                hits.incrementAndGet();
+                return buffer;
+            }
+        }
+        misses.incrementAndGet();
+        return new byte[1 << sizeClass];
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buffer buffer obtained from {@link #acquire(int)}, no longer
+     *        used by the caller
+     */
+    void release(final byte[] buffer) {
+        final int sizeClass = sizeClass(buffer.length);
+        if (sizeClass > MAX_CLASS || buffer.length != 1 << sizeClass) {
+            return;
+        }
+        synchronized (this) {
+            if (retained + buffer.length <= capacity) {
+                buffers.get(sizeClass).push(buffer);
+                retained += buffer.length;
+            }
+        }
+    }
+
+    /**
+     * Takes a deflater from the pool or creates one.
+     *
+     * @param level deflate level
+     * @param strategy deflate strategy
+     * @return reset deflater with the given settings
+     */
+    Deflater acquireDeflater(final int level, final int strategy) {
+        Deflater deflater;
+        synchronized (this) {
+            deflater = deflaters.poll();
+            if (deflater != null) {
+                retained -= DEFLATER_SIZE;
+            }
+        }
+        if (deflater == null) {
+            misses.incrementAndGet();
+            deflater = new Deflater(level);
+        } else {
+            hits.incrementAndGet();
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+        deflater.setStrategy(strategy);
+        return deflater;
+    }
+
+    /**
+     * Returns a deflater to the pool, or ends it if the pool is full.
+     *
+     * @param deflater deflater no longer used by the caller
+     */
+    void release(final Deflater deflater) {
+        synchronized (this) {
+            if (retained + DEFLATER_SIZE <= capacity) {
+                deflaters.push(deflater);
+                retained += DEFLATER_SIZE;
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * Takes an inflater from the pool or creates one.
+     *
+     * @return reset inflater
+     */
+    Inflater acquireInflater() {
+        Inflater inflater;
+        synchronized (this) {
+            inflater = inflaters.poll();
+            if (inflater != null) {
+                retained -= INFLATER_SIZE;
+            }
+        }
+        if (inflater == null) {
+            misses.incrementAndGet();
+            return new Inflater();
+        }
+        hits.incrementAndGet();
+        inflater.reset();
+        return inflater;
+    }
+
+    /**
+     * Returns an inflater to the pool, or ends it if the pool is full.
+     *
+     * @param inflater inflater no longer used by the caller
+     */
+    void release(final Inflater inflater) {
+        synchronized (this) {
+            if (retained + INFLATER_SIZE <= capacity) {
+                inflaters.push(inflater);
+                retained += INFLATER_SIZE;
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    /**
+     * Returns rows of the current thread, to be used only until the thread
+     * requests rows again. Rows are zeroed when reused.
+     *
+     * @param count number of rows
+     * @param length length of each row
+     * @return array whose first rows have exactly the given length
+     */
+    byte[][] rows(final int count, final int length) {
+        byte[][] current = rows.get();
+        if (current == null || current.length < count) {
+            current = new byte[count][];
+            rows.set(current);
+        }
+        for (int i = 0; i < count; i++) {
+            if (current[i] == null || current[i].length != length) {
+                current[i] = new byte[length];
+            } else {
+                Arrays.fill(current[i], (byte) 0);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Ends all idle compressors and drops all idle buffers.
+     */
+    synchronized void clear() {
+        for (Deflater deflater : deflaters) {
+            deflater.end();
+        }
+        for (Inflater inflater : inflaters) {
+            inflater.end();
+        }
+        deflaters.clear();
+        inflaters.clear();
+        for (Deque<byte[]> sizeClass : buffers) {
+            sizeClass.clear();
+        }
+        retained = 0;
+    }
+
+    /**
+     * @return number of requests served from the pool
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests requiring an allocation
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Determines the size class of a length.
+     *
+     * @param size length
+     * @return binary logarithm of the smallest power of two, at least
+     *         {@link #MIN_SIZE}, not smaller than the length
+     */
+    private static int sizeClass(final int size) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(size, MIN_SIZE)
+            - 1);
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the state of images after their last optimization, so that
+ * unchanged images can be skipped by comparing file metadata only.
+ *
+ * <p>The manifest is a text file containing one tab separated line per image
+ * with its size, modification time, the level it was optimized with, the
+ * time its optimization took, its content digest, the engine and settings it
+ * was optimized with and its path. Images optimized with other settings,
+ * e.g. before chunks were configured to be stripped, are out of date.</p>
+ */
+class BuildManifest {
+    /**
+     * First line of a manifest, identifying its format.
+     */
+    private static final String HEADER = "# optipng-manifest 3";
+
+    /**
+     * Separator between the fields of an entry.
+     */
+    private static final char SEPARATOR = '\t';
+
+    /**
+     * Number of fields per entry.
+     */
+    private static final int FIELDS = 7;
+
+    /**
+     * Duration recorded if unknown.
+     */
+    static final long UNKNOWN_DURATION = -1;
+
+    /**
+     * File the manifest is stored in.
+     */
+    private final File file;
+
+    /**
+     * Identifier of the engine and settings of this run.
+     */
+    private final String settings;
+
+    /**
+     * Entries read from the previous run, by path.
+     */
+    private final Map<String, Entry> previous;
+
+    /**
+     * Entries valid after this run, by path.
+     */
+    private final Map<String, Entry> current =
+        new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * State of a single image.
+     */
+    private static final class Entry {
+        /**
+         * Size in bytes.
+         */
+        private final long size;
+
+        /**
+         * Modification time in milliseconds.
+         */
+        private final long lastModified;
+
+        /**
+         * Content digest.
+         */
+        private final String digest;
+
+        /**
+         * Optimization level.
+         */
+        private final int level;
+
+        /**
+         * Duration of the optimization in milliseconds.
+         */
+        private final long duration;
+
+        /**
+         * Identifier of the engine and settings.
+         */
+        private final String settings;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param size size in bytes
+         * @param lastModified modification time in milliseconds
+         * @param digest content digest
+         * @param level optimization level
+         * @param duration duration of the optimization in milliseconds
+         * @param settings identifier of the engine and settings
+         */
+        Entry(final long size, final long lastModified, final String digest,
+                final int level, final long duration, final String settings) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.level = level;
+            this.duration = duration;
+            this.settings = settings;
+        }
+    }
+
+    /**
+     * Creates a manifest.
+     *
+     * @param file file the manifest is stored in
+     * @param settings identifier of the engine and settings of this run
+     * @param previous entries of the previous run
+     */
+    private BuildManifest(final File file, final String settings,
+            final Map<String, Entry> previous) {
+        this.file = file;
+        this.settings = settings;
+        this.previous = previous;
+    }
+
+    /**
+     * Loads a manifest. A missing or unreadable manifest yields an empty
+     * one, causing all images to be optimized.
+     *
+     * @param file file the manifest is stored in
+     * @param settings identifier of the engine and of the settings affecting
+     *        its results in this run, without tabs
+     * @return loaded manifest
+     */
+    static BuildManifest load(final File file, final String settings) {
+        final Map<String, Entry> entries = new ConcurrentHashMap<String,
+            Entry>();
+        if (file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+                    StandardCharsets.UTF_8)) {
+                if (HEADER.equals(reader.readLine())) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        final String[] fields = line.split(String.valueOf(
+                            SEPARATOR), FIELDS);
+                        if (fields.length == FIELDS) {
+                            entries.put(fields[6], new Entry(
+                                Long.parseLong(fields[0]),
+                                Long.parseLong(fields[1]), fields[4],
+                                Integer.parseInt(fields[2]),
+                                Long.parseLong(fields[3]), fields[5]));
+                        }
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                entries.clear();
+            }
+        }
+        return new BuildManifest(file, settings, entries);
+    }
+
+    /**
+     * Checks whether an image is unchanged since it was optimized with at
+     * least the given level and the settings of this run. Size and
+     * modification time are compared first; only if merely the modification
+     * time differs, e.g. after a fresh checkout, the content digest is
+     * compared.
+     *
+     * @param image image to check
+     * @param level requested optimization level
+     * @return <code>true</code> if the image can be skipped
+     */
+    boolean isUpToDate(final File image, final int level) {
+        final String path = image.getAbsolutePath();
+        final Entry entry = previous.get(path);
+        if (entry == null || entry.level < level
+                || !entry.settings.equals(settings)) {
+            return false;
+        }
+
+        final long size = image.length();
+        final long lastModified = image.lastModified();
+        if (entry.size != size) {
+            return false;
+        }
+
+        if (entry.lastModified != lastModified) {
+            try {
+                if (!entry.digest.equals(Digests.digest(image))) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        current.put(path, new Entry(size, lastModified, entry.digest,
+            entry.level, entry.duration, entry.settings));
+        return true;
+    }
+
+    /**
+     * Looks up how long the last optimization of an image took, regardless
+     * of whether it changed since.
+     *
+     * @param image image to look up
+     * @return duration in milliseconds, {@link #UNKNOWN_DURATION} if unknown
+     */
+    long getDuration(final File image) {
+        final Entry entry = previous.get(image.getAbsolutePath());
+        return entry == null ? UNKNOWN_DURATION : entry.duration;
+    }
+
+    /**
+     * Looks up the level an image was last optimized with, regardless of
+     * whether it changed since.
+     *
+     * @param image image to look up
+     * @return optimization level, zero if unknown
+     */
+    int getLevel(final File image) {
+        final Entry entry = previous.get(image.getAbsolutePath());
+        return entry == null ? 0 : entry.level;
+    }
+
+    /**
+     * Records the state of an image after its optimization with the
+     * settings of this run.
+     *
+     * @param image optimized image
+     * @param digest content digest of the optimized image
+     * @param level level the image was optimized with
+     * @param duration duration of the optimization in milliseconds
+     */
+    void record(final File image, final String digest, final int level,
+            final long duration) {
+        current.put(image.getAbsolutePath(), new Entry(image.length(),
+            image.lastModified(), digest, level, duration, settings));
+    }
+
+    /**
+     * Writes all images checked or recorded during this run.
+     *
+     * @throws IOException in case writing the manifest failed
+     */
+    void save() throws IOException {
+        final Path target = file.toPath();
+        Files.createDirectories(target.getParent());
+        final Path temp = Files.createTempFile(target.getParent(), null,
+            AtomicFiles.TEMP_SUFFIX);
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp,
+                    StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Map.Entry<String, Entry> e : current.entrySet()) {
+                    final Entry entry = e.getValue();
+                    writer.append(String.valueOf(entry.size))
+                        .append(SEPARATOR)
+                        .append(String.valueOf(entry.lastModified))
+                        .append(SEPARATOR)
+                        .append(String.valueOf(entry.level))
+                        .append(SEPARATOR)
+                        .append(String.valueOf(entry.duration))
+                        .append(SEPARATOR).append(entry.digest)
+                        .append(SEPARATOR).append(entry.settings)
+                        .append(SEPARATOR).append(e.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
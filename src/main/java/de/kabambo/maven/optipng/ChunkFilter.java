@@ -0,0 +1,214 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies PNG files while dropping ancillary chunks of configured types.
+ * Only chunk headers are read; runs of kept chunks are transferred between
+ * the files by the operating system without passing through the heap, so
+ * filtering runs at about the speed of copying.
+ */
+class ChunkFilter {
+    /**
+     * Size of the chunk length and type.
+     */
+    private static final int CHUNK_HEADER_LENGTH = 8;
+
+    /**
+     * Size of the chunk CRC.
+     */
+    private static final int CRC_LENGTH = 4;
+
+    /**
+     * Transparency chunk, which cannot be dropped without changing pixels.
+     */
+    private static final String TRNS = "tRNS";
+
+    /**
+     * Types of chunks to drop.
+     */
+    private final Set<String> stripped;
+
+    /**
+     * Number of images which had chunks dropped.
+     */
+    private final AtomicInteger images = new AtomicInteger();
+
+    /**
+     * Number of bytes dropped from all images.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Creates a new filter.
+     *
+     * @param types types of chunks to drop
+     * @throws IllegalArgumentException if a type is not a four letter
+     *         ancillary chunk type or denotes the transparency chunk
+     */
+    ChunkFilter(final Collection<String> types) {
+        stripped = new HashSet<String>();
+        for (String type : types) {
+            final String trimmed = type.trim();
+            if (trimmed.length() != 4 || !new PngChunk(trimmed, new byte[0])
+                    .isAncillary() || TRNS.equals(trimmed)) {
+                throw new IllegalArgumentException(String.format(
+                    "Chunk type %s cannot be stripped", type));
+            }
+            stripped.add(trimmed);
+        }
+    }
+
+    /**
+     * Copies an image, dropping the configured chunks.
+     *
+     * @param source image to copy
+     * @param target file to write, replaced if existing
+     * @return number of bytes dropped
+     * @throws IOException in case copying failed or the image is not a PNG
+     *         file
+     */
+    long copy(final File source, final File target) throws IOException {
+        // recreate the target so that it gets default permissions, as
+        // with Files.copy()
+        Files.deleteIfExists(target.toPath());
+        try (FileChannel in = FileChannel.open(source.toPath(),
+                StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target.toPath(),
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE_NEW)) {
+            final ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_LENGTH);
+            readFully(in, header, 0);
+            if (!Arrays.equals(header.array(), PngFile.SIGNATURE)) {
+                throw new IOException("Not a PNG file");
+            }
+
+            final byte[] type = new byte[4];
+            long position = PngFile.SIGNATURE.length;
+            long kept = 0;
+            long dropped = 0;
+            String chunkType;
+            do {
+                header.clear();
+                readFully(in, header, position);
+                final long length = header.getInt(0) & 0xffffffffL;
+                header.position(4);
+                header.get(type);
+                chunkType = new String(type, StandardCharsets.US_ASCII);
+                final long chunkLength = CHUNK_HEADER_LENGTH + length
+                    + CRC_LENGTH;
+                if (position + chunkLength > in.size()) {
+                    throw new IOException("Truncated " + chunkType
+                        + " chunk");
+                }
+                if (stripped.contains(chunkType)) {
+                    transfer(in, kept, position - kept, out);
+                    kept = position + chunkLength;
+                    dropped += chunkLength;
+                }
+                position += chunkLength;
+            } while (!PngChunk.IEND.equals(chunkType));
+            transfer(in, kept, position - kept, out);
+
+            if (dropped > 0) {
+                images.incrementAndGet();
+                bytes.addAndGet(dropped);
+            }
+            return dropped;
+        }
+    }
+
+    /**
+     * Describes the configured chunk types, so that results of different
+     * configurations can be told apart.
+     *
+     * @return sorted chunk types
+     */
+    String getSettings() {
+        return new TreeSet<String>(stripped).toString();
+    }
+
+    /**
+     * @return number of images which had chunks dropped
+     */
+    int getImages() {
+        return images.get();
+    }
+
+    /**
+     * @return number of bytes dropped from all images
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Fills a buffer from a position of a channel.
+     *
+     * @param in channel to read
+     * @param buffer buffer to fill
+     * @param position position to read at
+     * @throws IOException in case the channel ends before
+     */
+    private static void readFully(final FileChannel in,
+            final ByteBuffer buffer, final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = in.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Transfers a range of a channel to the end of another.
+     *
+     * @param in channel to read
+     * @param position start of the range
+     * @param count length of the range
+     * @param out channel to append to
+     * @throws IOException in case transferring failed
+     */
+    private static void transfer(final FileChannel in, final long position,
+            final long count, final FileChannel out) throws IOException {
+        long done = 0;
+        while (done < count) {
+            final long transferred = in.transferTo(position + done,
+                count - done, out);
+            if (transferred <= 0 && position + done >= in.size()) {
+                throw new IOException("Unexpected end of file");
+            }
+            done += transferred;
+        }
+    }
+}
@@ -0,0 +1,722 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lossless reduction of the color type and bit depth of an image: dropping
+ * an alpha channel which is opaque throughout, storing gray RGB images as
+ * grayscale, images of at most 256 colors as palette images and samples in
+ * as few bits as their values allow. Pixels are analyzed as ARGB ints, with
+ * colors counted in a small open-addressing histogram which gives up beyond
+ * the size of a palette. An embedded ICC profile is specific to either gray
+ * or color images, so images carrying one keep that distinction.
+ */
+final class ColorReduction {
+    /**
+     * Maximum number of palette entries.
+     */
+    private static final int MAX_COLORS = 256;
+
+    /**
+     * Size of the histogram's hash table, a power of two well above
+     * {@link #MAX_COLORS}.
+     */
+    private static final int TABLE_SIZE = 1024;
+
+    /**
+     * Name of the palette chunk.
+     */
+    private static final String PLTE = "PLTE";
+
+    /**
+     * Name of the transparency chunk.
+     */
+    private static final String TRNS = "tRNS";
+
+    /**
+     * Name of the embedded ICC profile chunk.
+     */
+    private static final String ICCP = "iCCP";
+
+    /**
+     * Chunks whose content depends on the color type. Images containing them
+     * are not reduced.
+     */
+    private static final String[] COLOR_DEPENDENT = {"bKGD", "sBIT", "hIST",
+        "sPLT"};
+
+    /**
+     * Header of the reduced image.
+     */
+    private final ImageHeader header;
+
+    /**
+     * Unfiltered image data of the reduced image, laid out as by
+     * {@link JavaPngEngine#decode(ImageHeader, byte[], BufferPool)}.
+     */
+    private final byte[] raw;
+
+    /**
+     * Palette chunk of the reduced image, <code>null</code> if none.
+     */
+    private final PngChunk palette;
+
+    /**
+     * Transparency chunk of the reduced image, <code>null</code> if none.
+     */
+    private final PngChunk transparency;
+
+    /**
+     * Bytes by which the palette and transparency chunks of the reduced
+     * image exceed those of the original.
+     */
+    private final int overhead;
+
+    /**
+     * Creates a reduction.
+     *
+     * @param header header of the reduced image
+     * @param raw unfiltered image data of the reduced image
+     * @param palette palette chunk, may be <code>null</code>
+     * @param transparency transparency chunk, may be <code>null</code>
+     * @param overhead growth of palette and transparency chunks in bytes
+     */
+    private ColorReduction(final ImageHeader header, final byte[] raw,
+            final PngChunk palette, final PngChunk transparency,
+            final int overhead) {
+        this.header = header;
+        this.raw = raw;
+        this.palette = palette;
+        this.transparency = transparency;
+        this.overhead = overhead;
+    }
+
+    /**
+     * Analyzes an image and reduces it, if possible.
+     *
+     * @param png image
+     * @param original header of the image
+     * @param data unfiltered image data of the image
+     * @return reduction, <code>null</code> if the image cannot be reduced
+     * @throws IOException in case the image is malformed
+     */
+    static ColorReduction analyze(final PngFile png,
+            final ImageHeader original, final byte[] data) throws IOException {
+        for (String type : COLOR_DEPENDENT) {
+            if (png.getChunk(type) != null) {
+                return null;
+            }
+        }
+        if (original.getBitDepth() == 16 && !hasRedundantLowBytes(original,
+                data)) {
+            return null;
+        }
+
+        // a gray profile requires a grayscale image, a color one a color image
+        final boolean profiled = png.getChunk(ICCP) != null;
+        final boolean grayOriginal = original.getColorType()
+            == ImageHeader.GRAYSCALE || original.getColorType()
+            == ImageHeader.GRAYSCALE_ALPHA;
+
+        final int[] pixels = toArgb(png, original, data);
+        final Histogram histogram = new Histogram();
+        boolean opaque = true;
+        boolean gray = !profiled || grayOriginal;
+        int grayDepth = 1;
+        for (int pixel : pixels) {
+            final int alpha = pixel >>> 24;
+            final int red = pixel >>> 16 & 0xff;
+            opaque &= alpha == 0xff;
+            if (gray && (red != (pixel >>> 8 & 0xff)
+                    || red != (pixel & 0xff))) {
+                gray = false;
+            }
+            while (gray && grayDepth < 8
+                    && red % (0xff / ((1 << grayDepth) - 1)) != 0) {
+                grayDepth *= 2;
+            }
+            histogram.add(pixel);
+        }
+
+        int colorType;
+        int depth;
+        if (gray) {
+            colorType = opaque ? ImageHeader.GRAYSCALE
+                : ImageHeader.GRAYSCALE_ALPHA;
+            depth = opaque ? grayDepth : 8;
+        } else {
+            colorType = opaque ? ImageHeader.RGB : ImageHeader.RGBA;
+            depth = 8;
+        }
+        final ImageHeader direct = new ImageHeader(original.getWidth(),
+            original.getHeight(), depth, colorType, original.getInterlace());
+        if (histogram.size() <= MAX_COLORS && !(profiled && gray)) {
+            final int paletteDepth = paletteDepth(histogram.size());
+            if (paletteDepth < direct.getBitsPerPixel()) {
+                colorType = ImageHeader.PALETTE;
+                depth = paletteDepth;
+            }
+        }
+
+        final ImageHeader reduced = new ImageHeader(original.getWidth(),
+            original.getHeight(), depth, colorType, original.getInterlace());
+        if (reduced.getBitsPerPixel() >= original.getBitsPerPixel()) {
+            return null;
+        }
+
+        PngChunk paletteChunk = null;
+        PngChunk transparencyChunk = null;
+        if (colorType == ImageHeader.PALETTE) {
+            histogram.sortTransparentFirst();
+            final int[] colors = histogram.getColors();
+            final byte[] entries = new byte[colors.length * 3];
+            int transparent = 0;
+            for (int i = 0; i < colors.length; i++) {
+                entries[i * 3] = (byte) (colors[i] >>> 16);
+                entries[i * 3 + 1] = (byte) (colors[i] >>> 8);
+                entries[i * 3 + 2] = (byte) colors[i];
+                if (colors[i] >>> 24 != 0xff) {
+                    transparent = i + 1;
+                }
+            }
+            paletteChunk = new PngChunk(PLTE, entries);
+            if (transparent > 0) {
+                final byte[] alphas = new byte[transparent];
+                for (int i = 0; i < transparent; i++) {
+                    alphas[i] = (byte) (colors[i] >>> 24);
+                }
+                transparencyChunk = new PngChunk(TRNS, alphas);
+            }
+        }
+
+        final int overhead = size(paletteChunk) + size(transparencyChunk)
+            - size(png.getChunk(PLTE)) - size(png.getChunk(TRNS));
+        return new ColorReduction(reduced, encode(reduced, pixels,
+            histogram), paletteChunk, transparencyChunk, overhead);
+    }
+
+    /**
+     * @return header of the reduced image
+     */
+    ImageHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return unfiltered image data of the reduced image
+     */
+    byte[] getRaw() {
+        return raw;
+    }
+
+    /**
+     * @return bytes by which the palette and transparency chunks of the
+     *         reduced image exceed those of the original
+     */
+    int getOverhead() {
+        return overhead;
+    }
+
+    /**
+     * Creates the reduced image. Palette and transparency chunks are placed
+     * right before the image data.
+     *
+     * @param png original image
+     * @param imageData compressed image data of the reduced image
+     * @return reduced image
+     */
+    PngFile apply(final PngFile png, final byte[] imageData) {
+        final List<PngChunk> chunks = new ArrayList<PngChunk>();
+        boolean written = false;
+        for (PngChunk chunk : png.getChunks()) {
+            final String type = chunk.getType();
+            if (PngChunk.IHDR.equals(type)) {
+                chunks.add(header.toChunk());
+            } else if (PngChunk.IDAT.equals(type)) {
+                if (!written) {
+                    if (palette != null) {
+                        chunks.add(palette);
+                    }
+                    if (transparency != null) {
+                        chunks.add(transparency);
+                    }
+                    chunks.add(new PngChunk(PngChunk.IDAT, imageData));
+                    written = true;
+                }
+            } else if (!PLTE.equals(type) && !TRNS.equals(type)) {
+                chunks.add(chunk);
+            }
+        }
+        return new PngFile(chunks);
+    }
+
+    /**
+     * Checks whether all 16-bit samples have equal high and low bytes, so
+     * that they can be stored in 8 bits.
+     *
+     * @param original header of the image
+     * @param data unfiltered image data
+     * @return <code>true</code> if all samples are reducible
+     */
+    private static boolean hasRedundantLowBytes(final ImageHeader original,
+            final byte[] data) {
+        int offset = 0;
+        for (int[] pass : original.getPasses()) {
+            for (int y = 0; y < pass[1]; y++) {
+                for (int i = offset + 1; i < offset + 1 + pass[0]; i += 2) {
+                    if (data[i] != data[i + 1]) {
+                        return false;
+                    }
+                }
+                offset += pass[0] + 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the pixels of an image to ARGB ints in image order.
+     *
+     * @param png image
+     * @param original header of the image
+     * @param data unfiltered image data, samples of 16-bit images being
+     *        reducible to 8 bits
+     * @return pixels
+     * @throws IOException in case the image is malformed
+     */
+    private static int[] toArgb(final PngFile png, final ImageHeader original,
+            final byte[] data) throws IOException {
+        final int width = original.getWidth();
+        final long count = (long) width * original.getHeight();
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Image too large");
+        }
+
+        final int depth = original.getBitDepth();
+        final int channels = original.getChannels();
+        final int[] lookup = original.getColorType() == ImageHeader.PALETTE
+            ? paletteLookup(png) : null;
+        final int[] transparent = transparentSamples(png, original);
+        final int[] pixels = new int[(int) count];
+        final int[] samples = new int[4];
+        final boolean interlaced = original.getInterlace() != 0;
+        int offset = 0;
+        for (int pass = 0; pass < ImageHeader.ADAM7_ROW_STEP.length; pass++) {
+            final int columnStart = interlaced
+                ? ImageHeader.ADAM7_COLUMN_START[pass] : 0;
+            final int columnStep = interlaced
+                ? ImageHeader.ADAM7_COLUMN_STEP[pass] : 1;
+            final int rowStart = interlaced
+                ? ImageHeader.ADAM7_ROW_START[pass] : 0;
+            final int rowStep = interlaced ? ImageHeader.ADAM7_ROW_STEP[pass]
+                : 1;
+            final int columns = (width - columnStart + columnStep - 1)
+                / columnStep;
+            final int rows = (original.getHeight() - rowStart + rowStep - 1)
+                / rowStep;
+            if (columns <= 0 || rows <= 0) {
+                continue;
+            }
+
+            final int rowBytes = original.getRowBytes(columns);
+            for (int y = rowStart; y < original.getHeight(); y += rowStep) {
+                int bit = (offset + 1) * 8;
+                for (int x = columnStart; x < width; x += columnStep) {
+                    for (int c = 0; c < channels; c++) {
+                        samples[c] = PixelReader.sample(data, bit, depth);
+                        bit += depth;
+                    }
+                    pixels[y * width + x] = toArgb(original, samples,
+                        lookup, transparent);
+                }
+                offset += rowBytes + 1;
+            }
+            if (!interlaced) {
+                break;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Converts the samples of a pixel to an ARGB int.
+     *
+     * @param original header of the image
+     * @param samples samples of the pixel
+     * @param lookup ARGB color per palette index, <code>null</code> if not a
+     *        palette image
+     * @param transparent samples of the color marked transparent,
+     *        <code>null</code> if none
+     * @return pixel
+     * @throws IOException in case a palette index is out of range
+     */
+    private static int toArgb(final ImageHeader original, final int[] samples,
+            final int[] lookup, final int[] transparent) throws IOException {
+        final int depth = original.getBitDepth();
+        switch (original.getColorType()) {
+        case ImageHeader.PALETTE:
+            if (samples[0] >= lookup.length) {
+                throw new IOException("Palette index out of range");
+            }
+            return lookup[samples[0]];
+        case ImageHeader.GRAYSCALE:
+            final int gray = to8Bits(samples[0], depth);
+            return argb(matches(samples, transparent) ? 0 : 0xff, gray, gray,
+                gray);
+        case ImageHeader.GRAYSCALE_ALPHA:
+            final int value = to8Bits(samples[0], depth);
+            return argb(to8Bits(samples[1], depth), value, value, value);
+        case ImageHeader.RGB:
+            return argb(matches(samples, transparent) ? 0 : 0xff,
+                to8Bits(samples[0], depth), to8Bits(samples[1], depth),
+                to8Bits(samples[2], depth));
+        default:
+            return argb(to8Bits(samples[3], depth), to8Bits(samples[0], depth),
+                to8Bits(samples[1], depth), to8Bits(samples[2], depth));
+        }
+    }
+
+    /**
+     * Encodes pixels in the reduced layout.
+     *
+     * @param reduced header of the reduced image
+     * @param pixels pixels in image order
+     * @param histogram colors of the image, in palette order for palette
+     *        images
+     * @return unfiltered image data with zero filter bytes
+     */
+    private static byte[] encode(final ImageHeader reduced,
+            final int[] pixels, final Histogram histogram) {
+        final byte[] data = new byte[(int) reduced.getRawSize()];
+        final int width = reduced.getWidth();
+        final int depth = reduced.getBitDepth();
+        final boolean interlaced = reduced.getInterlace() != 0;
+        int offset = 0;
+        for (int pass = 0; pass < ImageHeader.ADAM7_ROW_STEP.length; pass++) {
+            final int columnStart = interlaced
+                ? ImageHeader.ADAM7_COLUMN_START[pass] : 0;
+            final int columnStep = interlaced
+                ? ImageHeader.ADAM7_COLUMN_STEP[pass] : 1;
+            final int rowStart = interlaced
+                ? ImageHeader.ADAM7_ROW_START[pass] : 0;
+            final int rowStep = interlaced ? ImageHeader.ADAM7_ROW_STEP[pass]
+                : 1;
+            final int columns = (width - columnStart + columnStep - 1)
+                / columnStep;
+            if (columns > 0) {
+                final int rowBytes = reduced.getRowBytes(columns);
+                for (int y = rowStart; y < reduced.getHeight();
+                        y += rowStep) {
+                    int bit = (offset + 1) * 8;
+                    for (int x = columnStart; x < width; x += columnStep) {
+                        bit = put(data, bit, depth, reduced,
+                            pixels[y * width + x], histogram);
+                    }
+                    offset += rowBytes + 1;
+                }
+            }
+            if (!interlaced) {
+                break;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Writes the samples of a pixel in the reduced layout.
+     *
+     * @param data image data to write to, zero where not yet written
+     * @param bit offset in bits to write at
+     * @param depth bits per sample
+     * @param reduced header of the reduced image
+     * @param pixel ARGB pixel
+     * @param histogram colors of the image in palette order
+     * @return offset in bits after the pixel
+     */
+    private static int put(final byte[] data, final int bit, final int depth,
+            final ImageHeader reduced, final int pixel,
+            final Histogram histogram) {
+        final int alpha = pixel >>> 24;
+        final int red = pixel >>> 16 & 0xff;
+        switch (reduced.getColorType()) {
+        case ImageHeader.PALETTE:
+            return putSample(data, bit, depth, histogram.indexOf(pixel));
+        case ImageHeader.GRAYSCALE:
+            return putSample(data, bit, depth,
+                red / (0xff / ((1 << depth) - 1)));
+        case ImageHeader.GRAYSCALE_ALPHA:
+            return putSample(data, putSample(data, bit, depth, red), depth,
+                alpha);
+        case ImageHeader.RGB:
+            int next = putSample(data, bit, depth, red);
+            next = putSample(data, next, depth, pixel >>> 8 & 0xff);
+            return putSample(data, next, depth, pixel & 0xff);
+        default:
+            int rest = putSample(data, bit, depth, red);
+            rest = putSample(data, rest, depth, pixel >>> 8 & 0xff);
+            rest = putSample(data, rest, depth, pixel & 0xff);
+            return putSample(data, rest, depth, alpha);
+        }
+    }
+
+    /**
+     * Writes a sample of at most 8 bits.
+     *
+     * @param data image data to write to, zero where not yet written
+     * @param bit offset in bits to write at
+     * @param depth bits per sample
+     * @param value sample
+     * @return offset in bits after the sample
+     */
+    private static int putSample(final byte[] data, final int bit,
+            final int depth, final int value) {
+        data[bit >>> 3] |= value << (8 - depth - (bit & 7));
+        return bit + depth;
+    }
+
+    /**
+     * Reads the palette of an image as ARGB ints, applying its transparency
+     * chunk.
+     *
+     * @param png palette image
+     * @return color per palette index
+     * @throws IOException in case the palette is missing or malformed
+     */
+    private static int[] paletteLookup(final PngFile png) throws IOException {
+        final PngChunk chunk = png.getChunk(PLTE);
+        if (chunk == null || chunk.getData().length % 3 != 0) {
+            throw new IOException("Missing or invalid " + PLTE + " chunk");
+        }
+        final byte[] entries = chunk.getData();
+        final PngChunk trns = png.getChunk(TRNS);
+        final byte[] alphas = trns == null ? new byte[0] : trns.getData();
+        final int[] lookup = new int[entries.length / 3];
+        for (int i = 0; i < lookup.length; i++) {
+            lookup[i] = argb(i < alphas.length ? alphas[i] & 0xff : 0xff,
+                entries[i * 3] & 0xff, entries[i * 3 + 1] & 0xff,
+                entries[i * 3 + 2] & 0xff);
+        }
+        return lookup;
+    }
+
+    /**
+     * Reads the color marked transparent in a grayscale or RGB image.
+     *
+     * @param png image
+     * @param original header of the image
+     * @return samples of the transparent color, <code>null</code> if none
+     * @throws IOException in case the transparency chunk is malformed
+     */
+    private static int[] transparentSamples(final PngFile png,
+            final ImageHeader original) throws IOException {
+        final PngChunk chunk = png.getChunk(TRNS);
+        final int colorType = original.getColorType();
+        if (chunk == null || colorType == ImageHeader.PALETTE) {
+            return null;
+        }
+        if ((colorType != ImageHeader.GRAYSCALE
+                && colorType != ImageHeader.RGB)
+                || chunk.getData().length != original.getChannels() * 2) {
+            throw new IOException("Invalid " + TRNS + " chunk");
+        }
+        final byte[] data = chunk.getData();
+        final int[] samples = new int[original.getChannels()];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (data[i * 2] & 0xff) << 8 | data[i * 2 + 1] & 0xff;
+        }
+        return samples;
+    }
+
+    /**
+     * Checks whether the samples of a pixel denote the transparent color.
+     *
+     * @param samples samples of the pixel
+     * @param transparent samples of the transparent color, may be
+     *        <code>null</code>
+     * @return <code>true</code> if the pixel is transparent
+     */
+    private static boolean matches(final int[] samples,
+            final int[] transparent) {
+        if (transparent == null) {
+            return false;
+        }
+        for (int i = 0; i < transparent.length; i++) {
+            if (samples[i] != transparent[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scales a sample to 8 bits. 16-bit samples are known to have equal
+     * high and low bytes.
+     *
+     * @param sample sample
+     * @param depth bits per sample
+     * @return scaled sample
+     */
+    private static int to8Bits(final int sample, final int depth) {
+        if (depth == 16) {
+            return sample >>> 8;
+        }
+        return sample * 0xff / ((1 << depth) - 1);
+    }
+
+    /**
+     * Packs a pixel.
+     *
+     * @param alpha alpha sample
+     * @param red red sample
+     * @param green green sample
+     * @param blue blue sample
+     * @return ARGB int
+     */
+    private static int argb(final int alpha, final int red, final int green,
+            final int blue) {
+        return alpha << 24 | red << 16 | green << 8 | blue;
+    }
+
+    /**
+     * Determines the bit depth of a palette image.
+     *
+     * @param colors number of colors
+     * @return smallest bit depth whose palette holds the colors
+     */
+    private static int paletteDepth(final int colors) {
+        int depth = 1;
+        while (1 << depth < colors) {
+            depth *= 2;
+        }
+        return depth;
+    }
+
+    /**
+     * Computes the size of a chunk in a file.
+     *
+     * @param chunk chunk, may be <code>null</code>
+     * @return size including length, type and CRC, zero if absent
+     */
+    private static int size(final PngChunk chunk) {
+        return chunk == null ? 0 : chunk.getData().length + 12;
+    }
+
+    /**
+     * The distinct colors of an image in order of appearance, counted up to
+     * one more than fits into a palette.
+     */
+    private static final class Histogram {
+        /**
+         * Colors, in order of appearance until sorted.
+         */
+        private final int[] colors = new int[MAX_COLORS + 1];
+
+        /**
+         * Hash table of colors, holding indexes into {@link #colors} plus
+         * one, zero for empty slots.
+         */
+        private final int[] table = new int[TABLE_SIZE];
+
+        /**
+         * Number of distinct colors, at most {@link #MAX_COLORS} plus one.
+         */
+        private int size;
+
+        /**
+         * Counts a color, unless the histogram is already full.
+         *
+         * @param color ARGB color
+         */
+        void add(final int color) {
+            if (size > MAX_COLORS) {
+                return;
+            }
+            final int slot = find(color);
+            if (table[slot] == 0) {
+                colors[size++] = color;
+                table[slot] = size;
+            }
+        }
+
+        /**
+         * @return number of distinct colors, capped at one more than fits
+         *         into a palette
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return distinct colors
+         */
+        int[] getColors() {
+            final int[] result = new int[size];
+            System.arraycopy(colors, 0, result, 0, size);
+            return result;
+        }
+
+        /**
+         * Determines the index of a color counted before.
+         *
+         * @param color ARGB color
+         * @return index of the color
+         */
+        int indexOf(final int color) {
+            return table[find(color)] - 1;
+        }
+
+        /**
+         * Reorders the colors so that all colors which are not fully opaque
+         * come first, keeping their order otherwise. This keeps the
+         * transparency chunk of a palette image short.
+         */
+        void sortTransparentFirst() {
+            final int[] sorted = new int[size];
+            int next = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < size; i++) {
+                    if ((colors[i] >>> 24 == 0xff) == (pass == 1)) {
+                        sorted[next++] = colors[i];
+                    }
+                }
+            }
+            System.arraycopy(sorted, 0, colors, 0, size);
+            Arrays.fill(table, 0);
+            for (int i = 0; i < size; i++) {
+                table[find(colors[i])] = i + 1;
+            }
+        }
+
+        /**
+         * Finds the slot of a color by linear probing.
+         *
+         * @param color ARGB color
+         * @return slot holding the color or the empty slot to put it into
+         */
+        private int find(final int color) {
+            int slot = (color * 0x9e3779b9) >>> 22;
+            while (table[slot] != 0 && colors[table[slot] - 1] != color) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            return slot;
+        }
+    }
+}
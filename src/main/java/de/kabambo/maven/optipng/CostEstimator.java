@@ -0,0 +1,120 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Estimates how long optimizing an image takes, so that the most expensive
+ * images can be started first. The duration recorded in the manifest by a
+ * previous run is preferred; otherwise the estimate is derived from the
+ * pixel count read from the image header and the optimization level.
+ */
+class CostEstimator {
+    /**
+     * Estimated milliseconds per pixel and level.
+     */
+    private static final double MILLIS_PER_PIXEL = 0.0005;
+
+    /**
+     * Estimated pixels per byte if the header cannot be read.
+     */
+    private static final int PIXELS_PER_BYTE = 4;
+
+    /**
+     * Manifest of the previous run, <code>null</code> if unavailable.
+     */
+    private final BuildManifest manifest;
+
+    /**
+     * Creates a new estimator.
+     *
+     * @param manifest manifest of the previous run, may be <code>null</code>
+     */
+    CostEstimator(final BuildManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Estimates the cost of optimizing an image at a level. A duration
+     * recorded at another level is scaled to the requested one.
+     *
+     * @param image image to optimize
+     * @param level level chosen for the image
+     * @return estimated duration in milliseconds
+     */
+    long estimate(final File image, final int level) {
+        if (manifest != null) {
+            final long duration = manifest.getDuration(image);
+            if (duration != BuildManifest.UNKNOWN_DURATION) {
+                return scale(duration, manifest.getLevel(image), level);
+            }
+        }
+
+        long pixels;
+        try {
+            pixels = readPixelCount(image);
+        } catch (IOException e) {
+            pixels = image.length() * PIXELS_PER_BYTE;
+        }
+        return (long) (pixels * (level + 1) * MILLIS_PER_PIXEL);
+    }
+
+    /**
+     * Scales an estimated cost to another level, assuming that it grows
+     * linearly with the level plus one.
+     *
+     * @param cost estimated cost in milliseconds
+     * @param from level of the estimate
+     * @param to level to scale to, {@link TimeBudget#DEFER} for no cost at
+     *        all
+     * @return estimated cost in milliseconds at the other level
+     */
+    static long scale(final long cost, final int from, final int to) {
+        return cost * (to + 1) / (from + 1);
+    }
+
+    /**
+     * Reads the dimensions from the image header without reading the rest
+     * of the file.
+     *
+     * @param image image to read
+     * @return number of pixels
+     * @throws IOException in case the file is not a PNG image
+     */
+    private static long readPixelCount(final File image) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new FileInputStream(image))) {
+            final byte[] signature = new byte[PngFile.SIGNATURE.length];
+            in.readFully(signature);
+            final int length = in.readInt();
+            final byte[] type = new byte[4];
+            in.readFully(type);
+            if (!Arrays.equals(signature, PngFile.SIGNATURE)
+                    || length != ImageHeader.LENGTH
+                    || !PngChunk.IHDR.equals(new String(type,
+                        StandardCharsets.US_ASCII))) {
+                throw new IOException("Not a PNG file");
+            }
+            return (in.readInt() & 0xffffffffL) * (in.readInt() & 0xffffffffL);
+        }
+    }
+}
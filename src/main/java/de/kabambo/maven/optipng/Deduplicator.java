@@ -0,0 +1,160 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups images by content digest, so that only the first image of each
+ * group is optimized and its result is reused for all others.
+ */
+class Deduplicator {
+    /**
+     * Role of an image within its group.
+     */
+    enum Role {
+        /**
+         * First image of its group, to be optimized.
+         */
+        LEADER,
+
+        /**
+         * Duplicate of a leader still being optimized, which hands its
+         * result over on completion.
+         */
+        FOLLOWER,
+
+        /**
+         * Duplicate of a leader which has already completed.
+         */
+        LATE_FOLLOWER
+    }
+
+    /**
+     * Images sharing the same content.
+     */
+    private static final class Group {
+        /**
+         * Image being optimized.
+         */
+        private final ImageJob leader;
+
+        /**
+         * Duplicates waiting for the leader.
+         */
+        private final List<ImageJob> followers = new ArrayList<ImageJob>();
+
+        /**
+         * Whether the leader has completed.
+         */
+        private boolean completed;
+
+        /**
+         * Creates a group.
+         *
+         * @param leader image being optimized
+         */
+        Group(final ImageJob leader) {
+            this.leader = leader;
+        }
+    }
+
+    /**
+     * Groups by content digest.
+     */
+    private final Map<String, Group> groups = new HashMap<String, Group>();
+
+    /**
+     * Number of duplicates which were not optimized themselves.
+     */
+    private final AtomicInteger duplicates = new AtomicInteger();
+
+    /**
+     * Total size of those duplicates.
+     */
+    private final AtomicLong duplicateBytes = new AtomicLong();
+
+    /**
+     * Assigns an image to the group of its content.
+     *
+     * @param job image with computed digest
+     * @return role of the image
+     */
+    synchronized Role claim(final ImageJob job) {
+        final Group group = groups.get(job.getDigest());
+        if (group == null) {
+            groups.put(job.getDigest(), new Group(job));
+            return Role.LEADER;
+        }
+
+        duplicates.incrementAndGet();
+        duplicateBytes.addAndGet(job.getOriginalSize());
+        if (group.completed) {
+            return Role.LATE_FOLLOWER;
+        }
+        group.followers.add(job);
+        return Role.FOLLOWER;
+    }
+
+    /**
+     * Marks a leader as completed.
+     *
+     * @param leader leader which completed
+     * @return duplicates which registered while the leader was optimized
+     */
+    synchronized List<ImageJob> complete(final ImageJob leader) {
+        final Group group = groups.get(leader.getDigest());
+        if (group == null || group.leader != leader) {
+            return Collections.emptyList();
+        }
+        group.completed = true;
+        final List<ImageJob> followers = new ArrayList<ImageJob>(
+            group.followers);
+        group.followers.clear();
+        return followers;
+    }
+
+    /**
+     * Looks up the leader of an image's group.
+     *
+     * @param job image with computed digest
+     * @return leader, <code>null</code> if the image is not grouped
+     */
+    synchronized ImageJob getLeader(final ImageJob job) {
+        final Group group = groups.get(job.getDigest());
+        return group == null ? null : group.leader;
+    }
+
+    /**
+     * @return number of duplicates which were not optimized themselves
+     */
+    int getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return total size of those duplicates in bytes
+     */
+    long getDuplicateBytes() {
+        return duplicateBytes.get();
+    }
+}
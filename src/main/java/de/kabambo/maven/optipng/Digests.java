@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes content digests of images.
+ */
+final class Digests {
+    /**
+     * Digest algorithm used for fingerprinting content.
+     */
+    private static final String ALGORITHM = "SHA-1";
+
+    /**
+     * Size of the buffer used for reading files.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Characters used for hex encoding.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Utility class, not instantiable.
+     */
+    private Digests() {
+    }
+
+    /**
+     * Computes the digest of a file's content.
+     *
+     * @param file file to digest
+     * @return hex encoded digest
+     * @throws IOException in case reading the file failed
+     */
+    static String digest(final File file) throws IOException {
+        final MessageDigest md = newDigest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Computes the digest of a string.
+     *
+     * @param value string to digest
+     * @return hex encoded digest
+     */
+    static String digest(final String value) {
+        return toHex(newDigest().digest(value.getBytes(
+            StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Creates a new message digest instance.
+     *
+     * @return message digest
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM
+                + " is required by the Java platform", e);
+        }
+    }
+
+    /**
+     * Hex encodes a byte array.
+     *
+     * @param bytes bytes to encode
+     * @return lower case hex string
+     */
+    private static String toHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accumulates the bytes saved and the time spent by optimizations across
+ * builds, per engine, size class and level, so that the gain per second of
+ * each level can be judged from experience.
+ *
+ * <p>The history is a text file containing one tab separated line per
+ * engine, size class and level with the total bytes saved, the total time
+ * in milliseconds and the number of images.</p>
+ */
+class GainHistory {
+    /**
+     * First line of a history file, identifying its format.
+     */
+    private static final String HEADER = "# optipng-history 1";
+
+    /**
+     * Separator between the fields of an entry.
+     */
+    private static final char SEPARATOR = '\t';
+
+    /**
+     * Number of fields per entry.
+     */
+    private static final int FIELDS = 6;
+
+    /**
+     * Number of milliseconds per second.
+     */
+    private static final double MILLIS_PER_SECOND = 1000d;
+
+    /**
+     * File the history is stored in.
+     */
+    private final File file;
+
+    /**
+     * Identifier of the engine whose entries are looked up and recorded.
+     */
+    private final String engine;
+
+    /**
+     * Totals of bytes saved, milliseconds spent and images, by engine, size
+     * class and level joined by the separator.
+     */
+    private final Map<String, long[]> totals;
+
+    /**
+     * Creates a history.
+     *
+     * @param file file the history is stored in
+     * @param engine identifier of the engine in use
+     * @param totals totals read from the file
+     */
+    private GainHistory(final File file, final String engine,
+            final Map<String, long[]> totals) {
+        this.file = file;
+        this.engine = engine;
+        this.totals = totals;
+    }
+
+    /**
+     * Loads a history. A missing or unreadable file yields an empty one.
+     *
+     * @param file file the history is stored in
+     * @param engine identifier of the engine in use
+     * @return loaded history
+     */
+    static GainHistory load(final File file, final String engine) {
+        final Map<String, long[]> totals =
+            new ConcurrentHashMap<String, long[]>();
+        if (file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+                    StandardCharsets.UTF_8)) {
+                if (HEADER.equals(reader.readLine())) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        final String[] fields = line.split(String.valueOf(
+                            SEPARATOR), FIELDS);
+                        if (fields.length == FIELDS) {
+                            totals.put(fields[0] + SEPARATOR + fields[1]
+                                + SEPARATOR + Integer.parseInt(fields[2]),
+                                new long[] {Long.parseLong(fields[3]),
+                                    Long.parseLong(fields[4]),
+                                    Long.parseLong(fields[5])});
+                        }
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                totals.clear();
+            }
+        }
+        return new GainHistory(file, engine, totals);
+    }
+
+    /**
+     * Records an optimized image.
+     *
+     * @param sizeClass size class of the image
+     * @param level level the image was optimized with
+     * @param saved bytes saved
+     * @param duration time in milliseconds the optimization took
+     */
+    synchronized void record(final String sizeClass, final int level,
+            final long saved, final long duration) {
+        final String key = key(sizeClass, level);
+        long[] total = totals.get(key);
+        if (total == null) {
+            total = new long[3];
+            totals.put(key, total);
+        }
+        total[0] += Math.max(0, saved);
+        total[1] += Math.max(0, duration);
+        total[2]++;
+    }
+
+    /**
+     * Determines the bytes saved per second of optimization observed for a
+     * size class and level.
+     *
+     * @param sizeClass size class
+     * @param level optimization level
+     * @return bytes saved per second, {@link Double#NaN} if the level was
+     *         never used for the size class
+     */
+    synchronized double getGainPerSecond(final String sizeClass,
+            final int level) {
+        final long[] total = totals.get(key(sizeClass, level));
+        if (total == null) {
+            return Double.NaN;
+        }
+        return total[0] * MILLIS_PER_SECOND / Math.max(1, total[1]);
+    }
+
+    /**
+     * Writes the history.
+     *
+     * @throws IOException in case writing failed
+     */
+    synchronized void save() throws IOException {
+        final Path target = file.toPath();
+        Files.createDirectories(target.getParent());
+        final Path temp = Files.createTempFile(target.getParent(), null,
+            AtomicFiles.TEMP_SUFFIX);
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp,
+                    StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Map.Entry<String, long[]> e : totals.entrySet()) {
+                    final long[] total = e.getValue();
+                    writer.append(e.getKey())
+                        .append(SEPARATOR).append(String.valueOf(total[0]))
+                        .append(SEPARATOR).append(String.valueOf(total[1]))
+                        .append(SEPARATOR).append(String.valueOf(total[2]));
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Builds the key of totals.
+     *
+     * @param sizeClass size class
+     * @param level optimization level
+     * @return key
+     */
+    private String key(final String sizeClass, final int level) {
+        return engine + SEPARATOR + sizeClass + SEPARATOR + level;
+    }
+}
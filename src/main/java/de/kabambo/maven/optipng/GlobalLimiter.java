@@ -0,0 +1,107 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of batches optimized concurrently across all executions
+ * of the goal within the JVM, e.g. by modules of a parallel reactor build.
+ * Maven loads the plugin once per build, so all executions share this
+ * limiter. Its size is fixed by the first execution.
+ *
+ * <p>The limiter also owns the pool of threads optimizing images in-process,
+ * sized alike, so that trials of large images fanning out across threads do
+ * not multiply the processors used by concurrent batches.</p>
+ */
+final class GlobalLimiter {
+    /**
+     * Shared instance, <code>null</code> until first requested.
+     */
+    private static GlobalLimiter instance;
+
+    /**
+     * Permits for concurrent optimizations.
+     */
+    private final Semaphore permits;
+
+    /**
+     * Number of concurrent optimizations allowed.
+     */
+    private final int size;
+
+    /**
+     * Pool running in-process optimizations of all executions.
+     */
+    private final ForkJoinPool trialPool;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param size number of concurrent optimizations allowed
+     */
+    private GlobalLimiter(final int size) {
+        this.permits = new Semaphore(size, true);
+        this.size = size;
+        this.trialPool = new ForkJoinPool(size);
+    }
+
+    /**
+     * Returns the shared limiter, creating it on first use.
+     *
+     * @param size number of concurrent optimizations allowed, only used if
+     *        the limiter does not exist yet
+     * @return shared limiter
+     */
+    static synchronized GlobalLimiter getInstance(final int size) {
+        if (instance == null) {
+            instance = new GlobalLimiter(size);
+        }
+        return instance;
+    }
+
+    /**
+     * Waits until an optimization may start.
+     *
+     * @throws InterruptedException in case waiting was interrupted
+     */
+    void acquire() throws InterruptedException {
+        permits.acquire();
+    }
+
+    /**
+     * Signals that an optimization finished.
+     */
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * @return pool running in-process optimizations of all executions, with
+     *         as many threads as concurrent optimizations are allowed
+     */
+    ForkJoinPool getTrialPool() {
+        return trialPool;
+    }
+
+    /**
+     * @return number of concurrent optimizations allowed
+     */
+    int getSize() {
+        return size;
+    }
+}
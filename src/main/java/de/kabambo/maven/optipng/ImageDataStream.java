@@ -0,0 +1,164 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Stream over the content of consecutive image data chunks, verifying
+ * their CRCs and ending at the first other chunk. Once ended, the length and
+ * type of that chunk have been read and are available.
+ */
+final class ImageDataStream extends InputStream {
+    /**
+     * The file being read.
+     */
+    private final DataInputStream file;
+
+    /**
+     * CRC of the current chunk.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Bytes left in the current chunk.
+     */
+    private int remaining;
+
+    /**
+     * Number of bytes of image data read.
+     */
+    private long bytes;
+
+    /**
+     * Whether the last image data chunk has been read.
+     */
+    private boolean ended;
+
+    /**
+     * Length of the chunk following the image data.
+     */
+    private int nextLength;
+
+    /**
+     * Type of the chunk following the image data.
+     */
+    private String nextType;
+
+    /**
+     * Creates a stream starting with the content of a chunk.
+     *
+     * @param file stream positioned at the content of the chunk
+     * @param type type of the first chunk
+     * @param length length of the first chunk
+     */
+    ImageDataStream(final DataInputStream file, final byte[] type,
+            final int length) {
+        this.file = file;
+        crc.update(type);
+        remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+        while (remaining == 0) {
+            if (ended) {
+                return -1;
+            }
+            nextChunk();
+        }
+        final int read = file.read(b, off, Math.min(len, remaining));
+        if (read < 0) {
+            throw new IOException("Truncated " + PngChunk.IDAT + " chunk");
+        }
+        crc.update(b, off, read);
+        remaining -= read;
+        bytes += read;
+        return read;
+    }
+
+    /**
+     * Reads the remaining image data, leaving the file positioned at the
+     * content of the following chunk.
+     *
+     * @throws IOException in case the image data is malformed
+     */
+    void skipToEnd() throws IOException {
+        final byte[] buffer = new byte[8192];
+        while (read(buffer, 0, buffer.length) >= 0) {
+            // discard, verifying CRCs
+        }
+    }
+
+    /**
+     * @return number of bytes of image data read
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return length of the chunk following the image data, valid once the
+     *         stream ended
+     */
+    int getNextLength() {
+        return nextLength;
+    }
+
+    /**
+     * @return type of the chunk following the image data, valid once the
+     *         stream ended
+     */
+    String getNextType() {
+        return nextType;
+    }
+
+    /**
+     * Verifies the CRC of the current chunk and advances to the next one.
+     *
+     * @throws IOException in case the CRC does not match
+     */
+    private void nextChunk() throws IOException {
+        if ((int) crc.getValue() != file.readInt()) {
+            throw new IOException("CRC mismatch in " + PngChunk.IDAT
+                + " chunk");
+        }
+        final int length = file.readInt();
+        final byte[] type = new byte[4];
+        file.readFully(type);
+        final String chunkType = new String(type, StandardCharsets.US_ASCII);
+        if (length < 0 || !PngChunk.IDAT.equals(chunkType)) {
+            ended = true;
+            nextLength = length;
+            nextType = chunkType;
+            return;
+        }
+        crc.reset();
+        crc.update(type);
+        remaining = length;
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Content of the IHDR chunk, describing the layout of the image data.
+ */
+final class ImageHeader {
+    /**
+     * Color type of grayscale images.
+     */
+    static final int GRAYSCALE = 0;
+
+    /**
+     * Color type of RGB images.
+     */
+    static final int RGB = 2;
+
+    /**
+     * Color type of palette images.
+     */
+    static final int PALETTE = 3;
+
+    /**
+     * Color type of grayscale images with alpha channel.
+     */
+    static final int GRAYSCALE_ALPHA = 4;
+
+    /**
+     * Color type of RGB images with alpha channel.
+     */
+    static final int RGBA = 6;
+
+    /**
+     * Size of the IHDR chunk data.
+     */
+    static final int LENGTH = 13;
+
+    /**
+     * Starting columns of the Adam7 passes.
+     */
+    static final int[] ADAM7_COLUMN_START = {0, 4, 0, 2, 0, 1, 0};
+
+    /**
+     * Starting rows of the Adam7 passes.
+     */
+    static final int[] ADAM7_ROW_START = {0, 0, 4, 0, 2, 0, 1};
+
+    /**
+     * Column increments of the Adam7 passes.
+     */
+    static final int[] ADAM7_COLUMN_STEP = {8, 8, 4, 4, 2, 2, 1};
+
+    /**
+     * Row increments of the Adam7 passes.
+     */
+    static final int[] ADAM7_ROW_STEP = {8, 8, 8, 4, 4, 2, 2};
+
+    /**
+     * Width in pixels.
+     */
+    private final int width;
+
+    /**
+     * Height in pixels.
+     */
+    private final int height;
+
+    /**
+     * Bits per sample or palette index.
+     */
+    private final int bitDepth;
+
+    /**
+     * Color type.
+     */
+    private final int colorType;
+
+    /**
+     * Interlace method, 0 for none and 1 for Adam7.
+     */
+    private final int interlace;
+
+    /**
+     * Creates a header.
+     *
+     * @param width width in pixels
+     * @param height height in pixels
+     * @param bitDepth bits per sample
+     * @param colorType color type
+     * @param interlace interlace method
+     */
+    ImageHeader(final int width, final int height, final int bitDepth,
+            final int colorType, final int interlace) {
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.colorType = colorType;
+        this.interlace = interlace;
+    }
+
+    /**
+     * Parses an IHDR chunk.
+     *
+     * @param chunk IHDR chunk, may be <code>null</code>
+     * @return parsed header
+     * @throws IOException in case the chunk is missing or malformed
+     */
+    static ImageHeader parse(final PngChunk chunk) throws IOException {
+        if (chunk == null || chunk.getData().length != LENGTH) {
+            throw new IOException("Missing or invalid " + PngChunk.IHDR
+                + " chunk");
+        }
+
+        final ByteBuffer data = ByteBuffer.wrap(chunk.getData());
+        final ImageHeader header = new ImageHeader(data.getInt(),
+            data.getInt(), data.get() & 0xff, data.get() & 0xff,
+            data.get(12) & 0xff);
+        if (header.width <= 0 || header.height <= 0
+                || header.getChannels() == 0 || header.interlace > 1) {
+            throw new IOException("Unsupported " + PngChunk.IHDR + " chunk");
+        }
+        return header;
+    }
+
+    /**
+     * Serializes the header as IHDR chunk.
+     *
+     * @return IHDR chunk
+     */
+    PngChunk toChunk() {
+        final ByteBuffer data = ByteBuffer.allocate(LENGTH);
+        data.putInt(width).putInt(height).put((byte) bitDepth)
+            .put((byte) colorType).put((byte) 0).put((byte) 0)
+            .put((byte) interlace);
+        return new PngChunk(PngChunk.IHDR, data.array());
+    }
+
+    /**
+     * @return number of samples per pixel, 0 for an invalid color type
+     */
+    int getChannels() {
+        switch (colorType) {
+        case GRAYSCALE:
+        case PALETTE:
+            return 1;
+        case GRAYSCALE_ALPHA:
+            return 2;
+        case RGB:
+            return 3;
+        case RGBA:
+            return 4;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * @return bits per pixel
+     */
+    int getBitsPerPixel() {
+        return getChannels() * bitDepth;
+    }
+
+    /**
+     * Returns the distance in bytes to the corresponding byte of the
+     * previous pixel, as used by the PNG filters.
+     *
+     * @return filter unit in bytes, at least 1
+     */
+    int getFilterUnit() {
+        return Math.max(1, getBitsPerPixel() / 8);
+    }
+
+    /**
+     * Computes the size of a scanline without filter byte.
+     *
+     * @param pixels pixels per scanline
+     * @return bytes per scanline
+     */
+    int getRowBytes(final int pixels) {
+        return (int) (((long) pixels * getBitsPerPixel() + 7) / 8);
+    }
+
+    /**
+     * Splits the image data into sub-images, one per interlace pass. Each
+     * sub-image consists of a number of rows of equal size which are
+     * filtered independently of the other sub-images. Empty passes are
+     * omitted.
+     *
+     * @return pairs of bytes per row and number of rows
+     */
+    int[][] getPasses() {
+        if (interlace == 0) {
+            return new int[][] {{getRowBytes(width), height}};
+        }
+
+        final int[][] passes = new int[ADAM7_ROW_STEP.length][];
+        int count = 0;
+        for (int i = 0; i < passes.length; i++) {
+            final int columns = (width - ADAM7_COLUMN_START[i]
+                + ADAM7_COLUMN_STEP[i] - 1) / ADAM7_COLUMN_STEP[i];
+            final int rows = (height - ADAM7_ROW_START[i]
+                + ADAM7_ROW_STEP[i] - 1) / ADAM7_ROW_STEP[i];
+            if (columns > 0 && rows > 0) {
+                passes[count++] = new int[] {getRowBytes(columns), rows};
+            }
+        }
+        final int[][] nonEmpty = new int[count][];
+        System.arraycopy(passes, 0, nonEmpty, 0, count);
+        return nonEmpty;
+    }
+
+    /**
+     * Computes the size of the unfiltered image data including filter
+     * bytes.
+     *
+     * @return size in bytes
+     */
+    long getRawSize() {
+        long size = 0;
+        for (int[] pass : getPasses()) {
+            size += (long) (pass[0] + 1) * pass[1];
+        }
+        return size;
+    }
+
+    /**
+     * @return width in pixels
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height in pixels
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return bits per sample
+     */
+    int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * @return color type
+     */
+    int getColorType() {
+        return colorType;
+    }
+
+    /**
+     * @return interlace method
+     */
+    int getInterlace() {
+        return interlace;
+    }
+}
@@ -0,0 +1,334 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+
+/**
+ * State of a single image while it is being optimized.
+ */
+class ImageJob {
+    /**
+     * Final state of an image.
+     */
+    enum Outcome {
+        /**
+         * Optimized by an engine.
+         */
+        OPTIMIZED,
+
+        /**
+         * Restored from the result cache.
+         */
+        CACHED,
+
+        /**
+         * Copied from the result of an identical image.
+         */
+        DEDUPLICATED,
+
+        /**
+         * Left unchanged for a later build, as the time budget was
+         * exhausted.
+         */
+        DEFERRED,
+
+        /**
+         * Optimization failed, the image is unchanged.
+         */
+        FAILED,
+
+        /**
+         * Optimization exceeded its timeout, the image is unchanged.
+         */
+        TIMED_OUT,
+
+        /**
+         * The optimized image failed verification, the image is unchanged.
+         */
+        REJECTED
+    }
+
+    /**
+     * Image to optimize.
+     */
+    private final File image;
+
+    /**
+     * File to write the optimized image to, possibly the image itself.
+     */
+    private final File target;
+
+    /**
+     * Size of the image before optimization.
+     */
+    private final long originalSize;
+
+    /**
+     * Digest of the unoptimized image, <code>null</code> if not computed.
+     */
+    private String digest;
+
+    /**
+     * Copy of the image optipng runs on, <code>null</code> if none.
+     */
+    private File workingCopy;
+
+    /**
+     * Time in milliseconds the optimization may take.
+     */
+    private long timeout;
+
+    /**
+     * Time in milliseconds the optimization took.
+     */
+    private long duration = BuildManifest.UNKNOWN_DURATION;
+
+    /**
+     * Final state, <code>null</code> while in progress.
+     */
+    private Outcome outcome;
+
+    /**
+     * Optimization level applied to the image.
+     */
+    private int level;
+
+    /**
+     * Optimization level chosen for the image before any reduction to meet
+     * the time budget.
+     */
+    private int requestedLevel;
+
+    /**
+     * Time in nanoseconds the image waited for workers of all stages.
+     */
+    private long queueWait;
+
+    /**
+     * Time in nanoseconds spent verifying the optimized image.
+     */
+    private long verifyTime;
+
+    /**
+     * Time in nanoseconds spent on the image in this build.
+     */
+    private long wallTime;
+
+    /**
+     * CPU time in nanoseconds the worker thread spent on the image.
+     */
+    private long cpuTime;
+
+    /**
+     * Creates a new job, capturing the current size of the image.
+     *
+     * @param image image to optimize
+     * @param target file to write the optimized image to, possibly the image
+     *        itself
+     */
+    ImageJob(final File image, final File target) {
+        this.image = image;
+        this.target = target;
+        this.originalSize = image.length();
+    }
+
+    /**
+     * @return image to optimize
+     */
+    File getImage() {
+        return image;
+    }
+
+    /**
+     * @return file to write the optimized image to
+     */
+    File getTarget() {
+        return target;
+    }
+
+    /**
+     * @return <code>true</code> if the image is optimized in place
+     */
+    boolean isInPlace() {
+        return image.equals(target);
+    }
+
+    /**
+     * @return size of the image before optimization
+     */
+    long getOriginalSize() {
+        return originalSize;
+    }
+
+    /**
+     * @return digest of the unoptimized image, <code>null</code> if not
+     *         computed
+     */
+    String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @param digest digest of the unoptimized image
+     */
+    void setDigest(final String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * @return copy of the image optipng runs on, <code>null</code> if none
+     */
+    File getWorkingCopy() {
+        return workingCopy;
+    }
+
+    /**
+     * @param workingCopy copy of the image optipng runs on
+     */
+    void setWorkingCopy(final File workingCopy) {
+        this.workingCopy = workingCopy;
+    }
+
+    /**
+     * @return time in milliseconds the optimization may take
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout time in milliseconds the optimization may take
+     */
+    void setTimeout(final long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return final state, <code>null</code> while in progress
+     */
+    Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @param outcome final state
+     */
+    void setOutcome(final Outcome outcome) {
+        this.outcome = outcome;
+    }
+
+    /**
+     * @return time in milliseconds the optimization took,
+     *         {@link BuildManifest#UNKNOWN_DURATION} if unknown
+     */
+    long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @param duration time in milliseconds the optimization took
+     */
+    void setDuration(final long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * @return optimization level applied to the image
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param level optimization level applied to the image
+     */
+    void setLevel(final int level) {
+        this.level = level;
+    }
+
+    /**
+     * @return optimization level chosen for the image before any reduction
+     *         to meet the time budget
+     */
+    int getRequestedLevel() {
+        return requestedLevel;
+    }
+
+    /**
+     * @param requestedLevel optimization level chosen for the image before
+     *        any reduction to meet the time budget
+     */
+    void setRequestedLevel(final int requestedLevel) {
+        this.requestedLevel = requestedLevel;
+    }
+
+    /**
+     * @return time in nanoseconds the image waited for workers of all stages
+     */
+    long getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Accounts time the image waited for a worker of a stage.
+     *
+     * @param wait time in nanoseconds
+     */
+    void addQueueWait(final long wait) {
+        this.queueWait += wait;
+    }
+
+    /**
+     * @return time in nanoseconds spent on the image in this build
+     */
+    long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * @return CPU time in nanoseconds the worker thread spent on the image
+     */
+    long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return time in nanoseconds spent verifying the optimized image
+     */
+    long getVerifyTime() {
+        return verifyTime;
+    }
+
+    /**
+     * @param verifyTime time in nanoseconds spent verifying the optimized
+     *        image
+     */
+    void setVerifyTime(final long verifyTime) {
+        this.verifyTime = verifyTime;
+    }
+
+    /**
+     * Accounts time spent on the image.
+     *
+     * @param wall elapsed time in nanoseconds
+     * @param cpu CPU time in nanoseconds
+     */
+    void addTime(final long wall, final long cpu) {
+        wallTime += wall;
+        cpuTime += cpu;
+    }
+}
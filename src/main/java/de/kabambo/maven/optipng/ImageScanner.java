@@ -0,0 +1,220 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Recursively discovers images below a directory. Paths relative to that
+ * directory are matched case-insensitively against Ant-style include and
+ * exclude patterns. Matching images are handed to a listener as soon as they
+ * are found, so that their optimization can start while the walk continues.
+ */
+class ImageScanner {
+    /**
+     * Patterns used if no includes are configured.
+     */
+    static final List<String> DEFAULT_INCLUDES =
+        Collections.singletonList("**/*.png");
+
+    /**
+     * Pattern matching any number of directories.
+     */
+    private static final String ANY_DIRECTORIES = "**";
+
+    /**
+     * Receives images found by the scanner.
+     */
+    interface Listener {
+        /**
+         * Called for every image matching the patterns.
+         *
+         * @param directory directory being scanned
+         * @param image image found
+         */
+        void imageFound(File directory, File image);
+    }
+
+    /**
+     * Normalized include patterns.
+     */
+    private final List<String> includes;
+
+    /**
+     * Normalized exclude patterns.
+     */
+    private final List<String> excludes;
+
+    /**
+     * Whether to follow symbolic links.
+     */
+    private final boolean followSymlinks;
+
+    /**
+     * Logger for reporting unreadable paths.
+     */
+    private final Log log;
+
+    /**
+     * Creates a new scanner.
+     *
+     * @param includes patterns of images to include, defaults to
+     *        {@link #DEFAULT_INCLUDES} if <code>null</code> or empty
+     * @param excludes patterns of images to exclude, may be <code>null</code>
+     * @param followSymlinks whether to follow symbolic links, otherwise they
+     *        are ignored
+     * @param log logger for reporting unreadable paths
+     */
+    ImageScanner(final List<String> includes, final List<String> excludes,
+            final boolean followSymlinks, final Log log) {
+        this.includes = normalize(includes == null || includes.isEmpty()
+            ? DEFAULT_INCLUDES : includes);
+        this.excludes = normalize(excludes == null
+            ? Collections.<String>emptyList() : excludes);
+        this.followSymlinks = followSymlinks;
+        this.log = log;
+    }
+
+    /**
+     * Walks a directory and reports all matching images.
+     *
+     * @param directory directory to walk
+     * @param listener listener receiving matching images
+     * @throws IOException in case walking the directory failed
+     */
+    void scan(final File directory, final Listener listener)
+            throws IOException {
+        final Path root = directory.toPath();
+        final Set<FileVisitOption> options = followSymlinks
+            ? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+            : EnumSet.noneOf(FileVisitOption.class);
+
+        Files.walkFileTree(root, options, Integer.MAX_VALUE,
+            new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir,
+                        final BasicFileAttributes attrs) {
+                    if (!dir.equals(root) && isExcludedDirectory(
+                            root.relativize(dir).toString())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file,
+                        final BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && isSelected(
+                            root.relativize(file).toString())) {
+                        listener.imageFound(directory, file.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file,
+                        final IOException e) {
+                    if (e instanceof FileSystemLoopException) {
+                        log.debug("Ignoring symbolic link cycle at " + file);
+                    } else {
+                        log.warn("Failed to read " + file, e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+    }
+
+    /**
+     * Checks whether a file is included and not excluded.
+     *
+     * @param path path relative to the scanned directory
+     * @return <code>true</code> if the file is selected
+     */
+    private boolean isSelected(final String path) {
+        return matchesAny(includes, path) && !matchesAny(excludes, path);
+    }
+
+    /**
+     * Checks whether a directory is excluded as a whole, i.e. by a pattern
+     * ending with <code>**</code>.
+     *
+     * @param path path relative to the scanned directory
+     * @return <code>true</code> if the directory can be skipped
+     */
+    private boolean isExcludedDirectory(final String path) {
+        for (String pattern : excludes) {
+            if (pattern.endsWith(ANY_DIRECTORIES)
+                    && SelectorUtils.matchPath(pattern, path, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a path matches any of the given patterns.
+     *
+     * @param patterns patterns to match
+     * @param path path to check
+     * @return <code>true</code> if any pattern matches
+     */
+    private static boolean matchesAny(final List<String> patterns,
+            final String path) {
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPath(pattern, path, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts patterns to the platform's separator. As in Ant, a trailing
+     * separator matches everything below a directory.
+     *
+     * @param patterns patterns to convert
+     * @return normalized patterns
+     */
+    private static List<String> normalize(final List<String> patterns) {
+        final List<String> normalized = new ArrayList<String>(
+            patterns.size());
+        for (String pattern : patterns) {
+            String p = pattern.trim().replace('/', File.separatorChar)
+                .replace('\\', File.separatorChar);
+            if (p.endsWith(File.separator)) {
+                p += ANY_DIRECTORIES;
+            }
+            normalized.add(p);
+        }
+        return normalized;
+    }
+}
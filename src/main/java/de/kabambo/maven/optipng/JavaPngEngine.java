@@ -0,0 +1,705 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Engine recompressing images in-process. The image data is decoded and
+ * unfiltered, reduced to the smallest color type and bit depth holding its
+ * pixels by {@link ColorReduction}, then refiltered and deflated with every
+ * combination of settings of the {@link TrialMatrix} for the level. As
+ * fewer bits per pixel do not always deflate better, the trials are repeated
+ * on the unreduced image. The smallest result is kept if it is smaller than
+ * the original. All other chunks are retained.
+ * With optimal deflating enabled, the filtered data of the smallest result
+ * is finally deflated once more by the {@link OptimalDeflater}, which takes
+ * far longer than the trials but typically saves a few percent more.
+ * Images whose unfiltered data exceeds the streaming threshold are instead
+ * recompressed row by row by the {@link StreamingRecompressor}.
+ * Images are optimized on a fork-join pool shared by all executions, whose
+ * threads are the only ones doing the work, so that its parallelism bounds
+ * the processors used by the whole build. Trials of large images are spread
+ * across the pool, so that a single huge image does not leave the other
+ * processors idle. Buffers and zlib
+ * compressors come from a {@link BufferPool}, so that trials allocate only
+ * when they beat the best result so far.
+ */
+class JavaPngEngine implements OptimizationEngine {
+    /**
+     * Name of this engine.
+     */
+    static final String NAME = "java";
+
+    /**
+     * Version of this engine, to be increased whenever its output changes.
+     */
+    private static final String VERSION = "2";
+
+    /**
+     * Size of unfiltered image data from which on trials are run in
+     * parallel. Below, the overhead outweighs the gain.
+     */
+    private static final int PARALLEL_THRESHOLD = 256 * 1024;
+
+    /**
+     * Logger for reporting failures.
+     */
+    private final Log log;
+
+    /**
+     * Pool running the optimizations and the trials for large images
+     * concurrently, shared with other engines.
+     */
+    private final ForkJoinPool trialPool;
+
+    /**
+     * Number of iterations of the {@link OptimalDeflater}, zero to disable
+     * it.
+     */
+    private final int deflateIterations;
+
+    /**
+     * Size of unfiltered image data in bytes above which images are
+     * streamed rather than recompressed in memory.
+     */
+    private final long streamingThreshold;
+
+    /**
+     * Pool of buffers and compressors.
+     */
+    private final BufferPool pool;
+
+    /**
+     * Creates a new engine.
+     *
+     * @param trialPool pool running optimizations and trials, not shut down
+     *        by the engine
+     * @param deflateIterations number of iterations of the optimal deflater,
+     *        zero to disable it
+     * @param streamingThreshold size of unfiltered image data in bytes above
+     *        which images are streamed
+     * @param bufferPoolSize maximum size of idle pooled buffers and
+     *        compressors in bytes
+     * @param log logger for failures
+     */
+    JavaPngEngine(final ForkJoinPool trialPool, final int deflateIterations,
+            final long streamingThreshold, final long bufferPoolSize,
+            final Log log) {
+        this.log = log;
+        this.trialPool = trialPool;
+        this.deflateIterations = deflateIterations;
+        this.streamingThreshold = streamingThreshold;
+        this.pool = new BufferPool(bufferPoolSize);
+    }
+
+    @Override
+    public String getIdentifier() {
+        return NAME + " " + VERSION + (deflateIterations > 0
+            ? " optimal " + deflateIterations : "");
+    }
+
+    @Override
+    public void optimize(final List<ImageJob> jobs) {
+        trialPool.invoke(new BatchTask(jobs));
+    }
+
+    @Override
+    public void shutdown() {
+        pool.clear();
+        log.debug(String.format("Buffer pool: %d requests served, %d "
+            + "allocations", pool.getHits(), pool.getMisses()));
+    }
+
+    /**
+     * Fork-join task optimizing a batch of images one after another.
+     */
+    private final class BatchTask extends RecursiveAction {
+        /**
+         * Serial version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Images to optimize.
+         */
+        private final transient List<ImageJob> jobs;
+
+        /**
+         * Creates a new task.
+         *
+         * @param jobs images to optimize
+         */
+        BatchTask(final List<ImageJob> jobs) {
+            this.jobs = jobs;
+        }
+
+        @Override
+        protected void compute() {
+            for (ImageJob job : jobs) {
+                try {
+                    optimize(job.getWorkingCopy(), job.getLevel(),
+                        System.currentTimeMillis() + job.getTimeout());
+                } catch (TimeoutException e) {
+                    job.setOutcome(ImageJob.Outcome.TIMED_OUT);
+                } catch (IOException e) {
+                    log.error(String.format("Failed to optimize %s: %s",
+                        job.getImage().getPath(), e.getMessage()));
+                    job.setOutcome(ImageJob.Outcome.FAILED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Signals that the deadline for an image passed.
+     */
+    static class TimeoutException extends Exception {
+        /**
+         * Serial version.
+         */
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Recompresses an image in place, unless no trial beats its size.
+     *
+     * @param file image to optimize
+     * @param level optimization level
+     * @param deadline time in milliseconds after which to give up
+     * @throws IOException in case the image could not be read or written
+     * @throws TimeoutException in case the deadline passed
+     */
+    private void optimize(final File file, final int level,
+            final long deadline) throws IOException, TimeoutException {
+        final List<TrialMatrix.Trial> trials = TrialMatrix.forLevel(level);
+        if (trials.isEmpty()) {
+            return;
+        }
+        if (StreamingRecompressor.readHeader(file).getRawSize()
+                > streamingThreshold) {
+            StreamingRecompressor.recompress(file, trials, pool, deadline);
+            return;
+        }
+
+        final PngFile png;
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(file))) {
+            png = PngFile.read(in);
+        }
+        final ImageHeader header = ImageHeader.parse(png.getChunk(
+            PngChunk.IHDR));
+        final byte[] original = png.getImageData();
+        final byte[] decoded = decode(header, original, pool);
+        ColorReduction reduction = ColorReduction.analyze(png, header,
+            decoded);
+        if (reduction != null && reduction.getOverhead() >= original.length) {
+            // the palette alone would outweigh the image data
+            reduction = null;
+        }
+        ImageHeader target = reduction == null ? header
+            : reduction.getHeader();
+        byte[] raw = reduction == null ? decoded : reduction.getRaw();
+        int limit = original.length
+            - (reduction == null ? 0 : reduction.getOverhead());
+
+        byte[] best = search(target, raw, trials, limit, deadline);
+        if (reduction != null) {
+            // fewer bits per pixel do not always deflate better
+            final byte[] unreduced = search(header, decoded, trials,
+                best == null ? original.length
+                : best.length + reduction.getOverhead(), deadline);
+            if (unreduced != null) {
+                reduction = null;
+                target = header;
+                raw = decoded;
+                limit = original.length;
+                best = unreduced;
+            }
+        }
+
+        if (deflateIterations > 0) {
+            // reuse the filter bytes of the best trial, or of the original
+            final byte[] filtered;
+            if (best != null || reduction == null) {
+                filtered = inflate(best != null ? best : original, raw.length,
+                    pool);
+            } else {
+                final byte[] buffer = filter(target, raw, PngFilters.ADAPTIVE,
+                    pool);
+                filtered = Arrays.copyOf(buffer, raw.length);
+                pool.release(buffer);
+            }
+            final byte[] optimal = OptimalDeflater.deflate(filtered,
+                deflateIterations, deadline);
+            if (optimal == null) {
+                log.debug(String.format("Optimal deflating of %s timed out, "
+                    + "keeping the best trial", file.getPath()));
+            } else if (optimal.length < (best == null ? limit : best.length)) {
+                best = optimal;
+            }
+        }
+
+        if (best != null) {
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(file))) {
+                (reduction == null ? png.withImageData(best)
+                    : reduction.apply(png, best)).write(out);
+            }
+        }
+    }
+
+    /**
+     * Runs all trials, in parallel for large images.
+     *
+     * @param header image header
+     * @param raw unfiltered image data
+     * @param trials trials to run, ordered by filter type
+     * @param limit size to beat
+     * @param deadline time in milliseconds after which to give up
+     * @return smallest compressed data below the limit, <code>null</code> if
+     *         none
+     * @throws TimeoutException in case the deadline passed
+     */
+    private byte[] search(final ImageHeader header, final byte[] raw,
+            final List<TrialMatrix.Trial> trials, final int limit,
+            final long deadline) throws TimeoutException {
+        if (raw.length >= PARALLEL_THRESHOLD
+                && trialPool.getParallelism() > 1) {
+            return searchInParallel(header, raw, trials, limit, deadline);
+        }
+        return searchInSequence(header, raw, trials, limit, deadline);
+    }
+
+    /**
+     * Runs all trials one after another.
+     *
+     * @param header image header
+     * @param raw unfiltered image data
+     * @param trials trials to run, ordered by filter type
+     * @param limit size to beat
+     * @param deadline time in milliseconds after which to give up
+     * @return smallest compressed data below the limit, <code>null</code> if
+     *         none
+     * @throws TimeoutException in case the deadline passed
+     */
+    private byte[] searchInSequence(final ImageHeader header,
+            final byte[] raw, final List<TrialMatrix.Trial> trials,
+            final int limit, final long deadline) throws TimeoutException {
+        byte[] best = null;
+        byte[] filtered = null;
+        int filteredWith = -1;
+        try {
+            for (TrialMatrix.Trial trial : trials) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new TimeoutException();
+                }
+
+                if (trial.getFilter() != filteredWith) {
+                    if (filtered != null) {
+                        pool.release(filtered);
+                    }
+                    filtered = filter(header, raw, trial.getFilter(), pool);
+                    filteredWith = trial.getFilter();
+                }
+                final int bestSize = best == null ? limit : best.length;
+                final byte[] compressed = deflate(filtered, raw.length,
+                    trial.getLevel(), trial.getStrategy(), bestSize, pool);
+                if (compressed != null && compressed.length < bestSize) {
+                    best = compressed;
+                }
+            }
+        } finally {
+            if (filtered != null) {
+                pool.release(filtered);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Runs the trials as subtasks of the calling task on the fork-join pool,
+     * filtering once per filter type
+     * and deflating all trials of a filter type concurrently. Trials give up
+     * as soon as they exceed the smallest result found so far. Among equally
+     * small results, the first trial wins, so the result does not depend on
+     * scheduling.
+     *
+     * @param header image header
+     * @param raw unfiltered image data
+     * @param trials trials to run, ordered by filter type
+     * @param limit size to beat
+     * @param deadline time in milliseconds after which to give up
+     * @return smallest compressed data below the limit, <code>null</code> if
+     *         none
+     * @throws TimeoutException in case the deadline passed
+     */
+    private byte[] searchInParallel(final ImageHeader header, final byte[] raw,
+            final List<TrialMatrix.Trial> trials, final int limit,
+            final long deadline) throws TimeoutException {
+        final TrialSearch search = new TrialSearch(header, raw, trials, limit,
+            deadline, pool);
+        search.invoke();
+        if (search.expired.get()) {
+            throw new TimeoutException();
+        }
+
+        byte[] best = null;
+        for (byte[] result : search.results) {
+            if (result != null && result.length < (best == null ? limit
+                    : best.length)) {
+                best = result;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fork-join task running all trials for an image.
+     */
+    private static final class TrialSearch extends RecursiveAction {
+        /**
+         * Serial version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Image header.
+         */
+        private final transient ImageHeader header;
+
+        /**
+         * Unfiltered image data.
+         */
+        private final byte[] raw;
+
+        /**
+         * Trials to run, ordered by filter type.
+         */
+        private final transient List<TrialMatrix.Trial> trials;
+
+        /**
+         * Results of the trials, <code>null</code> for trials which gave up.
+         */
+        private final byte[][] results;
+
+        /**
+         * Size of the smallest result so far.
+         */
+        private final AtomicInteger limit;
+
+        /**
+         * Time in milliseconds after which to give up.
+         */
+        private final long deadline;
+
+        /**
+         * Set once a trial found the deadline passed.
+         */
+        private final AtomicBoolean expired = new AtomicBoolean();
+
+        /**
+         * Pool of buffers and compressors.
+         */
+        private final transient BufferPool pool;
+
+        /**
+         * Creates a search.
+         *
+         * @param header image header
+         * @param raw unfiltered image data
+         * @param trials trials to run, ordered by filter type
+         * @param limit size to beat
+         * @param deadline time in milliseconds after which to give up
+         * @param pool pool of buffers and compressors
+         */
+        TrialSearch(final ImageHeader header, final byte[] raw,
+                final List<TrialMatrix.Trial> trials, final int limit,
+                final long deadline, final BufferPool pool) {
+            this.header = header;
+            this.raw = raw;
+            this.trials = trials;
+            this.results = new byte[trials.size()][];
+            this.limit = new AtomicInteger(limit);
+            this.deadline = deadline;
+            this.pool = pool;
+        }
+
+        @Override
+        protected void compute() {
+            final List<RecursiveAction> filters =
+                new ArrayList<RecursiveAction>();
+            int start = 0;
+            for (int i = 1; i <= trials.size(); i++) {
+                if (i == trials.size() || trials.get(i).getFilter()
+                        != trials.get(start).getFilter()) {
+                    filters.add(filterTask(start, i));
+                    start = i;
+                }
+            }
+            invokeAll(filters);
+        }
+
+        /**
+         * Creates a task filtering the image once and deflating it for a
+         * range of trials sharing the filter type.
+         *
+         * @param from index of the first trial
+         * @param to index after the last trial
+         * @return task
+         */
+        private RecursiveAction filterTask(final int from, final int to) {
+            return new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    if (isExpired()) {
+                        return;
+                    }
+
+                    final byte[] filtered = filter(header, raw,
+                        trials.get(from).getFilter(), pool);
+                    final List<RecursiveAction> deflates =
+                        new ArrayList<RecursiveAction>(to - from);
+                    for (int i = from; i < to; i++) {
+                        deflates.add(deflateTask(filtered, i));
+                    }
+                    invokeAll(deflates);
+                    pool.release(filtered);
+                }
+            };
+        }
+
+        /**
+         * Creates a task deflating filtered data for a single trial.
+         *
+         * @param filtered filtered image data
+         * @param index index of the trial
+         * @return task
+         */
+        private RecursiveAction deflateTask(final byte[] filtered,
+                final int index) {
+            return new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    if (isExpired()) {
+                        return;
+                    }
+
+                    final TrialMatrix.Trial trial = trials.get(index);
+                    final byte[] compressed = deflate(filtered, raw.length,
+                        trial.getLevel(), trial.getStrategy(), limit.get(),
+                        pool);
+                    if (compressed == null) {
+                        return;
+                    }
+
+                    results[index] = compressed;
+                    int current = limit.get();
+                    while (compressed.length < current
+                            && !limit.compareAndSet(current,
+                                compressed.length)) {
+                        current = limit.get();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Checks the deadline, recording when it passed.
+         *
+         * @return <code>true</code> if the deadline passed
+         */
+        private boolean isExpired() {
+            if (System.currentTimeMillis() > deadline) {
+                expired.set(true);
+            }
+            return expired.get();
+        }
+    }
+
+    /**
+     * Inflates and unfilters image data. The result keeps the layout of the
+     * filtered data, i.e. each row is preceded by its filter byte, which is
+     * left as is.
+     *
+     * @param header image header
+     * @param compressed compressed image data
+     * @param pool pool of buffers and compressors
+     * @return unfiltered image data
+     * @throws IOException in case the data is malformed
+     */
+    static byte[] decode(final ImageHeader header, final byte[] compressed,
+            final BufferPool pool) throws IOException {
+        final long rawSize = header.getRawSize();
+        if (rawSize > Integer.MAX_VALUE) {
+            throw new IOException("Image too large");
+        }
+
+        final byte[] raw = inflate(compressed, (int) rawSize, pool);
+        final int unit = header.getFilterUnit();
+        int offset = 0;
+        for (int[] pass : header.getPasses()) {
+            final int rowBytes = pass[0];
+            final byte[][] rows = pool.rows(2, rowBytes);
+            byte[] prior = rows[0];
+            byte[] row = rows[1];
+            for (int y = 0; y < pass[1]; y++) {
+                System.arraycopy(raw, offset + 1, row, 0, rowBytes);
+                PngFilters.unfilter(raw[offset] & 0xff, row, prior, unit);
+                System.arraycopy(row, 0, raw, offset + 1, rowBytes);
+                final byte[] swap = prior;
+                prior = row;
+                row = swap;
+                offset += rowBytes + 1;
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Inflates image data without unfiltering it.
+     *
+     * @param compressed compressed image data
+     * @param size size of the filtered image data
+     * @param pool pool of buffers and compressors
+     * @return filtered image data
+     * @throws IOException in case the data is malformed
+     */
+    static byte[] inflate(final byte[] compressed, final int size,
+            final BufferPool pool) throws IOException {
+        final byte[] raw = new byte[size];
+        final Inflater inflater = pool.acquireInflater();
+        try {
+            inflater.setInput(compressed);
+            int offset = 0;
+            while (offset < raw.length) {
+                final int read = inflater.inflate(raw, offset,
+                    raw.length - offset);
+                if (read == 0 && (inflater.finished()
+                        || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated image data");
+                }
+                offset += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt image data", e);
+        } finally {
+            pool.release(inflater);
+        }
+        return raw;
+    }
+
+    /**
+     * Filters unfiltered image data.
+     *
+     * @param header image header
+     * @param raw unfiltered image data as returned by
+     *        {@link #decode(ImageHeader, byte[], BufferPool)}
+     * @param filter filter type, possibly {@link PngFilters#ADAPTIVE}
+     * @param pool pool of buffers and compressors
+     * @return pooled buffer starting with the filtered image data including
+     *         filter bytes, to be released by the caller
+     */
+    static byte[] filter(final ImageHeader header, final byte[] raw,
+            final int filter, final BufferPool pool) {
+        final byte[] filtered = pool.acquire(raw.length);
+        final int unit = header.getFilterUnit();
+        int offset = 0;
+        for (int[] pass : header.getPasses()) {
+            final int rowBytes = pass[0];
+            final byte[][] rows = pool.rows(4, rowBytes);
+            byte[] prior = rows[0];
+            byte[] row = rows[1];
+            final byte[] out = rows[2];
+            final byte[] scratch = rows[3];
+            for (int y = 0; y < pass[1]; y++) {
+                System.arraycopy(raw, offset + 1, row, 0, rowBytes);
+                filtered[offset] = (byte) PngFilters.filter(filter, row,
+                    prior, unit, out, scratch);
+                System.arraycopy(out, 0, filtered, offset + 1, rowBytes);
+                final byte[] swap = prior;
+                prior = row;
+                row = swap;
+                offset += rowBytes + 1;
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * Deflates data into a pooled buffer, giving up as soon as the result
+     * exceeds a given limit. Only a result within the limit is copied out.
+     *
+     * @param data buffer starting with the data to compress
+     * @param length length of the data
+     * @param deflateLevel deflate level
+     * @param strategy deflate strategy
+     * @param limit size the result must not exceed
+     * @param pool pool of buffers and compressors
+     * @return compressed data, <code>null</code> if exceeding the limit
+     */
+    static byte[] deflate(final byte[] data, final int length,
+            final int deflateLevel, final int strategy, final int limit,
+            final BufferPool pool) {
+        final Deflater deflater = pool.acquireDeflater(deflateLevel,
+            strategy);
+        byte[] out = pool.acquire(Math.min(limit, length + 64) + 1);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    final byte[] larger = pool.acquire(out.length * 2);
+                    System.arraycopy(out, 0, larger, 0, size);
+                    pool.release(out);
+                    out = larger;
+                }
+                size += deflater.deflate(out, size, out.length - size);
+                if (size > limit) {
+                    return null;
+                }
+            }
+            return Arrays.copyOf(out, size);
+        } finally {
+            pool.release(out);
+            pool.release(deflater);
+        }
+    }
+}
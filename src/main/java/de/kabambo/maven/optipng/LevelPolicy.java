@@ -0,0 +1,150 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.Locale;
+
+/**
+ * Chooses the optimization level per image. Images are divided into size
+ * classes; for each class the highest level up to the configured one is
+ * chosen whose bytes saved per second of optimization, as observed by
+ * previous builds, reach a threshold. Levels never used for a class are
+ * tried, so that the history fills up over time.
+ */
+class LevelPolicy {
+    /**
+     * Size classes of images.
+     */
+    enum SizeClass {
+        /**
+         * Images below the small image size, e.g. icons.
+         */
+        SMALL,
+
+        /**
+         * Images between small and large image size.
+         */
+        MEDIUM,
+
+        /**
+         * Images of at least the large image size, e.g. photos.
+         */
+        LARGE
+    }
+
+    /**
+     * Highest level to choose.
+     */
+    private final int maxLevel;
+
+    /**
+     * Size in bytes from which on images are medium.
+     */
+    private final long smallImageSize;
+
+    /**
+     * Size in bytes from which on images are large.
+     */
+    private final long largeImageSize;
+
+    /**
+     * Bytes saved per second a level must have achieved to be chosen.
+     */
+    private final long minGainPerSecond;
+
+    /**
+     * Gains observed by previous builds.
+     */
+    private final GainHistory history;
+
+    /**
+     * Creates a policy.
+     *
+     * @param maxLevel highest level to choose
+     * @param smallImageSize size in bytes from which on images are medium
+     * @param largeImageSize size in bytes from which on images are large
+     * @param minGainPerSecond bytes saved per second a level must have
+     *        achieved to be chosen
+     * @param history gains observed by previous builds
+     */
+    LevelPolicy(final int maxLevel, final long smallImageSize,
+            final long largeImageSize, final long minGainPerSecond,
+            final GainHistory history) {
+        this.maxLevel = maxLevel;
+        this.smallImageSize = smallImageSize;
+        this.largeImageSize = largeImageSize;
+        this.minGainPerSecond = minGainPerSecond;
+        this.history = history;
+    }
+
+    /**
+     * Chooses the level for an image.
+     *
+     * @param size size of the image in bytes
+     * @return optimization level
+     */
+    int levelFor(final long size) {
+        final String sizeClass = name(classify(size));
+        for (int level = maxLevel; level > 0; level--) {
+            final double gain = history.getGainPerSecond(sizeClass, level);
+            if (Double.isNaN(gain) || gain >= minGainPerSecond) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Records the gain of an optimized image.
+     *
+     * @param job optimized image
+     * @param optimizedSize size of the image after optimization
+     */
+    void record(final ImageJob job, final long optimizedSize) {
+        history.record(name(classify(job.getOriginalSize())), job.getLevel(),
+            job.getOriginalSize() - optimizedSize, job.getDuration());
+    }
+
+    /**
+     * @return gains observed so far, including this build
+     */
+    GainHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Determines the size class of an image.
+     *
+     * @param size size of the image in bytes
+     * @return size class
+     */
+    SizeClass classify(final long size) {
+        if (size < smallImageSize) {
+            return SizeClass.SMALL;
+        }
+        return size < largeImageSize ? SizeClass.MEDIUM : SizeClass.LARGE;
+    }
+
+    /**
+     * Names a size class in the history.
+     *
+     * @param sizeClass size class
+     * @return lower case name
+     */
+    private static String name(final SizeClass sizeClass) {
+        return sizeClass.name().toLowerCase(Locale.ROOT);
+    }
+}
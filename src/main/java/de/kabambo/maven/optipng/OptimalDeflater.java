@@ -0,0 +1,1208 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+/**
+ * Deflate encoder spending far more time than zlib for smaller output, in
+ * the manner of Zopfli. All matches are found once per segment of input;
+ * blocks are then parsed optimally by dynamic programming over the cost of
+ * every literal and match under a statistical model of the block, which is
+ * refined from the previous parse over a number of iterations. Input is
+ * split into blocks where separate Huffman codes pay off. The output is a
+ * zlib stream decodable by any inflater.
+ */
+final class OptimalDeflater {
+    /**
+     * Size of the sliding window.
+     */
+    private static final int WINDOW = 32768;
+
+    /**
+     * Shortest match.
+     */
+    private static final int MIN_MATCH = 3;
+
+    /**
+     * Longest match.
+     */
+    private static final int MAX_MATCH = 258;
+
+    /**
+     * Number of bits of the hash of three bytes.
+     */
+    private static final int HASH_BITS = 16;
+
+    /**
+     * Maximum number of earlier positions examined per position.
+     */
+    private static final int MAX_CHAIN = 8192;
+
+    /**
+     * Size of the segments of input whose matches are held in memory at
+     * once.
+     */
+    static final int SEGMENT_SIZE = 1 << 20;
+
+    /**
+     * Minimum number of symbols of a block resulting from splitting.
+     */
+    private static final int MIN_BLOCK_SYMBOLS = 512;
+
+    /**
+     * Number of split points evaluated per block.
+     */
+    private static final int SPLIT_CANDIDATES = 9;
+
+    /**
+     * Iteration from which on statistics are blended with the previous ones
+     * or perturbed when the parse stops improving.
+     */
+    private static final int SETTLING_ITERATIONS = 5;
+
+    /**
+     * Maximum length of literal/length and distance codes.
+     */
+    private static final int MAX_CODE_LENGTH = 15;
+
+    /**
+     * Maximum length of code length codes.
+     */
+    private static final int MAX_CODE_LENGTH_LENGTH = 7;
+
+    /**
+     * Number of literal/length symbols.
+     */
+    private static final int LITERAL_LENGTH_SYMBOLS = 288;
+
+    /**
+     * Number of distance symbols.
+     */
+    private static final int DISTANCE_SYMBOLS = 32;
+
+    /**
+     * Symbol ending a block.
+     */
+    private static final int END_OF_BLOCK = 256;
+
+    /**
+     * Smallest match length per length symbol, starting at 257.
+     */
+    private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11,
+        13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163,
+        195, 227, 258};
+
+    /**
+     * Extra bits per length symbol, starting at 257.
+     */
+    private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1,
+        1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+
+    /**
+     * Smallest distance per distance symbol.
+     */
+    private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17,
+        25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049,
+        3073, 4097, 6145, 8193, 12289, 16385, 24577};
+
+    /**
+     * Extra bits per distance symbol.
+     */
+    private static final int[] DISTANCE_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3,
+        3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13,
+        13};
+
+    /**
+     * Order in which code length code lengths are stored.
+     */
+    private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9,
+        6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    /**
+     * Length symbol per match length, minus 257.
+     */
+    private static final int[] LENGTH_SYMBOL = new int[MAX_MATCH + 1];
+
+    /**
+     * Distance symbol per distance.
+     */
+    private static final byte[] DISTANCE_SYMBOL = new byte[WINDOW + 1];
+
+    /**
+     * Literal/length code lengths of fixed Huffman blocks.
+     */
+    private static final int[] FIXED_LITERAL_LENGTHS =
+        new int[LITERAL_LENGTH_SYMBOLS];
+
+    /**
+     * Distance code lengths of fixed Huffman blocks.
+     */
+    private static final int[] FIXED_DISTANCE_LENGTHS =
+        new int[DISTANCE_SYMBOLS];
+
+    static {
+        for (int symbol = 0; symbol < LENGTH_BASE.length; symbol++) {
+            for (int length = LENGTH_BASE[symbol]; length <= MAX_MATCH
+                    && (symbol + 1 == LENGTH_BASE.length
+                    || length < LENGTH_BASE[symbol + 1]); length++) {
+                LENGTH_SYMBOL[length] = symbol;
+            }
+        }
+        LENGTH_SYMBOL[MAX_MATCH] = LENGTH_BASE.length - 1;
+        for (int symbol = 0; symbol < DISTANCE_BASE.length; symbol++) {
+            final int end = symbol + 1 < DISTANCE_BASE.length
+                ? DISTANCE_BASE[symbol + 1] : WINDOW + 1;
+            for (int distance = DISTANCE_BASE[symbol]; distance < end;
+                    distance++) {
+                DISTANCE_SYMBOL[distance] = (byte) symbol;
+            }
+        }
+        for (int i = 0; i < LITERAL_LENGTH_SYMBOLS; i++) {
+            FIXED_LITERAL_LENGTHS[i] = i < 144 ? 8 : i < 256 ? 9
+                : i < 280 ? 7 : 8;
+        }
+        Arrays.fill(FIXED_DISTANCE_LENGTHS, 5);
+    }
+
+    /**
+     * Data to compress.
+     */
+    private final byte[] data;
+
+    /**
+     * Number of iterations of the parse per block.
+     */
+    private final int iterations;
+
+    /**
+     * Time in milliseconds after which to give up.
+     */
+    private final long deadline;
+
+    /**
+     * Most recent position plus one per hash, zero for none.
+     */
+    private final int[] head = new int[1 << HASH_BITS];
+
+    /**
+     * Previous position plus one with the same hash, per position in the
+     * window.
+     */
+    private final int[] previous = new int[WINDOW];
+
+    /**
+     * Index into {@link #matches} per position of the current segment,
+     * relative to its start, plus a final end index.
+     */
+    private int[] matchStart = new int[0];
+
+    /**
+     * Matches of the current segment as length shifted left by 16 bits or
+     * distance, by increasing length and distance per position.
+     */
+    private int[] matches = new int[1024];
+
+    /**
+     * Start of the current segment.
+     */
+    private int segmentStart;
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param data data to compress
+     * @param iterations number of iterations of the parse per block
+     * @param deadline time in milliseconds after which to give up
+     */
+    private OptimalDeflater(final byte[] data, final int iterations,
+            final long deadline) {
+        this.data = data;
+        this.iterations = Math.max(1, iterations);
+        this.deadline = deadline;
+    }
+
+    /**
+     * Compresses data into a zlib stream.
+     *
+     * @param data data to compress
+     * @param iterations number of iterations of the parse per block, more
+     *        giving smaller output in more time
+     * @param deadline time in milliseconds after which to give up
+     * @return zlib stream, <code>null</code> if the deadline passed
+     */
+    static byte[] deflate(final byte[] data, final int iterations,
+            final long deadline) {
+        return new OptimalDeflater(data, iterations, deadline).deflate();
+    }
+
+    /**
+     * Compresses the data.
+     *
+     * @return zlib stream, <code>null</code> if the deadline passed
+     */
+    private byte[] deflate() {
+        final BitWriter out = new BitWriter(true);
+        // zlib header: deflate with 32K window, maximum compression
+        out.write(0x78, 8);
+        out.write(0xda, 8);
+        if (data.length == 0) {
+            writeBlock(out, new Symbols(0), true);
+        }
+        for (int start = 0; start < data.length; start += SEGMENT_SIZE) {
+            final int end = Math.min(data.length, start + SEGMENT_SIZE);
+            findMatches(start, end);
+            final Symbols initial = parse(start, end,
+                CostModel.fixed());
+            final List<Integer> splits = new ArrayList<Integer>();
+            split(initial, 0, initial.size, splits);
+            splits.add(initial.size);
+
+            int from = 0;
+            for (int to : splits) {
+                final int blockStart = initial.positionOf(from);
+                final int blockEnd = to == initial.size ? end
+                    : initial.positionOf(to);
+                final Symbols best = optimize(blockStart, blockEnd,
+                    initial.histogram(from, to), literals(blockStart,
+                    blockEnd));
+                if (best == null) {
+                    return null;
+                }
+                writeBlock(out, best, end == data.length && to == initial.size);
+                from = to;
+            }
+        }
+        out.align();
+        final Adler32 adler = new Adler32();
+        adler.update(data);
+        final long checksum = adler.getValue();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write((int) (checksum >>> shift) & 0xff, 8);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Finds for every position of a segment the closest match of each
+     * length, keeping only matches longer than all closer ones.
+     *
+     * @param start start of the segment
+     * @param end end of the segment
+     */
+    private void findMatches(final int start, final int end) {
+        segmentStart = start;
+        if (matchStart.length < end - start + 1) {
+            matchStart = new int[end - start + 1];
+        }
+        int count = 0;
+        for (int pos = start; pos < end; pos++) {
+            matchStart[pos - start] = count;
+            final int maxLength = Math.min(MAX_MATCH, data.length - pos);
+            if (maxLength < MIN_MATCH) {
+                continue;
+            }
+
+            final int hash = hash(pos);
+            int candidate = head[hash] - 1;
+            int best = MIN_MATCH - 1;
+            int hits = 0;
+            while (candidate >= 0 && pos - candidate <= WINDOW
+                    && hits++ < MAX_CHAIN) {
+                if (data[candidate + best] == data[pos + best]) {
+                    int length = 0;
+                    while (length < maxLength
+                            && data[candidate + length] == data[pos + length]) {
+                        length++;
+                    }
+                    if (length > best) {
+                        if (count == matches.length) {
+                            matches = Arrays.copyOf(matches, count * 2);
+                        }
+                        matches[count++] = length << 16 | (pos - candidate);
+                        best = length;
+                        if (length == maxLength) {
+                            break;
+                        }
+                    }
+                }
+                candidate = previous[candidate & (WINDOW - 1)] - 1;
+            }
+            previous[pos & (WINDOW - 1)] = head[hash];
+            head[hash] = pos + 1;
+        }
+        matchStart[end - start] = count;
+    }
+
+    /**
+     * Parses a range of the current segment at minimum cost.
+     *
+     * @param start start of the range
+     * @param end end of the range
+     * @param model cost of symbols
+     * @return symbols encoding the range
+     */
+    private Symbols parse(final int start, final int end,
+            final CostModel model) {
+        final int size = end - start;
+        final double[] cost = new double[size + 1];
+        final int[] step = new int[size + 1];
+        Arrays.fill(cost, Double.POSITIVE_INFINITY);
+        cost[0] = 0;
+        for (int i = 0; i < size; i++) {
+            final double here = cost[i];
+            final double literal = here + model.literal[data[start + i]
+                & 0xff];
+            if (literal < cost[i + 1]) {
+                cost[i + 1] = literal;
+                step[i + 1] = 1;
+            }
+
+            final int offset = start + i - segmentStart;
+            int shorter = MIN_MATCH - 1;
+            for (int m = matchStart[offset]; m < matchStart[offset + 1];
+                    m++) {
+                final int length = Math.min(matches[m] >>> 16, size - i);
+                final int distance = matches[m] & 0xffff;
+                final double base = here + model.distance(distance);
+                for (int l = shorter + 1; l <= length; l++) {
+                    final double total = base + model.length[l];
+                    if (total < cost[i + l]) {
+                        cost[i + l] = total;
+                        step[i + l] = l << 16 | distance;
+                    }
+                }
+                shorter = length;
+                if (length == size - i) {
+                    break;
+                }
+            }
+        }
+
+        int count = 0;
+        for (int i = size; i > 0; i -= stepLength(step[i])) {
+            count++;
+        }
+        final Symbols symbols = new Symbols(count);
+        symbols.start = start;
+        int index = count;
+        for (int i = size; i > 0; i -= stepLength(step[i])) {
+            index--;
+            if (step[i] == 1) {
+                symbols.lengths[index] = data[start + i - 1] & 0xff;
+            } else {
+                symbols.lengths[index] = step[i] >>> 16;
+                symbols.distances[index] = step[i] & 0xffff;
+            }
+        }
+        symbols.size = count;
+        return symbols;
+    }
+
+    /**
+     * Counts the bytes of a range as if encoded by literals only.
+     *
+     * @param start start of the range
+     * @param end end of the range
+     * @return literal/length and distance symbol frequencies
+     */
+    private long[][] literals(final int start, final int end) {
+        final long[][] counts = {new long[LITERAL_LENGTH_SYMBOLS],
+            new long[DISTANCE_SYMBOLS]};
+        for (int i = start; i < end; i++) {
+            counts[0][data[i] & 0xff]++;
+        }
+        counts[0][END_OF_BLOCK]++;
+        return counts;
+    }
+
+    /**
+     * Iteratively parses a block starting from each of several statistics
+     * and keeps the smallest result. Starting from a parse favoring matches
+     * as well as from literals only avoids getting stuck with too many or too
+     * few short matches.
+     *
+     * @param start start of the block
+     * @param end end of the block
+     * @param seeds symbol frequencies to start from
+     * @return smallest parse, <code>null</code> if the deadline passed
+     */
+    private Symbols optimize(final int start, final int end,
+            final long[][]... seeds) {
+        Symbols best = null;
+        long bestBits = Long.MAX_VALUE;
+        for (long[][] seed : seeds) {
+            final Symbols symbols = iterate(start, end, seed);
+            if (symbols == null) {
+                return null;
+            }
+            final long bits = blockBits(symbols.histogram(0, symbols.size));
+            if (bits < bestBits) {
+                best = symbols;
+                bestBits = bits;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Iteratively parses a block, each time with the statistics of the
+     * previous parse, and keeps the smallest result.
+     *
+     * @param start start of the block
+     * @param end end of the block
+     * @param histogram symbol frequencies to start from
+     * @return smallest parse, <code>null</code> if the deadline passed
+     */
+    private Symbols iterate(final int start, final int end,
+            final long[][] histogram) {
+        final Random random = new Random(start);
+        double[][] stats = toDoubles(histogram);
+        double[][] bestStats = stats;
+        Symbols best = null;
+        long bestBits = Long.MAX_VALUE;
+        long lastBits = -1;
+        boolean perturbed = false;
+        for (int i = 0; i < iterations; i++) {
+            if (System.currentTimeMillis() > deadline) {
+                return null;
+            }
+
+            final Symbols symbols = parse(start, end,
+                CostModel.fromStatistics(stats));
+            final long[][] counts = symbols.histogram(0, symbols.size);
+            final long bits = blockBits(counts);
+            if (bits < bestBits) {
+                best = symbols;
+                bestBits = bits;
+                bestStats = stats;
+            }
+
+            final double[][] last = stats;
+            stats = toDoubles(counts);
+            if (perturbed) {
+                for (int t = 0; t < stats.length; t++) {
+                    for (int s = 0; s < stats[t].length; s++) {
+                        stats[t][s] += last[t][s] / 2;
+                    }
+                }
+            }
+            if (i > SETTLING_ITERATIONS && bits == lastBits) {
+                stats = perturb(bestStats, random);
+                perturbed = true;
+            }
+            lastBits = bits;
+        }
+        return best;
+    }
+
+    /**
+     * Recursively splits symbols into blocks wherever separate Huffman
+     * codes make them smaller.
+     *
+     * @param symbols symbols of a segment
+     * @param from index of the first symbol of the range
+     * @param to index after the last symbol of the range
+     * @param splits list receiving the split points in order
+     */
+    private static void split(final Symbols symbols, final int from,
+            final int to, final List<Integer> splits) {
+        if (to - from < 2 * MIN_BLOCK_SYMBOLS) {
+            return;
+        }
+
+        long best = blockBits(symbols.histogram(from, to));
+        int bestSplit = -1;
+        for (int k = 1; k <= SPLIT_CANDIDATES; k++) {
+            final int at = from + (int) ((long) (to - from) * k
+                / (SPLIT_CANDIDATES + 1));
+            if (at - from < MIN_BLOCK_SYMBOLS || to - at < MIN_BLOCK_SYMBOLS) {
+                continue;
+            }
+            final long bits = blockBits(symbols.histogram(from, at))
+                + blockBits(symbols.histogram(at, to));
+            if (bits < best) {
+                best = bits;
+                bestSplit = at;
+            }
+        }
+        if (bestSplit >= 0) {
+            split(symbols, from, bestSplit, splits);
+            splits.add(bestSplit);
+            split(symbols, bestSplit, to, splits);
+        }
+    }
+
+    /**
+     * Writes a block with dynamic or fixed Huffman codes, whichever is
+     * smaller.
+     *
+     * @param out writer
+     * @param symbols symbols of the block
+     * @param last whether this is the final block
+     */
+    private static void writeBlock(final BitWriter out, final Symbols symbols,
+            final boolean last) {
+        final long[][] counts = symbols.histogram(0, symbols.size);
+        final int[] literalLengths = codeLengths(counts[0], MAX_CODE_LENGTH);
+        final int[] distanceLengths = codeLengths(counts[1], MAX_CODE_LENGTH);
+        final boolean dynamic = dynamicBits(counts, literalLengths,
+            distanceLengths) < fixedBits(counts);
+
+        out.write(last ? 1 : 0, 1);
+        out.write(dynamic ? 2 : 1, 2);
+        final int[] literals = dynamic ? literalLengths
+            : FIXED_LITERAL_LENGTHS;
+        final int[] distances = dynamic ? distanceLengths
+            : FIXED_DISTANCE_LENGTHS;
+        if (dynamic) {
+            writeHeader(out, literals, distances);
+        }
+
+        final int[] literalCodes = canonicalCodes(literals);
+        final int[] distanceCodes = canonicalCodes(distances);
+        for (int i = 0; i < symbols.size; i++) {
+            final int length = symbols.lengths[i];
+            final int distance = symbols.distances[i];
+            if (distance == 0) {
+                out.writeCode(literalCodes[length], literals[length]);
+                continue;
+            }
+            final int lengthSymbol = LENGTH_SYMBOL[length];
+            out.writeCode(literalCodes[257 + lengthSymbol],
+                literals[257 + lengthSymbol]);
+            out.write(length - LENGTH_BASE[lengthSymbol],
+                LENGTH_EXTRA[lengthSymbol]);
+            final int distanceSymbol = DISTANCE_SYMBOL[distance];
+            out.writeCode(distanceCodes[distanceSymbol],
+                distances[distanceSymbol]);
+            out.write(distance - DISTANCE_BASE[distanceSymbol],
+                DISTANCE_EXTRA[distanceSymbol]);
+        }
+        out.writeCode(literalCodes[END_OF_BLOCK], literals[END_OF_BLOCK]);
+    }
+
+    /**
+     * Writes the code lengths of a dynamic block, run-length encoded.
+     *
+     * @param out writer, possibly only counting bits
+     * @param literals literal/length code lengths
+     * @param distances distance code lengths
+     */
+    private static void writeHeader(final BitWriter out, final int[] literals,
+            final int[] distances) {
+        int literalCount = 286;
+        while (literalCount > 257 && literals[literalCount - 1] == 0) {
+            literalCount--;
+        }
+        int distanceCount = 30;
+        while (distanceCount > 1 && distances[distanceCount - 1] == 0) {
+            distanceCount--;
+        }
+        final int[] all = new int[literalCount + distanceCount];
+        System.arraycopy(literals, 0, all, 0, literalCount);
+        System.arraycopy(distances, 0, all, literalCount, distanceCount);
+
+        final int[] runs = new int[all.length * 2];
+        int runCount = 0;
+        final long[] counts = new long[19];
+        for (int i = 0; i < all.length;) {
+            final int value = all[i];
+            int run = 1;
+            while (i + run < all.length && all[i + run] == value) {
+                run++;
+            }
+            i += run;
+            if (value == 0) {
+                while (run >= 11) {
+                    final int r = Math.min(run, 138);
+                    runs[runCount++] = 18 << 8 | (r - 11);
+                    run -= r;
+                }
+                if (run >= 3) {
+                    runs[runCount++] = 17 << 8 | (run - 3);
+                    run = 0;
+                }
+            } else {
+                runs[runCount++] = value << 8;
+                run--;
+                while (run >= 3) {
+                    final int r = Math.min(run, 6);
+                    runs[runCount++] = 16 << 8 | (r - 3);
+                    run -= r;
+                }
+            }
+            for (; run > 0; run--) {
+                runs[runCount++] = value << 8;
+            }
+        }
+        for (int i = 0; i < runCount; i++) {
+            counts[runs[i] >>> 8]++;
+        }
+
+        final int[] lengths = codeLengths(counts, MAX_CODE_LENGTH_LENGTH);
+        final int[] codes = canonicalCodes(lengths);
+        int codeCount = 19;
+        while (codeCount > 4
+                && lengths[CODE_LENGTH_ORDER[codeCount - 1]] == 0) {
+            codeCount--;
+        }
+        out.write(literalCount - 257, 5);
+        out.write(distanceCount - 1, 5);
+        out.write(codeCount - 4, 4);
+        for (int i = 0; i < codeCount; i++) {
+            out.write(lengths[CODE_LENGTH_ORDER[i]], 3);
+        }
+        for (int i = 0; i < runCount; i++) {
+            final int symbol = runs[i] >>> 8;
+            out.writeCode(codes[symbol], lengths[symbol]);
+            if (symbol == 16) {
+                out.write(runs[i] & 0xff, 2);
+            } else if (symbol == 17) {
+                out.write(runs[i] & 0xff, 3);
+            } else if (symbol == 18) {
+                out.write(runs[i] & 0xff, 7);
+            }
+        }
+    }
+
+    /**
+     * Computes the size of a block encoded with the better of dynamic and
+     * fixed Huffman codes.
+     *
+     * @param counts literal/length and distance symbol frequencies
+     * @return size in bits
+     */
+    private static long blockBits(final long[][] counts) {
+        return Math.min(dynamicBits(counts, codeLengths(counts[0],
+            MAX_CODE_LENGTH), codeLengths(counts[1], MAX_CODE_LENGTH)),
+            fixedBits(counts));
+    }
+
+    /**
+     * Computes the size of a block with dynamic Huffman codes.
+     *
+     * @param counts literal/length and distance symbol frequencies
+     * @param literals literal/length code lengths
+     * @param distances distance code lengths
+     * @return size in bits
+     */
+    private static long dynamicBits(final long[][] counts,
+            final int[] literals, final int[] distances) {
+        final BitWriter header = new BitWriter(false);
+        writeHeader(header, literals, distances);
+        return 3 + header.bits() + dataBits(counts, literals, distances);
+    }
+
+    /**
+     * Computes the size of a block with fixed Huffman codes.
+     *
+     * @param counts literal/length and distance symbol frequencies
+     * @return size in bits
+     */
+    private static long fixedBits(final long[][] counts) {
+        return 3 + dataBits(counts, FIXED_LITERAL_LENGTHS,
+            FIXED_DISTANCE_LENGTHS);
+    }
+
+    /**
+     * Computes the size of the symbols of a block.
+     *
+     * @param counts literal/length and distance symbol frequencies
+     * @param literals literal/length code lengths
+     * @param distances distance code lengths
+     * @return size in bits including extra bits
+     */
+    private static long dataBits(final long[][] counts, final int[] literals,
+            final int[] distances) {
+        long bits = 0;
+        for (int i = 0; i < 286; i++) {
+            bits += counts[0][i] * (literals[i]
+                + (i > END_OF_BLOCK ? LENGTH_EXTRA[i - 257] : 0));
+        }
+        for (int i = 0; i < 30; i++) {
+            bits += counts[1][i] * (distances[i] + DISTANCE_EXTRA[i]);
+        }
+        return bits;
+    }
+
+    /**
+     * Computes Huffman code lengths limited to a maximum length. At least
+     * two symbols get a code, so that the code is complete.
+     *
+     * @param counts symbol frequencies
+     * @param limit maximum code length
+     * @return code length per symbol, zero for unused symbols
+     */
+    static int[] codeLengths(final long[] counts, final int limit) {
+        final int[] lengths = new int[counts.length];
+        final PriorityQueue<long[]> queue = new PriorityQueue<long[]>(
+            counts.length, new java.util.Comparator<long[]>() {
+                @Override
+                public int compare(final long[] a, final long[] b) {
+                    return a[0] != b[0] ? Long.compare(a[0], b[0])
+                        : Long.compare(a[1], b[1]);
+                }
+            });
+        // nodes: weight, id; ids below counts.length denote symbols
+        final List<int[]> children = new ArrayList<int[]>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                queue.add(new long[] {counts[i], i});
+            }
+        }
+        for (int i = 0; queue.size() < 2 && i < counts.length; i++) {
+            if (counts[i] == 0) {
+                queue.add(new long[] {1, i});
+            }
+        }
+        while (queue.size() > 1) {
+            final long[] a = queue.poll();
+            final long[] b = queue.poll();
+            children.add(new int[] {(int) a[1], (int) b[1]});
+            queue.add(new long[] {a[0] + b[0],
+                counts.length + children.size() - 1});
+        }
+        assignDepths(children, counts.length, (int) queue.poll()[1], 0,
+            lengths);
+
+        limit(lengths, counts, limit);
+        return lengths;
+    }
+
+    /**
+     * Assigns code lengths by the depth of leaves in a Huffman tree.
+     *
+     * @param children pairs of children per inner node
+     * @param symbols number of symbols
+     * @param node node to start at
+     * @param depth depth of the node
+     * @param lengths code lengths to fill
+     */
+    private static void assignDepths(final List<int[]> children,
+            final int symbols, final int node, final int depth,
+            final int[] lengths) {
+        if (node < symbols) {
+            lengths[node] = Math.max(1, depth);
+            return;
+        }
+        final int[] pair = children.get(node - symbols);
+        assignDepths(children, symbols, pair[0], depth + 1, lengths);
+        assignDepths(children, symbols, pair[1], depth + 1, lengths);
+    }
+
+    /**
+     * Limits code lengths, lengthening the codes of the least frequent
+     * shorter symbols until the code fits and shortening codes again while
+     * space is left, so that the code stays complete.
+     *
+     * @param lengths code lengths to limit
+     * @param counts symbol frequencies
+     * @param limit maximum code length
+     */
+    private static void limit(final int[] lengths, final long[] counts,
+            final int limit) {
+        final long capacity = 1L << limit;
+        long used = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] > limit) {
+                lengths[i] = limit;
+            }
+            if (lengths[i] > 0) {
+                used += 1L << (limit - lengths[i]);
+            }
+        }
+        while (used > capacity) {
+            int victim = -1;
+            for (int i = 0; i < lengths.length; i++) {
+                if (lengths[i] > 0 && lengths[i] < limit && (victim < 0
+                        || lengths[i] > lengths[victim]
+                        || lengths[i] == lengths[victim]
+                        && counts[i] < counts[victim])) {
+                    victim = i;
+                }
+            }
+            lengths[victim]++;
+            used -= 1L << (limit - lengths[victim]);
+        }
+        while (used < capacity) {
+            int candidate = -1;
+            for (int i = 0; i < lengths.length; i++) {
+                if (lengths[i] > 1 && used + (1L << (limit - lengths[i]))
+                        <= capacity && (candidate < 0
+                        || counts[i] > counts[candidate])) {
+                    candidate = i;
+                }
+            }
+            if (candidate < 0) {
+                break;
+            }
+            used += 1L << (limit - lengths[candidate]);
+            lengths[candidate]--;
+        }
+    }
+
+    /**
+     * Assigns canonical Huffman codes.
+     *
+     * @param lengths code length per symbol
+     * @return code per symbol
+     */
+    private static int[] canonicalCodes(final int[] lengths) {
+        final int[] perLength = new int[MAX_CODE_LENGTH + 2];
+        for (int length : lengths) {
+            perLength[length]++;
+        }
+        perLength[0] = 0;
+        final int[] next = new int[MAX_CODE_LENGTH + 2];
+        int code = 0;
+        for (int bits = 1; bits <= MAX_CODE_LENGTH + 1; bits++) {
+            code = (code + perLength[bits - 1]) << 1;
+            next[bits] = code;
+        }
+        final int[] codes = new int[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] > 0) {
+                codes[i] = next[lengths[i]]++;
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Randomly replaces statistics by others, to escape a parse which stopped
+     * improving.
+     *
+     * @param stats literal/length and distance statistics
+     * @param random source of randomness
+     * @return perturbed copy
+     */
+    private static double[][] perturb(final double[][] stats,
+            final Random random) {
+        final double[][] perturbed = new double[stats.length][];
+        for (int t = 0; t < stats.length; t++) {
+            perturbed[t] = stats[t].clone();
+            for (int s = 0; s < perturbed[t].length; s++) {
+                if (random.nextInt(3) == 0) {
+                    perturbed[t][s] = stats[t][random.nextInt(
+                        stats[t].length)];
+                }
+            }
+        }
+        return perturbed;
+    }
+
+    /**
+     * Converts symbol frequencies to statistics.
+     *
+     * @param counts literal/length and distance symbol frequencies
+     * @return statistics
+     */
+    private static double[][] toDoubles(final long[][] counts) {
+        final double[][] stats = new double[counts.length][];
+        for (int t = 0; t < counts.length; t++) {
+            stats[t] = new double[counts[t].length];
+            for (int s = 0; s < counts[t].length; s++) {
+                stats[t][s] = counts[t][s];
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Extracts the number of bytes covered by a step of a parse.
+     *
+     * @param step literal marker or packed match
+     * @return length
+     */
+    private static int stepLength(final int step) {
+        return step == 1 ? 1 : step >>> 16;
+    }
+
+    /**
+     * Hashes the three bytes at a position.
+     *
+     * @param pos position
+     * @return hash
+     */
+    private int hash(final int pos) {
+        return ((data[pos] & 0xff) << 8 ^ (data[pos + 1] & 0xff) << 4
+            ^ (data[pos + 2] & 0xff) * 0x9e5) & ((1 << HASH_BITS) - 1);
+    }
+
+    /**
+     * Estimated cost in bits of every literal, length and distance.
+     */
+    private static final class CostModel {
+        /**
+         * Cost per literal.
+         */
+        private final double[] literal = new double[256];
+
+        /**
+         * Cost per match length, including extra bits.
+         */
+        private final double[] length = new double[MAX_MATCH + 1];
+
+        /**
+         * Cost per distance symbol, including extra bits.
+         */
+        private final double[] distanceSymbol = new double[30];
+
+        /**
+         * Creates the model of fixed Huffman codes.
+         *
+         * @return model
+         */
+        static CostModel fixed() {
+            final double[] literals = new double[LITERAL_LENGTH_SYMBOLS];
+            for (int i = 0; i < literals.length; i++) {
+                literals[i] = FIXED_LITERAL_LENGTHS[i];
+            }
+            final double[] distances = new double[30];
+            Arrays.fill(distances, 5);
+            return new CostModel(literals, distances);
+        }
+
+        /**
+         * Creates a model from symbol statistics, a symbol costing the
+         * binary logarithm of its inverse probability. Unused symbols cost as
+         * much as symbols used once.
+         *
+         * @param stats literal/length and distance statistics
+         * @return model
+         */
+        static CostModel fromStatistics(final double[][] stats) {
+            return new CostModel(entropy(stats[0]), entropy(stats[1]));
+        }
+
+        /**
+         * Creates a model.
+         *
+         * @param literals cost per literal/length symbol
+         * @param distances cost per distance symbol
+         */
+        private CostModel(final double[] literals, final double[] distances) {
+            System.arraycopy(literals, 0, literal, 0, 256);
+            for (int l = MIN_MATCH; l <= MAX_MATCH; l++) {
+                final int symbol = LENGTH_SYMBOL[l];
+                length[l] = literals[257 + symbol] + LENGTH_EXTRA[symbol];
+            }
+            for (int d = 0; d < distanceSymbol.length; d++) {
+                distanceSymbol[d] = distances[d] + DISTANCE_EXTRA[d];
+            }
+        }
+
+        /**
+         * @param distance match distance
+         * @return cost of the distance
+         */
+        double distance(final int distance) {
+            return distanceSymbol[DISTANCE_SYMBOL[distance]];
+        }
+
+        /**
+         * Computes the cost of symbols from their frequencies.
+         *
+         * @param counts symbol frequencies
+         * @return cost per symbol in bits
+         */
+        private static double[] entropy(final double[] counts) {
+            double sum = 0;
+            for (double count : counts) {
+                sum += count;
+            }
+            final double log2Sum = Math.log(Math.max(1, sum)) / Math.log(2);
+            final double[] cost = new double[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                cost[i] = counts[i] <= 0 ? log2Sum
+                    : log2Sum - Math.log(counts[i]) / Math.log(2);
+            }
+            return cost;
+        }
+    }
+
+    /**
+     * Literals and matches encoding a range of the input.
+     */
+    private static final class Symbols {
+        /**
+         * Literal byte, or length of a match.
+         */
+        private final int[] lengths;
+
+        /**
+         * Distance of a match, zero for literals.
+         */
+        private final int[] distances;
+
+        /**
+         * Number of symbols.
+         */
+        private int size;
+
+        /**
+         * Position of the first symbol in the input.
+         */
+        private int start;
+
+        /**
+         * Creates an empty sequence.
+         *
+         * @param capacity number of symbols
+         */
+        Symbols(final int capacity) {
+            lengths = new int[capacity];
+            distances = new int[capacity];
+        }
+
+        /**
+         * Determines the position in the input a symbol encodes.
+         *
+         * @param index index of the symbol
+         * @return position
+         */
+        int positionOf(final int index) {
+            int position = start;
+            for (int i = 0; i < index; i++) {
+                position += distances[i] == 0 ? 1 : lengths[i];
+            }
+            return position;
+        }
+
+        /**
+         * Counts the symbols of a range, including an end of block symbol.
+         *
+         * @param from index of the first symbol
+         * @param to index after the last symbol
+         * @return literal/length and distance symbol frequencies
+         */
+        long[][] histogram(final int from, final int to) {
+            final long[][] counts = {new long[LITERAL_LENGTH_SYMBOLS],
+                new long[DISTANCE_SYMBOLS]};
+            for (int i = from; i < to; i++) {
+                if (distances[i] == 0) {
+                    counts[0][lengths[i]]++;
+                } else {
+                    counts[0][257 + LENGTH_SYMBOL[lengths[i]]]++;
+                    counts[1][DISTANCE_SYMBOL[distances[i]]]++;
+                }
+            }
+            counts[0][END_OF_BLOCK]++;
+            return counts;
+        }
+    }
+
+    /**
+     * Writes bits least significant first, or merely counts them.
+     */
+    private static final class BitWriter {
+        /**
+         * Bytes written, <code>null</code> if only counting.
+         */
+        private byte[] buffer;
+
+        /**
+         * Number of bits written.
+         */
+        private long bits;
+
+        /**
+         * Bits not yet forming a complete byte.
+         */
+        private int pending;
+
+        /**
+         * Creates a writer.
+         *
+         * @param store whether to store the bits rather than only counting
+         *        them
+         */
+        BitWriter(final boolean store) {
+            buffer = store ? new byte[4096] : null;
+        }
+
+        /**
+         * Writes a value least significant bit first.
+         *
+         * @param value value
+         * @param count number of bits
+         */
+        void write(final int value, final int count) {
+            if (buffer == null) {
+                bits += count;
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                pending |= (value >>> i & 1) << (int) (bits & 7);
+                bits++;
+                if ((bits & 7) == 0) {
+                    put();
+                }
+            }
+        }
+
+        /**
+         * Writes a Huffman code most significant bit first.
+         *
+         * @param code code
+         * @param length code length
+         */
+        void writeCode(final int code, final int length) {
+            write(Integer.reverse(code) >>> (32 - length), length);
+        }
+
+        /**
+         * Pads the output to a byte boundary.
+         */
+        void align() {
+            if ((bits & 7) != 0) {
+                write(0, 8 - (int) (bits & 7));
+            }
+        }
+
+        /**
+         * @return number of bits written
+         */
+        long bits() {
+            return bits;
+        }
+
+        /**
+         * @return bytes written, after aligning
+         */
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (int) (bits / 8));
+        }
+
+        /**
+         * Appends the pending byte.
+         */
+        private void put() {
+            final int index = (int) (bits / 8) - 1;
+            if (index == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[index] = (byte) pending;
+            pending = 0;
+        }
+    }
+}
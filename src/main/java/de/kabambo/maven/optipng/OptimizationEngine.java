@@ -0,0 +1,45 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.List;
+
+/**
+ * Strategy for optimizing images.
+ */
+interface OptimizationEngine {
+    /**
+     * Identifies the engine including its version. Results of different
+     * engines are cached separately.
+     *
+     * @return identifier
+     */
+    String getIdentifier();
+
+    /**
+     * Optimizes the working copies of a batch of images in place. Images
+     * which could not be optimized within their timeout are marked as failed
+     * or timed out; their working copies must not be used.
+     *
+     * @param jobs images to optimize
+     */
+    void optimize(List<ImageJob> jobs);
+
+    /**
+     * Releases resources held by the engine.
+     */
+    void shutdown();
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A private ancillary chunk recording the level and engine an image was
+ * optimized with, along with the settings affecting the engine's results
+ * such as the chunks stripped, so that it can be skipped by later builds
+ * without being optimized again. The chunk is placed right after the image
+ * header and is not safe to copy, so editors dropping unknown chunks on
+ * modification invalidate it.
+ */
+final class OptimizationMarker {
+    /**
+     * Chunk type: ancillary, private, not safe to copy.
+     */
+    static final String TYPE = "opTI";
+
+    /**
+     * Separates level and engine in the chunk data.
+     */
+    private static final char SEPARATOR = ' ';
+
+    /**
+     * Length of chunk length and type preceding the chunk data.
+     */
+    private static final int CHUNK_HEADER_LENGTH = 8;
+
+    /**
+     * Length of the CRC following the chunk data.
+     */
+    private static final int CRC_LENGTH = 4;
+
+    /**
+     * Optimization level the image was optimized with.
+     */
+    private final int level;
+
+    /**
+     * Identifier of the engine and settings the image was optimized with.
+     */
+    private final String engine;
+
+    /**
+     * Creates a marker.
+     *
+     * @param level optimization level
+     * @param engine engine identifier, including its version and settings
+     */
+    OptimizationMarker(final int level, final String engine) {
+        this.level = level;
+        this.engine = engine;
+    }
+
+    /**
+     * Reads the marker of an image. Only chunk headers are read up to the
+     * first image data chunk, skipping all chunk data but the marker's.
+     *
+     * @param image image to read
+     * @return marker, <code>null</code> if the image is unmarked or not a
+     *         PNG file
+     * @throws IOException in case reading failed
+     */
+    static OptimizationMarker read(final File image) throws IOException {
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(image), 64)) {
+            final DataInputStream data = new DataInputStream(in);
+            final byte[] signature = new byte[PngFile.SIGNATURE.length];
+            data.readFully(signature);
+            if (!Arrays.equals(signature, PngFile.SIGNATURE)) {
+                return null;
+            }
+
+            final byte[] type = new byte[4];
+            while (true) {
+                final int length = data.readInt();
+                data.readFully(type);
+                final String chunkType = new String(type,
+                    StandardCharsets.US_ASCII);
+                if (length < 0 || PngChunk.IDAT.equals(chunkType)
+                        || PngChunk.IEND.equals(chunkType)) {
+                    return null;
+                }
+                if (TYPE.equals(chunkType)) {
+                    final byte[] content = new byte[length];
+                    data.readFully(content);
+                    return parse(new String(content,
+                        StandardCharsets.US_ASCII));
+                }
+                skipFully(data, (long) length + CRC_LENGTH);
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the marker into an image, replacing any previous one.
+     *
+     * @param image image to mark
+     * @throws IOException in case the image could not be read or written
+     */
+    void mark(final File image) throws IOException {
+        final PngFile png;
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(image))) {
+            png = PngFile.read(in);
+        }
+
+        final List<PngChunk> chunks = new ArrayList<PngChunk>();
+        for (PngChunk chunk : png.getChunks()) {
+            if (!TYPE.equals(chunk.getType())) {
+                chunks.add(chunk);
+            }
+            if (PngChunk.IHDR.equals(chunk.getType())) {
+                chunks.add(toChunk());
+            }
+        }
+
+        final Path temp = Files.createTempFile(
+            image.getAbsoluteFile().getParentFile().toPath(), null,
+            AtomicFiles.TEMP_SUFFIX);
+        try {
+            try (OutputStream out = new BufferedOutputStream(
+                    Files.newOutputStream(temp))) {
+                new PngFile(chunks).write(out);
+            }
+            AtomicFiles.move(temp, image.toPath());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Checks whether an image carrying this marker needs no optimization at
+     * a level with an engine.
+     *
+     * @param requestedLevel level to optimize with
+     * @param requestedEngine identifier of the engine and settings to
+     *        optimize with
+     * @return <code>true</code> if the image was optimized by the same
+     *         engine with the same settings at the same or a higher level
+     */
+    boolean covers(final int requestedLevel, final String requestedEngine) {
+        return level >= requestedLevel && engine.equals(requestedEngine);
+    }
+
+    /**
+     * @return marker as chunk
+     */
+    PngChunk toChunk() {
+        return new PngChunk(TYPE, (level + String.valueOf(SEPARATOR) + engine)
+            .getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parses marker data.
+     *
+     * @param content chunk data
+     * @return marker, <code>null</code> if malformed
+     */
+    private static OptimizationMarker parse(final String content) {
+        final int separator = content.indexOf(SEPARATOR);
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            return new OptimizationMarker(Integer.parseInt(
+                content.substring(0, separator)),
+                content.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Skips bytes of a stream.
+     *
+     * @param in stream to skip
+     * @param count number of bytes to skip
+     * @throws IOException in case the stream ended prematurely
+     */
+    private static void skipFully(final InputStream in, final long count)
+            throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+}
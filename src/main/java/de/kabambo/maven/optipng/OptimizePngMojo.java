@@ -16,250 +16,1743 @@
 package de.kabambo.maven.optipng;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
-import org.apache.maven.plugin.logging.Log;
 
 /**
- * Goal which optimizes PNG images.
+ * Goal which optimizes PNG images. Executions may run concurrently in a
+ * parallel reactor build; they share a limit on concurrent optimizations.
  *
  * @goal optimize
  * @phase compile
+ * @threadSafe
  */
 public class OptimizePngMojo extends AbstractMojo {
     /**
-     * File extension of PNG images.
+     * File extension of working copies.
      */
     private static final String PNG_SUFFIX = ".png";
 
     /**
-     * Optipng executable.
+     * Additional timeout in seconds per optimization level.
      */
-    private static final String OPTIPNG_EXE = "optipng";
+    private static final int LEVEL_TIMEOUT = 5;
 
     /**
-     * Optipng parameter specifying compression level.
+     * Number of bytes per megabyte.
      */
-    private static final String OPTIPNG_COMPRESSION_LEVEL_PARAM = "-o";
+    private static final float BYTES_PER_MEGABYTE = 1024f * 1024f;
 
     /**
-     * Timeout in seconds for processes to terminate.
+     * Lower bound for optimization level.
      */
-    private static final int POOL_TIMEOUT = 10;
+    private static final int LEVEL_LOWER_BOUND = 0;
+
+    /**
+     * Upper bound for optimization level.
+     */
+    private static final int LEVEL_UPPER_BOUND = 7;
+
+    /**
+     * Time in milliseconds outputs which are not fully optimized are dated
+     * before their image, exceeding the timestamp resolution of common file
+     * systems.
+     */
+    private static final long EXPIRED_OFFSET = 2000;
+
+    /**
+     * Suffix marking a thread count as a multiple of available processors.
+     */
+    private static final String THREADS_PER_CORE_SUFFIX = "C";
+
+    /**
+     * List of directories to consider.
+     *
+     * @parameter
+     * @required
+     */
+    private List<String> pngDirectories;
+
+    /**
+     * Ant-style patterns of images to optimize, relative to each of the
+     * directories and matched case-insensitively. Defaults to
+     * <code>**&#47;*.png</code>.
+     *
+     * @parameter
+     */
+    private List<String> includes;
+
+    /**
+     * Ant-style patterns of images not to optimize, relative to each of the
+     * directories and matched case-insensitively.
+     *
+     * @parameter
+     */
+    private List<String> excludes;
+
+    /**
+     * Whether to follow symbolic links while searching for images. If
+     * disabled, symbolic links are ignored.
+     *
+     * @parameter property="optipng.followSymlinks" default-value=false
+     */
+    private boolean followSymlinks;
+
+    /**
+     * Maximum number of images passed to a single optipng process. Batching
+     * small images amortizes the cost of spawning processes.
+     *
+     * @parameter property="optipng.batchSize" default-value=1
+     */
+    private int batchSize;
+
+    /**
+     * Maximum total size in bytes of the images passed to a single optipng
+     * process. A batch is started once either limit is reached.
+     *
+     * @parameter property="optipng.maxBatchBytes" default-value=1048576
+     */
+    private long maxBatchBytes;
+
+    /**
+     * Specifies the intensity of compression.
+     *
+     * @parameter default-value=2
+     */
+    private int level;
+
+    /**
+     * Engine performing the optimization: <code>optipng</code> runs the
+     * optipng executable, <code>java</code> recompresses images in-process
+     * without requiring optipng and <code>strip</code> only drops the
+     * <code>stripChunks</code>, leaving image data as is.
+     *
+     * @parameter property="optipng.engine" default-value="optipng"
+     */
+    private String engine;
+
+    /**
+     * Number of iterations of optimal deflating by the <code>java</code>
+     * engine, in the manner of Zopfli, or zero to deflate with zlib only.
+     * Each iteration reparses the image data with the statistics of the
+     * previous one; around 15 iterations save a few percent over the highest
+     * level at a hundred times its cost, so this suits release builds with
+     * a persistent <code>cacheDirectory</code> and raised
+     * <code>timeout</code>. If the timeout passes during optimal deflating,
+     * the best regular result is kept.
+     *
+     * @parameter property="optipng.deflateIterations" default-value=0
+     */
+    private int deflateIterations;
+
+    /**
+     * Size in megabytes of unfiltered image data above which the
+     * <code>java</code> engine streams images row by row instead of
+     * decoding them in memory. Streaming keeps memory proportional to the
+     * width of an image, so that huge images can be optimized concurrently,
+     * but skips color reduction and optimal deflating. Zero streams all
+     * images.
+     *
+     * @parameter property="optipng.streamingThreshold" default-value=64
+     */
+    private int streamingThreshold;
+
+    /**
+     * Maximum size in megabytes of buffers and zlib compressors the
+     * <code>java</code> engine keeps for reuse across trials and images,
+     * so that optimizing many images does not churn large allocations.
+     * Zero disables pooling.
+     *
+     * @parameter property="optipng.bufferPoolSize" default-value=64
+     */
+    private int bufferPoolSize;
+
+    /**
+     * Types of ancillary chunks to drop from images before optimizing them,
+     * such as <code>tEXt</code>, <code>zTXt</code>, <code>iTXt</code>,
+     * <code>eXIf</code> or <code>iCCP</code>. Chunks are dropped while
+     * copying images, reading chunk headers only. The transparency chunk
+     * <code>tRNS</code> cannot be dropped.
+     *
+     * @parameter
+     */
+    private List<String> stripChunks;
+
+    /**
+     * Maximum number of images optimized concurrently. Either an absolute
+     * number such as <code>4</code> or a multiple of the available processors
+     * such as <code>1.5C</code>, analogous to Maven's <code>-T</code> option.
+     * Further images are queued until a worker becomes available.
+     *
+     * @parameter property="optipng.threads" default-value="1C"
+     */
+    private String threads;
+
+    /**
+     * Maximum number of batches optimized concurrently by all executions of
+     * this goal in a build, such as modules built in parallel with Maven's
+     * <code>-T</code> option. Accepts the same values as
+     * <code>threads</code>. The value of the first execution applies to the
+     * whole build. The <code>java</code> engine runs all batches and their
+     * trials on a pool of this many threads, so it also bounds the
+     * processors used.
+     *
+     * @parameter property="optipng.globalThreads" default-value="1C"
+     */
+    private String globalThreads;
+
+    /**
+     * Number of threads computing digests of images and looking them up in
+     * the result cache and among identical images ahead of optimization.
+     * Accepts the same values as <code>threads</code>.
+     *
+     * @parameter property="optipng.hashThreads" default-value="1C"
+     */
+    private String hashThreads;
+
+    /**
+     * Number of threads writing optimized images, storing them in the
+     * result cache and recording them in the manifest. Accepts the same
+     * values as <code>threads</code>.
+     *
+     * @parameter property="optipng.writeThreads" default-value="1C"
+     */
+    private String writeThreads;
+
+    /**
+     * Maximum number of images waiting to be hashed and of batches waiting
+     * to be written. Discovery and earlier stages pause while the following
+     * stage is full, bounding memory use on large trees. Batches waiting to
+     * be optimized are not limited, so that the most expensive ones start
+     * first across the whole tree rather than within a window; they only
+     * refer to the images.
+     *
+     * @parameter property="optipng.queueCapacity" default-value=512
+     */
+    private int queueCapacity;
+
+    /**
+     * Base timeout in seconds for optimizing a single image. It is extended
+     * by {@value #LEVEL_TIMEOUT} seconds per level and by
+     * <code>timeoutPerMegabyte</code>. An optipng process exceeding the
+     * timeout of its images is killed and the images are left unchanged.
+     *
+     * @parameter property="optipng.timeout" default-value=10
+     */
+    private int timeout;
+
+    /**
+     * Additional timeout in seconds per megabyte of an image and level above
+     * zero, so that large images at high levels get proportionally more
+     * time.
+     *
+     * @parameter property="optipng.timeoutPerMegabyte" default-value=10
+     */
+    private int timeoutPerMegabyte;
+
+    /**
+     * Whether to choose the level per image rather than applying
+     * <code>level</code> to all images. Images are divided into size classes
+     * by <code>smallImageSize</code> and <code>largeImageSize</code>; for
+     * each class the highest level up to <code>level</code> is chosen whose
+     * bytes saved per second of optimization time, as recorded in the
+     * <code>historyFile</code> by previous builds, reach
+     * <code>minGainPerSecond</code>. Levels not yet used for a class are
+     * tried to fill the history.
+     *
+     * @parameter property="optipng.adaptiveLevel" default-value=false
+     */
+    private boolean adaptiveLevel;
+
+    /**
+     * Size in bytes below which images count as small.
+     *
+     * @parameter property="optipng.smallImageSize" default-value=8192
+     */
+    private long smallImageSize;
+
+    /**
+     * Size in bytes from which on images count as large.
+     *
+     * @parameter property="optipng.largeImageSize"
+     *            default-value=1048576
+     */
+    private long largeImageSize;
+
+    /**
+     * Bytes saved per second of optimization time a level must have
+     * achieved for a size class to be chosen by <code>adaptiveLevel</code>.
+     *
+     * @parameter property="optipng.minGainPerSecond" default-value=4096
+     */
+    private long minGainPerSecond;
+
+    /**
+     * File accumulating bytes saved and time spent per size class and
+     * level across builds, used by <code>adaptiveLevel</code>.
+     *
+     * @parameter property="optipng.historyFile"
+     *            default-value="${project.build.directory}/optipng-history.txt"
+     */
+    private File historyFile;
+
+    /**
+     * Time in seconds the goal should finish within, zero for no limit.
+     * While the estimated cost of the remaining images exceeds the remaining
+     * time, batches are optimized at proportionally lower levels; once even
+     * level zero does not fit, images are left unchanged for a later build.
+     * Images optimized at a lower level are optimized again by later builds,
+     * as the manifest records the level actually applied. Timeouts are
+     * capped at the remaining time.
+     *
+     * @parameter property="optipng.timeBudget" default-value=0
+     */
+    private int timeBudget;
+
+    /**
+     * Whether to decode every optimized image and compare its pixels to the
+     * original before writing it. Images whose pixels differ or which cannot
+     * be decoded, e.g. because optipng was killed while writing them, are
+     * left unchanged. Verification runs on the <code>writeThreads</code>;
+     * its time is logged and reported per image.
+     *
+     * @parameter property="optipng.verify" default-value=false
+     */
+    private boolean verify;
+
+    /**
+     * Directory to write optimized images to, mirroring the structure below
+     * each of the <code>pngDirectories</code>. If not set, images are
+     * optimized in place. Without the manifest of <code>incremental</code>,
+     * images whose output is newer than the image are skipped; outputs left
+     * unchanged or optimized below the requested level are dated before
+     * their image, so that later builds optimize them again.
+     *
+     * @parameter property="optipng.outputDirectory"
+     */
+    private File outputDirectory;
+
+    /**
+     * Directory holding working copies of images while optipng runs on
+     * them, so that images are only replaced once optimized completely.
+     *
+     * @parameter property="optipng.workDirectory"
+     *            default-value="${project.build.directory}/optipng-work"
+     */
+    private File workDirectory;
+
+    /**
+     * Whether to reuse results of previous optimizations of identical
+     * images.
+     *
+     * @parameter property="optipng.useCache" default-value=true
+     */
+    private boolean useCache;
+
+    /**
+     * Directory storing optimized images for reuse across builds.
+     *
+     * @parameter property="optipng.cacheDirectory"
+     *            default-value="${project.build.directory}/optipng-cache"
+     */
+    private File cacheDirectory;
+
+    /**
+     * Maximum size of the result cache in megabytes. Least recently used
+     * images are evicted beyond this size.
+     *
+     * @parameter property="optipng.maxCacheSize" default-value=64
+     */
+    private int maxCacheSize;
+
+    /**
+     * Whether to optimize byte-identical images only once and copy the
+     * result to all of them. When writing to the output directory, the
+     * copies are hard links where supported.
+     *
+     * @parameter property="optipng.deduplicate" default-value=true
+     */
+    private boolean deduplicate;
+
+    /**
+     * Whether to skip images which are unchanged since their last
+     * optimization according to the build manifest. Images optimized with
+     * another engine or other <code>stripChunks</code> are optimized again.
+     *
+     * @parameter property="optipng.incremental" default-value=true
+     */
+    private boolean incremental;
+
+    /**
+     * Whether to embed a private chunk recording level and engine into
+     * images optimized in place. Marked images are recognized by reading
+     * their chunk headers only and skipped if optimized by the same engine
+     * and <code>stripChunks</code> at the same or a higher level, even
+     * without a manifest. The marker
+     * adds about 30 bytes to each image.
+     *
+     * @parameter property="optipng.markOptimized" default-value=false
+     */
+    private boolean markOptimized;
+
+    /**
+     * File recording size, modification time and digest of optimized
+     * images.
+     *
+     * @parameter property="optipng.manifestFile"
+     *            default-value="${project.build.directory}/optipng-manifest.txt"
+     */
+    private File manifestFile;
+
+    /**
+     * File to write a machine-readable report of the size, level, timing
+     * and outcome of every image to, along with totals and percentiles. CPU
+     * time covers the worker threads of the plugin, not optipng processes.
+     * No report is written if not set.
+     *
+     * @parameter property="optipng.reportFile"
+     */
+    private File reportFile;
+
+    /**
+     * Format of the report: <code>json</code> or <code>csv</code>.
+     *
+     * @parameter property="optipng.reportFormat" default-value="json"
+     */
+    private String reportFormat;
+
+    /**
+     * Limit on concurrent optimizations shared by all executions.
+     */
+    private GlobalLimiter limiter;
+
+    /**
+     * Stage looking up images in the cache and among identical images.
+     */
+    private PipelineStage prepareStage;
+
+    /**
+     * Stage optimizing batches of images, most expensive first.
+     */
+    private PipelineStage optimizeStage;
+
+    /**
+     * Stage writing optimized images.
+     */
+    private PipelineStage publishStage;
+
+    /**
+     * Groups images needing optimization into batches.
+     */
+    private Batcher batcher;
+
+    /**
+     * Estimates the cost of optimizing images for scheduling.
+     */
+    private CostEstimator estimator;
+
+    /**
+     * Engine optimizing images.
+     */
+    private OptimizationEngine optimizer;
+
+    /**
+     * Identifier of the engine followed by the chunks stripped, if any, so
+     * that images optimized with other settings are not skipped.
+     */
+    private String settings;
+
+    /**
+     * Drops chunks while creating working copies, <code>null</code> if no
+     * chunks are stripped.
+     */
+    private ChunkFilter chunkFilter;
+
+    /**
+     * Images whose optimization timed out.
+     */
+    private final Queue<File> timedOut = new ConcurrentLinkedQueue<File>();
+
+    /**
+     * Images left unchanged because their optimized version failed
+     * verification.
+     */
+    private final Queue<File> rejected = new ConcurrentLinkedQueue<File>();
+
+    /**
+     * Number of optimized images verified.
+     */
+    private final AtomicInteger verified = new AtomicInteger();
+
+    /**
+     * Time in nanoseconds spent verifying optimized images.
+     */
+    private final AtomicLong verifyTime = new AtomicLong();
+
+    /**
+     * Images left unchanged because the time budget was exhausted.
+     */
+    private final Queue<File> deferred = new ConcurrentLinkedQueue<File>();
+
+    /**
+     * Number of images optimized below the configured level to meet the
+     * time budget.
+     */
+    private final AtomicInteger degraded = new AtomicInteger();
+
+    /**
+     * Chooses levels per image, <code>null</code> if all images are
+     * optimized at the configured level.
+     */
+    private LevelPolicy policy;
+
+    /**
+     * Time budget, <code>null</code> if unlimited.
+     */
+    private TimeBudget budget;
+
+    /**
+     * Cache of optimized images, <code>null</code> if disabled.
+     */
+    private ResultCache cache;
+
+    /**
+     * Groups identical images, <code>null</code> if not deduplicating.
+     */
+    private Deduplicator deduplicator;
+
+    /**
+     * Manifest of previously optimized images, <code>null</code> if not
+     * running incrementally.
+     */
+    private BuildManifest manifest;
+
+    /**
+     * Report of all images submitted, <code>null</code> if not reporting.
+     */
+    private PerformanceReport report;
+
+    /**
+     * Passes images to the prepare stage as they are discovered, unless they
+     * are unchanged since their last optimization.
+     */
+    private class ImageSubmitter implements ImageScanner.Listener {
+        /**
+         * Number of images submitted for optimization.
+         */
+        private int numberImages;
+
+        /**
+         * Number of images skipped as unchanged.
+         */
+        private int numberSkipped;
+
+        @Override
+        public void imageFound(final File directory, final File image) {
+            final File target = outputDirectory == null ? image
+                : new File(outputDirectory, directory.toPath()
+                    .relativize(image.toPath()).toString());
+            final int imageLevel = policy == null ? level
+                : policy.levelFor(image.length());
+            if (isUpToDate(image, target, imageLevel)) {
+                getLog().debug("Skipping unchanged " + image);
+                numberSkipped++;
+                return;
+            }
+
+            numberImages++;
+            getLog().debug(String.format("Optimzing %s at level %d", image,
+                imageLevel));
+            final ImageJob job = new ImageJob(image, target);
+            job.setLevel(imageLevel);
+            job.setRequestedLevel(imageLevel);
+            if (report != null) {
+                report.add(job);
+            }
+            try {
+                prepareStage.put(new PrepareTask(job));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                getLog().error("Interrupted while submitting " + image + ".",
+                    e);
+                job.setOutcome(ImageJob.Outcome.FAILED);
+            }
+        }
+
+        /**
+         * Checks whether an image needs no optimization, because it is
+         * unchanged according to the manifest or its marker. Without a
+         * manifest, images written to the output directory are also skipped
+         * if their output is newer; outputs which are not fully optimized
+         * are dated before their image to this end.
+         *
+         * @param image image found
+         * @param target file to write the optimized image to
+         * @param imageLevel level to optimize the image with
+         * @return <code>true</code> if the image can be skipped
+         */
+        private boolean isUpToDate(final File image, final File target,
+                final int imageLevel) {
+            if (manifest != null && manifest.isUpToDate(image, imageLevel)
+                    && target.exists()) {
+                return true;
+            }
+            if (markOptimized && image.equals(target)) {
+                try {
+                    final OptimizationMarker marker = OptimizationMarker
+                        .read(image);
+                    if (marker != null && marker.covers(imageLevel,
+                            settings)) {
+                        return true;
+                    }
+                } catch (IOException e) {
+                    getLog().debug("Failed to read marker of " + image, e);
+                }
+            }
+            return manifest == null && !image.equals(target)
+                && target.lastModified() >= image.lastModified();
+        }
+    }
+
+    /**
+     * Groups images needing optimization into batches and passes them to
+     * the optimize stage once full.
+     */
+    private class Batcher {
+        /**
+         * Images of the batch not yet submitted.
+         */
+        private List<ImageJob> batch = new ArrayList<ImageJob>();
+
+        /**
+         * Total size of the images in the current batch.
+         */
+        private long batchBytes;
+
+        /**
+         * Estimated cost of the current batch in milliseconds with the
+         * levels of its images capped at each index.
+         */
+        private long[] batchCosts = new long[level + 1];
+
+        /**
+         * Highest level chosen for an image of the current batch.
+         */
+        private int batchLevel;
+
+        /**
+         * Adds an image to the current batch.
+         *
+         * @param job image to optimize
+         */
+        synchronized void add(final ImageJob job) {
+            batch.add(job);
+            batchBytes += job.getOriginalSize();
+            final long cost = estimator.estimate(job.getImage(),
+                job.getLevel());
+            for (int l = 0; l < batchCosts.length; l++) {
+                batchCosts[l] += CostEstimator.scale(cost, job.getLevel(),
+                    Math.min(l, job.getLevel()));
+            }
+            batchLevel = Math.max(batchLevel, job.getLevel());
+            if (batch.size() >= batchSize || batchBytes >= maxBatchBytes) {
+                flush();
+            }
+        }
+
+        /**
+         * Submits the current batch, if any.
+         */
+        synchronized void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            final List<ImageJob> jobs = batch;
+            final long[] costs = Arrays.copyOf(batchCosts, batchLevel + 1);
+            batch = new ArrayList<ImageJob>();
+            batchBytes = 0;
+            batchCosts = new long[level + 1];
+            batchLevel = 0;
+            if (budget != null) {
+                budget.submitted(costs[costs.length - 1]);
+            }
+            try {
+                optimizeStage.put(new OptimizeTask(jobs, costs));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                getLog().error("Interrupted while submitting images.", e);
+                if (budget != null) {
+                    budget.finished(costs, costs.length - 1);
+                }
+                fail(jobs);
+            }
+        }
+    }
+
+    /**
+     * Executes the mojo.
+     *
+     * @throws MojoExecutionException if execution failed
+     */
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (!verifyLevel()) {
+            throw new MojoExecutionException(String.format(
+                "Invalid level. Must be >= %d and <= %d", LEVEL_LOWER_BOUND,
+                LEVEL_UPPER_BOUND));
+        }
+
+        if (batchSize < 1) {
+            throw new MojoExecutionException(
+                "Invalid batch size. Must be >= 1");
+        }
+
+        if (queueCapacity < 1) {
+            throw new MojoExecutionException(
+                "Invalid queue capacity. Must be >= 1");
+        }
+
+        if (deflateIterations < 0) {
+            throw new MojoExecutionException(
+                "Invalid number of deflate iterations. Must be >= 0");
+        }
+
+        if (streamingThreshold < 0) {
+            throw new MojoExecutionException(
+                "Invalid streaming threshold. Must be >= 0");
+        }
+
+        if (bufferPoolSize < 0) {
+            throw new MojoExecutionException(
+                "Invalid buffer pool size. Must be >= 0");
+        }
+
+        if (reportFile != null && !PerformanceReport.JSON.equals(reportFormat)
+                && !PerformanceReport.CSV.equals(reportFormat)) {
+            throw new MojoExecutionException(String.format(
+                "Invalid report format %s. Must be %s or %s", reportFormat,
+                PerformanceReport.JSON, PerformanceReport.CSV));
+        }
+
+        if (stripChunks != null && !stripChunks.isEmpty()) {
+            try {
+                chunkFilter = new ChunkFilter(stripChunks);
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException(e.getMessage()
+                    + ". Only ancillary chunks other than tRNS can be "
+                    + "stripped", e);
+            }
+        }
+
+        if (adaptiveLevel && smallImageSize > largeImageSize) {
+            throw new MojoExecutionException(
+                "Invalid size classes. smallImageSize must be <= "
+                + "largeImageSize");
+        }
+
+        final List<File> directories = new ArrayList<File>();
+        for (final String directory : pngDirectories) {
+            File d = new File(directory);
+            if (!d.exists()) {
+                throw new MojoExecutionException(String.format(
+                    "Directory %s does not exist.", directory));
+            }
+
+            if (!d.isDirectory()) {
+                throw new MojoExecutionException(String.format(
+                    "The path %s is not a directory.", directory));
+            }
+            directories.add(d);
+        }
+
+        try {
+            Files.createDirectories(workDirectory.toPath());
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format(
+                "Failed to create work directory %s.", workDirectory), e);
+        }
+
+        final Stopwatch stopwatch = new Stopwatch();
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final int threadCount = parseThreadCount(threads, processors);
+        final int hashThreadCount = parseThreadCount(hashThreads, processors);
+        final int writeThreadCount = parseThreadCount(writeThreads,
+            processors);
+        getLog().debug(String.format("Optimizing with %d threads, hashing "
+            + "with %d and writing with %d", threadCount, hashThreadCount,
+            writeThreadCount));
+        final int globalThreadCount = parseThreadCount(globalThreads,
+            processors);
+        limiter = GlobalLimiter.getInstance(globalThreadCount);
+        if (limiter.getSize() != globalThreadCount) {
+            getLog().debug(String.format("Using %d global threads as "
+                + "configured by an earlier execution", limiter.getSize()));
+        }
+        if (timeBudget > 0) {
+            budget = new TimeBudget(timeBudget * 1000L, threadCount);
+        }
+
+        // stages and engine run threads, which must not outlive a failure
+        final ImageSubmitter submitter;
+        try {
+            prepareStage = PipelineStage.fifo("hash", hashThreadCount,
+                queueCapacity);
+            optimizeStage = PipelineStage.prioritized("optimize",
+                threadCount);
+            publishStage = PipelineStage.fifo("write", writeThreadCount,
+                queueCapacity);
+            batcher = new Batcher();
+            optimizer = createEngine();
+            settings = optimizer.getIdentifier() + (chunkFilter != null
+                ? ":" + chunkFilter.getSettings() : "");
+
+            if (useCache) {
+                try {
+                    cache = new ResultCache(cacheDirectory,
+                        maxCacheSize * 1024L * 1024L,
+                        optimizer.getIdentifier() + (markOptimized ? ":"
+                        + OptimizationMarker.TYPE : "") + (chunkFilter != null
+                        ? ":" + chunkFilter.getSettings() : ""));
+                } catch (IOException e) {
+                    throw new MojoExecutionException(String.format(
+                        "Failed to create cache directory %s.",
+                        cacheDirectory), e);
+                }
+            }
+
+            if (adaptiveLevel) {
+                policy = new LevelPolicy(level, smallImageSize,
+                    largeImageSize, minGainPerSecond, GainHistory.load(
+                    historyFile, optimizer.getIdentifier()));
+            }
+
+            if (reportFile != null) {
+                report = new PerformanceReport(optimizer.getIdentifier());
+            }
+
+            if (deduplicate) {
+                deduplicator = new Deduplicator();
+            }
+
+            if (incremental) {
+                manifest = BuildManifest.load(manifestFile, settings);
+            }
+            estimator = new CostEstimator(manifest);
+
+            final ImageScanner scanner = new ImageScanner(includes, excludes,
+                followSymlinks, getLog());
+            submitter = new ImageSubmitter();
+            for (final File directory : directories) {
+                try {
+                    scanner.scan(directory, submitter);
+                } catch (IOException e) {
+                    throw new MojoExecutionException(String.format(
+                        "Failed to search %s for images.", directory), e);
+                }
+            }
+
+            // stages only feed the next one, so they are drained in order
+            prepareStage.shutdown();
+            awaitTermination(prepareStage);
+            batcher.flush();
+            optimizeStage.shutdown();
+            awaitTermination(optimizeStage);
+            publishStage.shutdown();
+            awaitTermination(publishStage);
+        } catch (InterruptedException e) {
+            throw new MojoExecutionException(
+                "Waiting for process termination was interrupted.", e);
+        } finally {
+            if (prepareStage != null) {
+                prepareStage.shutdownNow();
+            }
+            if (optimizeStage != null) {
+                optimizeStage.shutdownNow();
+            }
+            if (publishStage != null) {
+                publishStage.shutdownNow();
+            }
+            if (optimizer != null) {
+                optimizer.shutdown();
+            }
+        }
+
+        if (!timedOut.isEmpty()) {
+            getLog().warn(String.format(
+                "%d images timed out and were left unchanged: %s",
+                timedOut.size(), timedOut));
+        }
+
+        if (chunkFilter != null) {
+            getLog().info(String.format("Stripped %.2f kb of chunks from %d "
+                + "images", chunkFilter.getBytes() / 1024f,
+                chunkFilter.getImages()));
+        }
+
+        if (verify) {
+            getLog().info(String.format("Verified %d images in %.2f s",
+                verified.get(), verifyTime.get() / 1e9));
+        }
+
+        if (!rejected.isEmpty()) {
+            getLog().warn(String.format(
+                "%d images failed verification and were left unchanged: %s",
+                rejected.size(), rejected));
+        }
+
+        if (budget != null) {
+            getLog().info(String.format("Time budget: %d images optimized "
+                + "at a lower level, %d deferred", degraded.get(),
+                deferred.size()));
+        }
+
+        if (manifest != null || markOptimized) {
+            getLog().info(String.format("Skipped %d unchanged images",
+                submitter.numberSkipped));
+        }
+
+        if (manifest != null) {
+            try {
+                manifest.save();
+            } catch (IOException e) {
+                getLog().warn("Failed to write manifest " + manifestFile, e);
+            }
+        }
+
+        if (deduplicator != null && deduplicator.getDuplicates() > 0) {
+            getLog().info(String.format(
+                "Deduplication: %d identical images (%.2f kb) not optimized "
+                + "separately", deduplicator.getDuplicates(),
+                deduplicator.getDuplicateBytes() / 1024f));
+        }
+
+        if (cache != null) {
+            final int evicted = cache.evict();
+            getLog().info(String.format(
+                "Result cache: %d hits, %d misses, %d evicted",
+                cache.getHits(), cache.getMisses(), evicted));
+        }
+
+        if (policy != null) {
+            try {
+                policy.getHistory().save();
+            } catch (IOException e) {
+                getLog().warn("Failed to write history " + historyFile, e);
+            }
+        }
+
+        if (report != null) {
+            report.setSkipped(submitter.numberSkipped);
+            try {
+                report.write(reportFile, reportFormat, stopwatch.wall());
+                getLog().info("Wrote performance report " + reportFile);
+            } catch (IOException e) {
+                getLog().warn("Failed to write report " + reportFile, e);
+            }
+        }
+    }
+
+    /**
+     * A task restoring an image from the cache or assigning it to a group of
+     * identical images, and passing it on for optimization otherwise.
+     */
+    private class PrepareTask implements Runnable {
+        /**
+         * Image to prepare.
+         */
+        private final ImageJob job;
+
+        /**
+         * Time in nanoseconds the task was created at.
+         */
+        private final long submitted = System.nanoTime();
+
+        /**
+         * Creates a new task.
+         *
+         * @param job image to prepare
+         */
+        PrepareTask(final ImageJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            job.addQueueWait(System.nanoTime() - submitted);
+            final Stopwatch stopwatch = new Stopwatch();
+            final boolean done = restoreFromCache(job) || deduplicate(job);
+            job.addTime(stopwatch.wall(), stopwatch.cpu());
+            if (!done) {
+                batcher.add(job);
+            }
+        }
+    }
+
+    /**
+     * A task which optimizes working copies of a batch of images and passes
+     * them on to be written. Tasks are ordered by decreasing estimated cost,
+     * so that expensive images do not end up as a long tail after all
+     * others finished.
+     */
+    private class OptimizeTask implements Runnable,
+            Comparable<OptimizeTask> {
+        /**
+         * Images to optimize.
+         */
+        private final List<ImageJob> images;
+
+        /**
+         * Estimated cost in milliseconds with the levels of the images
+         * capped at each index.
+         */
+        private final long[] costs;
+
+        /**
+         * Estimated cost in milliseconds at the levels chosen for the
+         * images.
+         */
+        private final long cost;
 
-    /**
-     * Lower bound for optimization level passed to optipng.
-     */
-    private static final int LEVEL_LOWER_BOUND = 0;
+        /**
+         * Time in nanoseconds the task was created at.
+         */
+        private final long submitted = System.nanoTime();
 
-    /**
-     * Upper bound for optimization level passed to optipng.
-     */
-    private static final int LEVEL_UPPER_BOUND = 7;
+        /**
+         * Time in nanoseconds the task waited for the global limiter.
+         */
+        private long limiterWait;
+
+        /**
+         * Creates a new optimization task.
+         *
+         * @param images images to optimize
+         * @param costs estimated cost in milliseconds with the levels of
+         *        the images capped at each index
+         */
+        OptimizeTask(final List<ImageJob> images, final long[] costs) {
+            this.images = images;
+            this.costs = costs;
+            this.cost = costs[costs.length - 1];
+        }
+
+        @Override
+        public int compareTo(final OptimizeTask other) {
+            return Long.compare(other.cost, cost);
+        }
+
+        /**
+         * Runs the actual optimization.
+         */
+        @Override
+        public void run() {
+            final long queueWait = System.nanoTime() - submitted;
+            for (ImageJob job : images) {
+                job.addQueueWait(queueWait);
+            }
+
+            int batchLevel = costs.length - 1;
+            if (budget != null) {
+                batchLevel = budget.start(costs);
+            }
+
+            final Stopwatch stopwatch = new Stopwatch();
+            try {
+                if (batchLevel == TimeBudget.DEFER) {
+                    defer(images);
+                } else {
+                    degrade(images, batchLevel);
+                    optimize(images);
+                }
+            } finally {
+                if (budget != null) {
+                    budget.finished(costs, batchLevel);
+                }
+                attributeTime(images, stopwatch);
+            }
+
+            try {
+                publishStage.put(new PublishTask(images));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                getLog().error("Interrupted while writing images.", e);
+                for (ImageJob job : images) {
+                    deleteWorkingCopy(job);
+                }
+                fail(images);
+            }
+        }
+
+        /**
+         * Leaves images unchanged because the time budget is exhausted.
+         *
+         * @param jobs images not to optimize
+         */
+        private void defer(final List<ImageJob> jobs) {
+            for (ImageJob job : jobs) {
+                getLog().debug("Deferring " + job.getImage()
+                    + ", time budget exhausted");
+                job.setOutcome(ImageJob.Outcome.DEFERRED);
+            }
+        }
+
+        /**
+         * Lowers the level of images to meet the time budget.
+         *
+         * @param jobs images to optimize
+         * @param batchLevel level chosen for the batch
+         */
+        private void degrade(final List<ImageJob> jobs, final int batchLevel) {
+            for (ImageJob job : jobs) {
+                if (job.getLevel() <= batchLevel) {
+                    continue;
+                }
+                getLog().debug(String.format("Optimizing %s at level %d to "
+                    + "meet the time budget", job.getImage(), batchLevel));
+                job.setLevel(batchLevel);
+                degraded.incrementAndGet();
+            }
+        }
+
+        /**
+         * Optimizes working copies of images. Images whose working copy
+         * could not be created are marked as failed.
+         *
+         * @param jobs images to optimize
+         */
+        private void optimize(final List<ImageJob> jobs) {
+            final List<ImageJob> pending = new ArrayList<ImageJob>();
+            for (ImageJob job : jobs) {
+                try {
+                    job.setWorkingCopy(Files.createTempFile(
+                        workDirectory.toPath(), null, PNG_SUFFIX).toFile());
+                    if (chunkFilter != null) {
+                        chunkFilter.copy(job.getImage(), job.getWorkingCopy());
+                    } else {
+                        Files.copy(job.getImage().toPath(),
+                            job.getWorkingCopy().toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    long jobTimeout = calculateTimeout(job);
+                    if (budget != null) {
+                        jobTimeout = Math.max(1, Math.min(jobTimeout,
+                            budget.getRemaining()));
+                    }
+                    job.setTimeout(jobTimeout);
+                    pending.add(job);
+                } catch (IOException e) {
+                    getLog().error("Failed to copy " + job.getImage() + ".",
+                        e);
+                    job.setOutcome(ImageJob.Outcome.FAILED);
+                }
+            }
+
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            final long waitStart = System.nanoTime();
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                getLog().error("Interrupted while waiting to optimize images.",
+                    e);
+                for (ImageJob job : pending) {
+                    job.setOutcome(ImageJob.Outcome.FAILED);
+                }
+                return;
+            }
+            limiterWait = System.nanoTime() - waitStart;
+            final long start = System.currentTimeMillis();
+            try {
+                optimizer.optimize(pending);
+            } finally {
+                limiter.release();
+            }
+            attributeDuration(pending, System.currentTimeMillis() - start);
+            for (ImageJob job : pending) {
+                job.addQueueWait(limiterWait);
+            }
+        }
+
+        /**
+         * Splits the duration of optimizing a batch among its images in
+         * proportion to their size.
+         *
+         * @param jobs images optimized together
+         * @param duration duration in milliseconds
+         */
+        private void attributeDuration(final List<ImageJob> jobs,
+                final long duration) {
+            for (ImageJob job : jobs) {
+                job.setDuration(share(jobs, job, duration));
+            }
+        }
+
+        /**
+         * Splits the time spent on a batch among its images in proportion
+         * to their size. Time spent waiting for the global limiter is
+         * accounted as queue wait instead.
+         *
+         * @param jobs images processed together
+         * @param stopwatch stopwatch started before processing the batch
+         */
+        private void attributeTime(final List<ImageJob> jobs,
+                final Stopwatch stopwatch) {
+            final long wall = stopwatch.wall() - limiterWait;
+            final long cpu = stopwatch.cpu();
+            for (ImageJob job : jobs) {
+                job.addTime(share(jobs, job, wall), share(jobs, job, cpu));
+            }
+        }
+    }
 
     /**
-     * List of directories to consider.
-     *
-     * @parameter
-     * @required
+     * A task writing the results of an optimized batch and passing them on
+     * to identical images.
      */
-    private List<String> pngDirectories;
+    private class PublishTask implements Runnable {
+        /**
+         * Images to write.
+         */
+        private final List<ImageJob> images;
+
+        /**
+         * Time in nanoseconds the task was created at.
+         */
+        private final long submitted = System.nanoTime();
+
+        /**
+         * Creates a new task.
+         *
+         * @param images images to write
+         */
+        PublishTask(final List<ImageJob> images) {
+            this.images = images;
+        }
+
+        @Override
+        public void run() {
+            final long queueWait = System.nanoTime() - submitted;
+            for (ImageJob job : images) {
+                job.addQueueWait(queueWait);
+                final Stopwatch stopwatch = new Stopwatch();
+                try {
+                    publish(job);
+                } finally {
+                    deleteWorkingCopy(job);
+                    job.addTime(stopwatch.wall(), stopwatch.cpu());
+                }
+                completeDuplicates(job);
+            }
+        }
+    }
 
     /**
-     * Specifies the intensity of compression.
+     * Replaces an image by its optimized working copy, which is also stored
+     * in the cache and recorded in the manifest. Images which could not be
+     * optimized are left unchanged.
      *
-     * @parameter default-value=2
+     * @param job image to write
      */
-    private int level;
+    private void publish(final ImageJob job) {
+        final File image = job.getImage();
+        final File target = job.getTarget();
+        final File copy = job.getWorkingCopy();
+        if (job.getOutcome() == ImageJob.Outcome.DEFERRED) {
+            deferred.add(image);
+            publishUnchanged(job);
+            return;
+        }
+
+        if (job.getOutcome() == ImageJob.Outcome.TIMED_OUT) {
+            getLog().error(String.format("Optimizing %s timed out, leaving "
+                + "it unchanged", image.getPath()));
+            timedOut.add(image);
+            publishUnchanged(job);
+            return;
+        }
+
+        if (job.getOutcome() == ImageJob.Outcome.FAILED) {
+            publishUnchanged(job);
+            return;
+        }
+
+        final boolean unused = job.isInPlace() && !markOptimized
+            && copy.length() >= job.getOriginalSize();
+        if (verify && !unused && !verify(job)) {
+            job.setOutcome(ImageJob.Outcome.REJECTED);
+            rejected.add(image);
+            publishUnchanged(job);
+            return;
+        }
+
+        try {
+            if (markOptimized && job.isInPlace()) {
+                mark(job);
+            } else if (!job.isInPlace()
+                    || copy.length() < job.getOriginalSize()) {
+                AtomicFiles.move(copy.toPath(), target.toPath());
+            }
+        } catch (IOException e) {
+            getLog().error("Failed to write " + target + ".", e);
+            job.setOutcome(ImageJob.Outcome.FAILED);
+            return;
+        }
+        job.setOutcome(ImageJob.Outcome.OPTIMIZED);
+        if (job.getLevel() < job.getRequestedLevel()) {
+            expire(job);
+        }
+        if (policy != null) {
+            policy.record(job, target.length());
+        }
+
+        String optimizedDigest = null;
+        try {
+            if (cache != null && job.getDigest() != null) {
+                optimizedDigest = cache.store(job.getDigest(), job.getLevel(),
+                    target);
+            } else if (manifest != null && job.isInPlace()) {
+                optimizedDigest = Digests.digest(target);
+            }
+        } catch (IOException e) {
+            getLog().warn("Failed to record result of " + image + ".", e);
+        }
+        record(job, optimizedDigest);
+        logResult(job, "");
+    }
 
     /**
-     * Thread pool containing processes which optimize a single image.
+     * Compares the pixels of an image and its optimized working copy.
+     *
+     * @param job optimized image
+     * @return <code>true</code> if the pixels are identical
      */
-    private ExecutorService pool;
+    private boolean verify(final ImageJob job) {
+        final String path = job.getImage().getPath();
+        final Stopwatch stopwatch = new Stopwatch();
+        try {
+            if (PixelReader.samePixels(job.getImage(),
+                    job.getWorkingCopy())) {
+                return true;
+            }
+            getLog().error(String.format("Optimizing %s changed its pixels, "
+                + "leaving it unchanged", path));
+        } catch (IOException e) {
+            getLog().error(String.format("Failed to verify %s, leaving it "
+                + "unchanged: %s", path, e.getMessage()));
+        } finally {
+            job.setVerifyTime(stopwatch.wall());
+            verifyTime.addAndGet(job.getVerifyTime());
+            verified.incrementAndGet();
+        }
+        return false;
+    }
 
     /**
-     * Creates a new instance of this plugin.
+     * Leaves images unchanged which could not be passed through the
+     * pipeline, along with the images identical to them.
+     *
+     * @param jobs images which could not be optimized
      */
-    public OptimizePngMojo() {
-        pool = Executors.newCachedThreadPool();
+    private void fail(final List<ImageJob> jobs) {
+        for (ImageJob job : jobs) {
+            job.setOutcome(ImageJob.Outcome.FAILED);
+            publishUnchanged(job);
+            completeDuplicates(job);
+        }
     }
 
     /**
-     * A filename filter for PNG files.
+     * Writes the result of an image to the identical images waiting for it.
+     *
+     * @param job image whose result is available
      */
-    private static class PngFilenameFilter implements FilenameFilter {
-        @Override
-        public boolean accept(final File dir, final String name) {
-            return name.endsWith(PNG_SUFFIX);
+    private void completeDuplicates(final ImageJob job) {
+        if (deduplicator == null || job.getDigest() == null) {
+            return;
+        }
+
+        for (ImageJob duplicate : deduplicator.complete(job)) {
+            final Stopwatch stopwatch = new Stopwatch();
+            copyResult(job, duplicate);
+            duplicate.addTime(stopwatch.wall(), stopwatch.cpu());
         }
     }
 
     /**
-     * Executes the mojo.
+     * Assigns an image to the group of identical images. Only the first
+     * image of a group is optimized, all others receive its result once
+     * it is available.
      *
-     * @throws MojoExecutionException if execution failed
+     * @param job image to assign
+     * @return <code>true</code> if the image is a duplicate and needs no
+     *         optimization of its own
      */
-    @Override
-    public void execute() throws MojoExecutionException {
-        if (!verifyOptipngInstallation()) {
-            throw new MojoExecutionException("Could not find optipng on "
-                + "this system");
+    private boolean deduplicate(final ImageJob job) {
+        if (deduplicator == null) {
+            return false;
         }
 
-        if (!verifyLevel()) {
-            throw new MojoExecutionException(String.format(
-                "Invalid level. Must be >= %d and <= %d", LEVEL_LOWER_BOUND,
-                LEVEL_UPPER_BOUND));
+        try {
+            if (job.getDigest() == null) {
+                job.setDigest(Digests.digest(job.getImage()));
+            }
+        } catch (IOException e) {
+            getLog().warn("Failed to compute digest of " + job.getImage()
+                + ".", e);
+            return false;
         }
 
-        int numberImages = 0;
-        for (final String directory : pngDirectories) {
-            File d = new File(directory);
-            if (!d.exists()) {
-                throw new MojoExecutionException(String.format(
-                    "Directory %s does not exist.", directory));
-            }
+        switch (deduplicator.claim(job)) {
+        case LEADER:
+            return false;
+        case LATE_FOLLOWER:
+            copyResult(deduplicator.getLeader(job), job);
+            return true;
+        default:
+            return true;
+        }
+    }
 
-            if (!d.isDirectory()) {
-                throw new MojoExecutionException(String.format(
-                    "The path %s is not a directory.", directory));
+    /**
+     * Writes the result of optimizing an image to an identical one. If
+     * the optimization did not succeed, the duplicate is left unchanged
+     * as well.
+     *
+     * @param leader image which was optimized
+     * @param duplicate identical image
+     */
+    private void copyResult(final ImageJob leader,
+            final ImageJob duplicate) {
+        duplicate.setLevel(leader.getLevel());
+        if (leader.getOutcome() != ImageJob.Outcome.OPTIMIZED) {
+            duplicate.setOutcome(leader.getOutcome());
+            if (leader.getOutcome() == ImageJob.Outcome.DEFERRED) {
+                deferred.add(duplicate.getImage());
             }
+            publishUnchanged(duplicate);
+            return;
+        }
 
-            File[] containedImages = d.listFiles(new PngFilenameFilter());
+        final File result = leader.getTarget();
+        final File target = duplicate.getTarget();
+        try {
+            if (!duplicate.isInPlace()) {
+                AtomicFiles.link(result.toPath(), target.toPath());
+            } else if (markOptimized
+                    || result.length() < duplicate.getOriginalSize()) {
+                AtomicFiles.copy(result.toPath(), target.toPath());
+            }
+        } catch (IOException e) {
+            getLog().error("Failed to write " + target + ".", e);
+            duplicate.setOutcome(ImageJob.Outcome.FAILED);
+            return;
+        }
+        duplicate.setOutcome(ImageJob.Outcome.DEDUPLICATED);
+        duplicate.setDuration(leader.getDuration());
+        if (duplicate.getLevel() < duplicate.getRequestedLevel()) {
+            expire(duplicate);
+        }
 
-            numberImages += containedImages.length;
-            for (File image : containedImages) {
-                getLog().debug("Optimzing " + image);
-                pool.submit(new OptimizeTask(image, getLog()));
+        String optimizedDigest = null;
+        if (manifest != null && duplicate.isInPlace()) {
+            try {
+                optimizedDigest = Digests.digest(target);
+            } catch (IOException e) {
+                getLog().warn("Failed to record result of "
+                    + duplicate.getImage() + ".", e);
             }
         }
+        record(duplicate, optimizedDigest);
+        logResult(duplicate, " as duplicate of " + leader.getImage());
+    }
 
-        pool.shutdown();
-        try {
-            pool.awaitTermination(calculateTimeout(numberImages), TimeUnit.
-                SECONDS);
-        } catch (InterruptedException e) {
-            throw new MojoExecutionException(
-                "Waiting for process termination was interrupted.", e);
+    /**
+     * Marks the smaller of an image and its optimized working copy as
+     * optimized and replaces the image by it. Unless the image is
+     * replaced, the working copy is overwritten to this end.
+     *
+     * @param job image optimized in place
+     * @throws IOException in case marking or replacing failed
+     */
+    private void mark(final ImageJob job) throws IOException {
+        final File copy = job.getWorkingCopy();
+        if (copy.length() >= job.getOriginalSize()) {
+            Files.copy(job.getImage().toPath(), copy.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
         }
+        new OptimizationMarker(job.getLevel(), settings).mark(copy);
+        AtomicFiles.move(copy.toPath(), job.getTarget().toPath());
     }
 
     /**
-     * A task which optimizes a single image.
+     * Copies an image which could not be optimized to its target, so
+     * that the output directory is complete nevertheless.
+     *
+     * @param job image which could not be optimized
      */
-    private class OptimizeTask implements Runnable {
-        /**
-         * Image to optimize.
-         */
-        private File image;
+    private void publishUnchanged(final ImageJob job) {
+        if (job.isInPlace()) {
+            return;
+        }
 
-        /**
-         * Reference to maven logger object for printing the result of the
-         * optimization.
-         */
-        private Log log;
+        try {
+            AtomicFiles.copy(job.getImage().toPath(),
+                job.getTarget().toPath());
+        } catch (IOException e) {
+            getLog().error("Failed to write " + job.getTarget() + ".", e);
+            return;
+        }
+        expire(job);
+    }
 
-        /**
-         * Creates a new optimization task.
-         *
-         * @param image image to optimize
-         * @param log logger to print optimization result to
-         */
-        public OptimizeTask(final File image, final Log log) {
-            this.image = image;
-            this.log = log;
+    /**
+     * Dates the output of an image written to the output directory before
+     * the image itself, so that later builds do not take it for fully
+     * optimized even without a manifest.
+     *
+     * @param job image left unchanged or optimized below its requested
+     *        level
+     */
+    private void expire(final ImageJob job) {
+        if (job.isInPlace()) {
+            return;
         }
 
-        /**
-         * Runs the actual optimization.
-         */
-        @Override
-        public void run() {
-            Process p = null;
+        final long lastModified = job.getImage().lastModified()
+            - EXPIRED_OFFSET;
+        if (!job.getTarget().setLastModified(Math.max(0, lastModified))) {
+            getLog().debug("Failed to set modification time of "
+                + job.getTarget());
+        }
+    }
 
-            long sizeUnoptimized = image.length();
+    /**
+     * Deletes the working copy of an image, if any.
+     *
+     * @param job image whose working copy to delete
+     */
+    private void deleteWorkingCopy(final ImageJob job) {
+        if (job.getWorkingCopy() != null) {
             try {
-                p = startProcess(image);
+                Files.deleteIfExists(job.getWorkingCopy().toPath());
             } catch (IOException e) {
-                log.error("Failed to start a process.", e);
-                return;
+                getLog().warn("Failed to delete " + job.getWorkingCopy(), e);
+            }
+        }
+    }
+
+    /**
+     * Writes the cached optimized content of an image, if available.
+     *
+     * @param job image to look up
+     * @return <code>true</code> if the image was restored
+     */
+    private boolean restoreFromCache(final ImageJob job) {
+        if (cache == null) {
+            return false;
+        }
+
+        final File image = job.getImage();
+        try {
+            job.setDigest(Digests.digest(image));
+            if (cache.restore(job.getDigest(), job.getLevel(), image,
+                    job.getTarget())) {
+                job.setOutcome(ImageJob.Outcome.CACHED);
+                if (manifest != null) {
+                    job.setDuration(manifest.getDuration(image));
+                    record(job, job.isInPlace() ? Digests.digest(image)
+                        : null);
+                }
+                logResult(job, " from cache");
+                return true;
             }
+        } catch (IOException e) {
+            getLog().warn("Failed to look up " + image + " in cache.", e);
+        }
+        return false;
+    }
+
+    /**
+     * Records the optimized image in the manifest, if enabled. Images
+     * written to the output directory are recorded in their unchanged
+     * state.
+     *
+     * @param job optimized image
+     * @param optimizedDigest digest of the image optimized in place, may
+     *        be <code>null</code> if unknown
+     */
+    private void record(final ImageJob job, final String optimizedDigest) {
+        if (manifest == null) {
+            return;
+        }
 
+        String digest = optimizedDigest;
+        if (!job.isInPlace()) {
             try {
-                p.waitFor();
-            } catch (InterruptedException e) {
-                log.error("Failed to wait for the process to finish.", e);
+                digest = job.getDigest() != null ? job.getDigest()
+                    : Digests.digest(job.getImage());
+            } catch (IOException e) {
+                getLog().warn("Failed to record " + job.getImage() + ".", e);
                 return;
             }
+        }
+
+        if (digest != null) {
+            manifest.record(job.getImage(), digest, job.getLevel(),
+                job.getDuration());
+        }
+    }
+
+    /**
+     * Logs the savings of the optimization.
+     *
+     * @param job optimized image
+     * @param origin suffix describing where the result came from
+     */
+    private void logResult(final ImageJob job, final String origin) {
+        final File image = job.getImage();
+        final long sizeUnoptimized = job.getOriginalSize();
+        float kbOptimized = (sizeUnoptimized
+            - job.getTarget().length()) / 1024f;
+        float percentageOptimized = kbOptimized / (sizeUnoptimized / 1024f)
+            * 100;
 
-            float kbOptimized = (sizeUnoptimized - (long) image.length())
-                / 1024f;
-            float percentageOptimized = kbOptimized / (sizeUnoptimized / 1024f)
-                * 100;
+        getLog().info(String.format("Optimized %s by %.2f kb (%.2f%%)%s",
+            image.getPath(), kbOptimized, percentageOptimized, origin));
+    }
+
+    /**
+     * Waits for a stage to finish its tasks after it was shut down.
+     *
+     * @param stage stage to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitTermination(final PipelineStage stage)
+            throws InterruptedException {
+        while (!stage.awaitTermination(1, TimeUnit.MINUTES)) {
+            getLog().debug("Waiting for optimizations to finish");
+        }
+    }
 
-            log.info(String.format("Optimized %s by %.2f kb (%.2f%%)",
-                image.getPath(), kbOptimized, percentageOptimized));
+    /**
+     * Determines the share of an image in a quantity measured for a batch,
+     * in proportion to its size.
+     *
+     * @param jobs images of the batch
+     * @param job image whose share to determine
+     * @param total quantity measured for the batch
+     * @return share of the image
+     */
+    private static long share(final List<ImageJob> jobs, final ImageJob job,
+            final long total) {
+        long totalSize = 0;
+        for (ImageJob other : jobs) {
+            totalSize += other.getOriginalSize();
         }
+        return totalSize == 0 ? total / jobs.size()
+            : (long) ((double) total * job.getOriginalSize() / totalSize);
     }
 
     /**
-     * Builds a optipng call and spawns a new process.
+     * Calculates the timeout for optimizing an image, which grows with size
+     * and level.
      *
-     * @param image image to optimize
-     * @return spawned process
-     * @throws IOException in case building the process failed
+     * @param job image to optimize
+     * @return timeout in milliseconds
      */
-    private Process startProcess(final File image) throws IOException {
-        final StringBuilder args = new StringBuilder();
-        args.append(OPTIPNG_COMPRESSION_LEVEL_PARAM).append(" ")
-            .append(String.valueOf(level)).append(" ")
-            .append(image.getPath());
-        return new ProcessBuilder(OPTIPNG_EXE, args.toString()).start();
+    private long calculateTimeout(final ImageJob job) {
+        final float seconds = timeout + job.getLevel() * LEVEL_TIMEOUT
+            + job.getOriginalSize() / BYTES_PER_MEGABYTE
+            * timeoutPerMegabyte * job.getLevel();
+        return (long) (seconds * 1000);
     }
 
     /**
-     * Calculate a proper timeout threshold given the number of images to
-     * compress and the compression level.
+     * Creates the configured optimization engine. The <code>java</code>
+     * engine runs on the trial pool of the global limiter.
      *
-     * @param numberImages number of images to compress
-     * @return timeout in seconds
+     * @return engine
+     * @throws MojoExecutionException if the engine is unknown or unavailable
      */
-    private int calculateTimeout(final int numberImages) {
-        return numberImages * POOL_TIMEOUT + numberImages * level * 5;
+    private OptimizationEngine createEngine()
+            throws MojoExecutionException {
+        if (deflateIterations != 0 && !JavaPngEngine.NAME.equals(engine)) {
+            throw new MojoExecutionException(String.format(
+                "deflateIterations requires engine %s", JavaPngEngine.NAME));
+        }
+        if (OptipngEngine.NAME.equals(engine)) {
+            return OptipngEngine.create(getLog());
+        }
+        if (JavaPngEngine.NAME.equals(engine)) {
+            return new JavaPngEngine(limiter.getTrialPool(),
+                deflateIterations, streamingThreshold * 1024L * 1024L,
+                bufferPoolSize * 1024L * 1024L, getLog());
+        }
+        if (StripEngine.NAME.equals(engine)) {
+            if (chunkFilter == null) {
+                throw new MojoExecutionException(String.format(
+                    "Engine %s requires stripChunks", StripEngine.NAME));
+            }
+            return new StripEngine();
+        }
+        throw new MojoExecutionException(String.format(
+            "Invalid engine %s. Must be %s, %s or %s", engine,
+            OptipngEngine.NAME, JavaPngEngine.NAME, StripEngine.NAME));
     }
 
     /**
-     * Verifies whether optipng is installed.
+     * Parses the number of worker threads. A value suffixed with
+     * {@value #THREADS_PER_CORE_SUFFIX} is multiplied by the number of
+     * available processors.
      *
-     * @return <code>true</code> if installed, <code>false</code> otherwise
-     * @throws MojoExecutionException in case building the process failed
+     * @param threads thread count as configured
+     * @param processors number of available processors
+     * @return number of threads, at least one
+     * @throws MojoExecutionException if the thread count is malformed
      */
-    private static boolean verifyOptipngInstallation() throws
-            MojoExecutionException {
-        List<String> args = new LinkedList<String>();
-        args.add(OPTIPNG_EXE);
+    static int parseThreadCount(final String threads, final int processors)
+            throws MojoExecutionException {
+        if (threads == null || threads.trim().length() == 0) {
+            return processors;
+        }
 
-        Process p;
+        final String value = threads.trim();
         try {
-            p = new ProcessBuilder(args).start();
-            p.waitFor();
-        } catch (IOException e) {
-            throw new MojoExecutionException(
-                "Failed to verify optipng installation", e);
-        } catch (InterruptedException e) {
-            throw new MojoExecutionException(
-                "Failed to verify optipng installation", e);
+            if (value.toUpperCase().endsWith(THREADS_PER_CORE_SUFFIX)) {
+                final float factor = Float.parseFloat(value.substring(0,
+                    value.length() - THREADS_PER_CORE_SUFFIX.length()));
+                if (factor > 0) {
+                    return Math.max(1, (int) (factor * processors));
+                }
+            } else {
+                final int count = Integer.parseInt(value);
+                if (count > 0) {
+                    return count;
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new MojoExecutionException(String.format(
+                "Invalid thread count %s.", threads), e);
         }
 
-        return p.exitValue() == 0;
+        throw new MojoExecutionException(String.format(
+            "Invalid thread count %s. Must be positive.", threads));
     }
 
     /**
@@ -0,0 +1,316 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Engine running the optipng executable, one process per batch.
+ */
+class OptipngEngine implements OptimizationEngine {
+    /**
+     * Name of this engine.
+     */
+    static final String NAME = "optipng";
+
+    /**
+     * Optipng executable.
+     */
+    private static final String OPTIPNG_EXE = "optipng";
+
+    /**
+     * Optipng parameter specifying compression level.
+     */
+    private static final String OPTIPNG_COMPRESSION_LEVEL_PARAM = "-o";
+
+    /**
+     * Optipng parameter printing its version.
+     */
+    private static final String OPTIPNG_VERSION_PARAM = "-v";
+
+    /**
+     * Version reported by optipng.
+     */
+    private final String version;
+
+    /**
+     * Logger for reporting failures and optipng's output.
+     */
+    private final Log log;
+
+    /**
+     * Scheduler killing optipng processes which exceed their timeout.
+     */
+    private final ScheduledExecutorService watchdog =
+        Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Threads reading the output of optipng processes.
+     */
+    private final ExecutorService drainers = Executors.newCachedThreadPool();
+
+    /**
+     * Creates a new engine.
+     *
+     * @param version version reported by optipng
+     * @param log logger for failures and output
+     */
+    private OptipngEngine(final String version, final Log log) {
+        this.version = version;
+        this.log = log;
+    }
+
+    /**
+     * Creates a new engine after verifying that optipng is installed.
+     *
+     * @param log logger for failures and output
+     * @return engine
+     * @throws MojoExecutionException if optipng is not available
+     */
+    static OptipngEngine create(final Log log)
+            throws MojoExecutionException {
+        if (!verifyOptipngInstallation()) {
+            throw new MojoExecutionException("Could not find optipng on "
+                + "this system");
+        }
+        return new OptipngEngine(detectOptipngVersion(), log);
+    }
+
+    @Override
+    public String getIdentifier() {
+        return NAME + " " + version;
+    }
+
+    /**
+     * Runs optipng on the working copies of a batch of images, one process
+     * per optimization level among them.
+     *
+     * @param jobs images to optimize
+     */
+    @Override
+    public void optimize(final List<ImageJob> jobs) {
+        final Map<Integer, List<ImageJob>> byLevel =
+            new LinkedHashMap<Integer, List<ImageJob>>();
+        for (ImageJob job : jobs) {
+            List<ImageJob> group = byLevel.get(job.getLevel());
+            if (group == null) {
+                group = new ArrayList<ImageJob>();
+                byLevel.put(job.getLevel(), group);
+            }
+            group.add(job);
+        }
+        for (Map.Entry<Integer, List<ImageJob>> group : byLevel.entrySet()) {
+            optimize(group.getValue(), group.getKey());
+        }
+    }
+
+    /**
+     * Runs a single optipng process on the working copies of images. If the
+     * process is killed because it exceeded the summed timeouts of the
+     * images, images optipng had already finished are kept.
+     *
+     * @param jobs images to optimize
+     * @param level optimization level
+     */
+    private void optimize(final List<ImageJob> jobs, final int level) {
+        Process p = null;
+        final OutputDrainer drainer;
+        final AtomicBoolean killed = new AtomicBoolean();
+        final ScheduledFuture<?> kill;
+        try {
+            p = startProcess(jobs, level);
+            drainer = new OutputDrainer(p.getInputStream());
+            drainers.execute(drainer);
+            final Process process = p;
+            kill = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    killed.set(true);
+                    process.destroy();
+                }
+            }, calculateTimeout(jobs), TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            log.error("Failed to start a process.", e);
+            fail(jobs);
+            return;
+        }
+
+        final List<String> output;
+        try {
+            p.waitFor();
+            output = drainer.await();
+        } catch (InterruptedException e) {
+            log.error("Failed to wait for the process to finish.", e);
+            p.destroy();
+            fail(jobs);
+            return;
+        } catch (IOException e) {
+            log.error("Failed to read the output of optipng.", e);
+            fail(jobs);
+            return;
+        } finally {
+            kill.cancel(false);
+        }
+
+        if (log.isDebugEnabled()) {
+            for (String line : output) {
+                log.debug("optipng: " + line);
+            }
+            if (drainer.getDropped() > 0) {
+                log.debug(String.format("optipng: %d more lines",
+                    drainer.getDropped()));
+            }
+        }
+
+        final OptipngOutput parsed = OptipngOutput.parse(output);
+        for (ImageJob job : jobs) {
+            final File copy = job.getWorkingCopy();
+            if (killed.get() && !parsed.isCompleted(copy)) {
+                job.setOutcome(ImageJob.Outcome.TIMED_OUT);
+            } else if (p.exitValue() != 0 && (!parsed.isProcessed(copy)
+                    || parsed.getError(copy) != null)) {
+                log.error(String.format("Failed to optimize %s: %s",
+                    job.getImage().getPath(), parsed.isProcessed(copy)
+                    ? parsed.getError(copy) : "not processed"));
+                job.setOutcome(ImageJob.Outcome.FAILED);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        watchdog.shutdownNow();
+        drainers.shutdownNow();
+    }
+
+    /**
+     * Marks all images of a batch as failed.
+     *
+     * @param jobs images to mark
+     */
+    private static void fail(final List<ImageJob> jobs) {
+        for (ImageJob job : jobs) {
+            job.setOutcome(ImageJob.Outcome.FAILED);
+        }
+    }
+
+    /**
+     * Calculates the timeout for optimizing a batch of images as the sum of
+     * the images' timeouts.
+     *
+     * @param jobs images to optimize
+     * @return timeout in milliseconds
+     */
+    private static long calculateTimeout(final List<ImageJob> jobs) {
+        long timeout = 0;
+        for (ImageJob job : jobs) {
+            timeout += job.getTimeout();
+        }
+        return timeout;
+    }
+
+    /**
+     * Builds a optipng call for a batch of images and spawns a new process.
+     *
+     * @param jobs images to optimize
+     * @param level optimization level
+     * @return spawned process
+     * @throws IOException in case building the process failed
+     */
+    private static Process startProcess(final List<ImageJob> jobs,
+            final int level) throws IOException {
+        final List<String> args = new ArrayList<String>(jobs.size() + 2);
+        args.add(OPTIPNG_EXE);
+        args.add(OPTIPNG_COMPRESSION_LEVEL_PARAM + level);
+        for (ImageJob job : jobs) {
+            args.add(job.getWorkingCopy().getPath());
+        }
+        return new ProcessBuilder(args).redirectErrorStream(true).start();
+    }
+
+    /**
+     * Verifies whether optipng is installed.
+     *
+     * @return <code>true</code> if installed, <code>false</code> otherwise
+     * @throws MojoExecutionException in case building the process failed
+     */
+    private static boolean verifyOptipngInstallation() throws
+            MojoExecutionException {
+        List<String> args = new LinkedList<String>();
+        args.add(OPTIPNG_EXE);
+
+        Process p;
+        try {
+            p = new ProcessBuilder(args).start();
+            p.waitFor();
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                "Failed to verify optipng installation", e);
+        } catch (InterruptedException e) {
+            throw new MojoExecutionException(
+                "Failed to verify optipng installation", e);
+        }
+
+        return p.exitValue() == 0;
+    }
+
+    /**
+     * Determines the version of the installed optipng.
+     *
+     * @return first line printed by optipng's version parameter
+     * @throws MojoExecutionException in case running optipng failed
+     */
+    private static String detectOptipngVersion() throws
+            MojoExecutionException {
+        try {
+            final Process p = new ProcessBuilder(OPTIPNG_EXE,
+                OPTIPNG_VERSION_PARAM).redirectErrorStream(true).start();
+            final String version;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(p.getInputStream()))) {
+                version = reader.readLine();
+                while (reader.readLine() != null) {
+                    // drain remaining output so the process can exit
+                }
+            }
+            p.waitFor();
+            return version == null ? "" : version.trim();
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                "Failed to determine optipng version", e);
+        } catch (InterruptedException e) {
+            throw new MojoExecutionException(
+                "Failed to determine optipng version", e);
+        }
+    }
+}
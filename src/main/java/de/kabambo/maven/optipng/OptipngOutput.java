@@ -0,0 +1,126 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Output of an optipng invocation, split into sections per processed image.
+ */
+final class OptipngOutput {
+    /**
+     * Prefix of the line starting the section of an image.
+     */
+    private static final String PROCESSING_PREFIX = "** Processing: ";
+
+    /**
+     * Prefix of lines reporting an error.
+     */
+    private static final String ERROR_PREFIX = "Error";
+
+    /**
+     * Output lines by path of the image they refer to, in processing order.
+     */
+    private final Map<String, List<String>> sections;
+
+    /**
+     * Creates a parsed output.
+     *
+     * @param sections output lines by image path
+     */
+    private OptipngOutput(final Map<String, List<String>> sections) {
+        this.sections = sections;
+    }
+
+    /**
+     * Splits the output of optipng into sections per image. Lines preceding
+     * the first section are dropped.
+     *
+     * @param lines lines printed by optipng
+     * @return parsed output
+     */
+    static OptipngOutput parse(final List<String> lines) {
+        final Map<String, List<String>> sections =
+            new LinkedHashMap<String, List<String>>();
+        List<String> section = null;
+        for (String line : lines) {
+            if (line.startsWith(PROCESSING_PREFIX)) {
+                section = new ArrayList<String>();
+                sections.put(line.substring(PROCESSING_PREFIX.length())
+                    .trim(), section);
+            } else if (section != null && line.trim().length() > 0) {
+                section.add(line);
+            }
+        }
+        return new OptipngOutput(sections);
+    }
+
+    /**
+     * Checks whether optipng started processing an image.
+     *
+     * @param image image passed to optipng
+     * @return <code>true</code> if the image has a section
+     */
+    boolean isProcessed(final File image) {
+        return sections.containsKey(image.getPath());
+    }
+
+    /**
+     * Checks whether optipng finished processing an image, i.e. moved on to
+     * another one. Meant for output of processes which were killed.
+     *
+     * @param image image passed to optipng
+     * @return <code>true</code> if a later image has a section
+     */
+    boolean isCompleted(final File image) {
+        String last = null;
+        for (String path : sections.keySet()) {
+            last = path;
+        }
+        return isProcessed(image) && !image.getPath().equals(last);
+    }
+
+    /**
+     * Determines the error optipng reported for an image.
+     *
+     * @param image image passed to optipng
+     * @return first error line, <code>null</code> if there is none
+     */
+    String getError(final File image) {
+        for (String line : getLines(image)) {
+            if (line.startsWith(ERROR_PREFIX)) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the lines optipng printed for an image.
+     *
+     * @param image image passed to optipng
+     * @return output lines, empty if the image was not processed
+     */
+    List<String> getLines(final File image) {
+        final List<String> lines = sections.get(image.getPath());
+        return lines == null ? Collections.<String>emptyList() : lines;
+    }
+}
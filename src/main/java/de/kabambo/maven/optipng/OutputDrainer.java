@@ -0,0 +1,120 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Reads the output of a process until it is closed, so that the process
+ * never blocks on a full pipe buffer. The lines read are kept for parsing,
+ * up to a limit bounding memory for very chatty processes.
+ */
+class OutputDrainer implements Runnable {
+    /**
+     * Maximum number of lines kept.
+     */
+    private static final int MAX_LINES = 10000;
+
+    /**
+     * Stream to drain.
+     */
+    private final InputStream in;
+
+    /**
+     * Lines read so far.
+     */
+    private final List<String> lines = new ArrayList<String>();
+
+    /**
+     * Released once the stream is closed.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Number of lines read but not kept.
+     */
+    private int dropped;
+
+    /**
+     * Error which aborted reading, <code>null</code> if none.
+     */
+    private IOException error;
+
+    /**
+     * Creates a new drainer.
+     *
+     * @param in stream to drain
+     */
+    OutputDrainer(final InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the stream until it is closed.
+     */
+    @Override
+    public void run() {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                synchronized (lines) {
+                    if (lines.size() < MAX_LINES) {
+                        lines.add(line);
+                    } else {
+                        dropped++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Waits until the stream is closed and returns its content.
+     *
+     * @return lines read
+     * @throws IOException in case reading the stream failed
+     * @throws InterruptedException in case waiting was interrupted
+     */
+    List<String> await() throws IOException, InterruptedException {
+        done.await();
+        if (error != null) {
+            throw error;
+        }
+        synchronized (lines) {
+            return new ArrayList<String>(lines);
+        }
+    }
+
+    /**
+     * @return number of lines exceeding the limit which were discarded
+     */
+    int getDropped() {
+        synchronized (lines) {
+            return dropped;
+        }
+    }
+}
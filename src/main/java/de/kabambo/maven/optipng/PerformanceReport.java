@@ -0,0 +1,383 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Machine-readable report of the images processed by a build, listing size,
+ * level, engine, timing and outcome of every image along with totals and
+ * timing percentiles. Times are reported in milliseconds, sizes in bytes.
+ */
+class PerformanceReport {
+    /**
+     * Format writing a single JSON document.
+     */
+    static final String JSON = "json";
+
+    /**
+     * Format writing one line per image, followed by lines of totals and
+     * percentiles whose path starts with <code>#</code>.
+     */
+    static final String CSV = "csv";
+
+    /**
+     * Percentiles reported for each timing.
+     */
+    private static final int[] PERCENTILES = {50, 90, 99, 100};
+
+    /**
+     * Names of the percentiles reported.
+     */
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99",
+        "max"};
+
+    /**
+     * Columns of the CSV format.
+     */
+    private static final String CSV_HEADER = "path,status,level,engine,"
+        + "originalSize,finalSize,wallTimeMs,cpuTimeMs,queueWaitMs,"
+        + "verifyTimeMs";
+
+    /**
+     * Number of nanoseconds per millisecond.
+     */
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    /**
+     * Identifier of the engine optimizing the images.
+     */
+    private final String engine;
+
+    /**
+     * Images submitted for optimization.
+     */
+    private final List<ImageJob> jobs = new ArrayList<ImageJob>();
+
+    /**
+     * Number of images skipped as unchanged.
+     */
+    private int skipped;
+
+    /**
+     * Creates an empty report.
+     *
+     * @param engine identifier of the engine optimizing the images
+     */
+    PerformanceReport(final String engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Adds an image to the report. Its size and timing are read when the
+     * report is written.
+     *
+     * @param job image submitted for optimization
+     */
+    void add(final ImageJob job) {
+        jobs.add(job);
+    }
+
+    /**
+     * @param skipped number of images skipped as unchanged
+     */
+    void setSkipped(final int skipped) {
+        this.skipped = skipped;
+    }
+
+    /**
+     * Writes the report, replacing the file atomically.
+     *
+     * @param file file to write
+     * @param format {@link #JSON} or {@link #CSV}
+     * @param elapsed time in nanoseconds the whole build step took
+     * @throws IOException in case writing failed
+     */
+    void write(final File file, final String format, final long elapsed)
+            throws IOException {
+        final Path target = file.toPath();
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        final Path temp = Files.createTempFile(
+            target.toAbsolutePath().getParent(), null,
+            AtomicFiles.TEMP_SUFFIX);
+        try {
+            try (Writer out = Files.newBufferedWriter(temp,
+                    StandardCharsets.UTF_8)) {
+                if (CSV.equals(format)) {
+                    writeCsv(out);
+                } else {
+                    writeJson(out, elapsed);
+                }
+            }
+            AtomicFiles.move(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Writes the report as CSV.
+     *
+     * @param out writer to write to
+     * @throws IOException in case writing failed
+     */
+    private void writeCsv(final Writer out) throws IOException {
+        out.write(CSV_HEADER);
+        out.write('\n');
+        long originalSize = 0;
+        long finalSize = 0;
+        for (ImageJob job : jobs) {
+            originalSize += job.getOriginalSize();
+            finalSize += finalSize(job);
+            out.write(String.format(Locale.ROOT,
+                "%s,%s,%d,%s,%d,%d,%.3f,%.3f,%.3f,%.3f\n",
+                quote(job.getImage().getPath()), status(job),
+                job.getLevel(), quote(engine), job.getOriginalSize(),
+                finalSize(job), millis(job.getWallTime()),
+                millis(job.getCpuTime()), millis(job.getQueueWait()),
+                millis(job.getVerifyTime())));
+        }
+
+        final long[][] timings = timings();
+        out.write(String.format(Locale.ROOT, "#total,,,,%d,%d,%.3f,%.3f,"
+            + "%.3f,%.3f\n", originalSize, finalSize,
+            millis(sum(timings[0])), millis(sum(timings[1])),
+            millis(sum(timings[2])), millis(sum(timings[3]))));
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            out.write(String.format(Locale.ROOT,
+                "#%s,,,,,,%.3f,%.3f,%.3f,%.3f\n", PERCENTILE_NAMES[i],
+                millis(percentile(timings[0], PERCENTILES[i])),
+                millis(percentile(timings[1], PERCENTILES[i])),
+                millis(percentile(timings[2], PERCENTILES[i])),
+                millis(percentile(timings[3], PERCENTILES[i]))));
+        }
+    }
+
+    /**
+     * Writes the report as JSON.
+     *
+     * @param out writer to write to
+     * @param elapsed time in nanoseconds the whole build step took
+     * @throws IOException in case writing failed
+     */
+    private void writeJson(final Writer out, final long elapsed)
+            throws IOException {
+        long originalSize = 0;
+        long finalSize = 0;
+        final Map<ImageJob.Outcome, Integer> outcomes =
+            new EnumMap<ImageJob.Outcome, Integer>(ImageJob.Outcome.class);
+        for (ImageJob.Outcome outcome : ImageJob.Outcome.values()) {
+            outcomes.put(outcome, 0);
+        }
+        for (ImageJob job : jobs) {
+            originalSize += job.getOriginalSize();
+            finalSize += finalSize(job);
+            if (job.getOutcome() != null) {
+                outcomes.put(job.getOutcome(),
+                    outcomes.get(job.getOutcome()) + 1);
+            }
+        }
+        final long[][] timings = timings();
+
+        out.write("{\n  \"engine\": " + quoteJson(engine) + ",\n");
+        out.write(String.format(Locale.ROOT, "  \"elapsedMs\": %.3f,\n",
+            millis(elapsed)));
+        out.write("  \"totals\": {\n");
+        out.write(String.format(Locale.ROOT, "    \"images\": %d,\n"
+            + "    \"skipped\": %d,\n    \"originalSize\": %d,\n"
+            + "    \"finalSize\": %d,\n    \"savedBytes\": %d,\n"
+            + "    \"wallTimeMs\": %.3f,\n    \"cpuTimeMs\": %.3f,\n"
+            + "    \"queueWaitMs\": %.3f,\n    \"verifyTimeMs\": %.3f,\n",
+            jobs.size(), skipped, originalSize, finalSize,
+            originalSize - finalSize, millis(sum(timings[0])),
+            millis(sum(timings[1])), millis(sum(timings[2])),
+            millis(sum(timings[3]))));
+        out.write("    \"status\": {");
+        String separator = "";
+        for (Map.Entry<ImageJob.Outcome, Integer> entry
+                : outcomes.entrySet()) {
+            out.write(separator + quoteJson(name(entry.getKey())) + ": "
+                + entry.getValue());
+            separator = ", ";
+        }
+        out.write("}\n  },\n");
+
+        out.write("  \"percentiles\": {\n");
+        final String[] names = {"wallTimeMs", "cpuTimeMs", "queueWaitMs",
+            "verifyTimeMs"};
+        for (int t = 0; t < names.length; t++) {
+            out.write("    " + quoteJson(names[t]) + ": {");
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                out.write(String.format(Locale.ROOT, "%s\"%s\": %.3f",
+                    i == 0 ? "" : ", ", PERCENTILE_NAMES[i],
+                    millis(percentile(timings[t], PERCENTILES[i]))));
+            }
+            out.write(t < names.length - 1 ? "},\n" : "}\n");
+        }
+        out.write("  },\n");
+
+        out.write("  \"images\": [");
+        separator = "\n";
+        for (ImageJob job : jobs) {
+            out.write(separator);
+            out.write(String.format(Locale.ROOT, "    {\"path\": %s, "
+                + "\"status\": \"%s\", \"level\": %d, \"engine\": %s, "
+                + "\"originalSize\": %d, \"finalSize\": %d, "
+                + "\"wallTimeMs\": %.3f, \"cpuTimeMs\": %.3f, "
+                + "\"queueWaitMs\": %.3f, \"verifyTimeMs\": %.3f}",
+                quoteJson(job.getImage().getPath()), status(job),
+                job.getLevel(), quoteJson(engine), job.getOriginalSize(),
+                finalSize(job), millis(job.getWallTime()),
+                millis(job.getCpuTime()), millis(job.getQueueWait()),
+                millis(job.getVerifyTime())));
+            separator = ",\n";
+        }
+        out.write(jobs.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+    }
+
+    /**
+     * Collects wall times, CPU times, queue waits and verification times of
+     * all images, each sorted ascending.
+     *
+     * @return timings in nanoseconds
+     */
+    private long[][] timings() {
+        final long[][] timings = new long[4][jobs.size()];
+        for (int i = 0; i < jobs.size(); i++) {
+            timings[0][i] = jobs.get(i).getWallTime();
+            timings[1][i] = jobs.get(i).getCpuTime();
+            timings[2][i] = jobs.get(i).getQueueWait();
+            timings[3][i] = jobs.get(i).getVerifyTime();
+        }
+        for (long[] timing : timings) {
+            Arrays.sort(timing);
+        }
+        return timings;
+    }
+
+    /**
+     * Determines a percentile by the nearest-rank method.
+     *
+     * @param sorted values sorted ascending
+     * @param percentile percentile between 1 and 100
+     * @return value, zero if there are no values
+     */
+    static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(percentile / 100d * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Sums values.
+     *
+     * @param values values to sum
+     * @return sum
+     */
+    private static long sum(final long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Determines the size of an image after the build.
+     *
+     * @param job image
+     * @return size of its target, the original size if there is none
+     */
+    private static long finalSize(final ImageJob job) {
+        final File target = job.getTarget();
+        return target.isFile() ? target.length() : job.getOriginalSize();
+    }
+
+    /**
+     * Describes the outcome of an image.
+     *
+     * @param job image
+     * @return lower case outcome, <code>unknown</code> if none
+     */
+    private static String status(final ImageJob job) {
+        return job.getOutcome() == null ? "unknown" : name(job.getOutcome());
+    }
+
+    /**
+     * Names an outcome in reports.
+     *
+     * @param outcome outcome
+     * @return lower case name
+     */
+    private static String name(final ImageJob.Outcome outcome) {
+        return outcome.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Converts nanoseconds to milliseconds.
+     *
+     * @param nanos time in nanoseconds
+     * @return time in milliseconds
+     */
+    private static double millis(final long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Quotes a CSV field.
+     *
+     * @param value field value
+     * @return quoted value
+     */
+    private static String quote(final String value) {
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Quotes a JSON string.
+     *
+     * @param value string value
+     * @return quoted and escaped value
+     */
+    private static String quoteJson(final String value) {
+        final StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
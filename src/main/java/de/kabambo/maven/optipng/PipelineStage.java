@@ -0,0 +1,138 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stage of the optimization pipeline: a fixed number of worker threads
+ * fed by a queue. Putting a task into a full stage blocks until a worker
+ * takes one, so that a fast stage cannot run arbitrarily far ahead of a
+ * slow one. Prioritized stages are unbounded, as a bound would limit the
+ * ordering to the tasks which happen to be queued.
+ */
+class PipelineStage extends ThreadPoolExecutor {
+    /**
+     * Permits for tasks queued but not yet started.
+     */
+    private final Semaphore capacity;
+
+    /**
+     * Creates a new stage.
+     *
+     * @param name name of the worker threads
+     * @param threads number of worker threads
+     * @param capacity maximum number of queued tasks
+     * @param queue queue holding tasks until a worker is available
+     */
+    private PipelineStage(final String name, final int threads,
+            final int capacity, final BlockingQueue<Runnable> queue) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, queue,
+            new NamedThreadFactory(name));
+        this.capacity = new Semaphore(capacity);
+    }
+
+    /**
+     * Creates a stage running tasks in the order they were put.
+     *
+     * @param name name of the worker threads
+     * @param threads number of worker threads
+     * @param capacity maximum number of queued tasks
+     * @return stage
+     */
+    static PipelineStage fifo(final String name, final int threads,
+            final int capacity) {
+        return new PipelineStage(name, threads, capacity,
+            new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Creates a stage running tasks in their natural order among all tasks
+     * queued. Tasks must be {@link Comparable}. The queue is unbounded, so
+     * tasks should be small.
+     *
+     * @param name name of the worker threads
+     * @param threads number of worker threads
+     * @return stage
+     */
+    static PipelineStage prioritized(final String name, final int threads) {
+        return new PipelineStage(name, threads, Integer.MAX_VALUE,
+            new PriorityBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Queues a task, waiting while the stage is full. Tasks must not be
+     * wrapped as by <code>submit()</code>, which would lose their ordering.
+     *
+     * @param task task to run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void put(final Runnable task) throws InterruptedException {
+        capacity.acquire();
+        try {
+            execute(task);
+        } catch (RejectedExecutionException e) {
+            capacity.release();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void beforeExecute(final Thread thread, final Runnable task) {
+        capacity.release();
+        super.beforeExecute(thread, task);
+    }
+
+    /**
+     * Names worker threads after their stage.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        /**
+         * Prefix of thread names.
+         */
+        private final String name;
+
+        /**
+         * Number of threads created.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Creates a new factory.
+         *
+         * @param name prefix of thread names
+         */
+        NamedThreadFactory(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable task) {
+            final Thread thread = new Thread(task, "optipng-" + name + "-"
+                + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,600 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes the pixels of a PNG file row by row into a form independent of
+ * color type, bit depth, palette and filtering: each pixel as 16-bit red,
+ * green, blue and alpha samples packed into a long. Fully transparent
+ * pixels are all zero regardless of their color. Image data is inflated
+ * while reading, so memory use is proportional to the width of the image;
+ * interlaced images are read pass by pass. Once all rows are read, the end
+ * of the image is verified, so that truncated images are not mistaken for
+ * complete ones.
+ */
+final class PixelReader implements Closeable {
+    /**
+     * Maximum value of a sample in the decoded form.
+     */
+    private static final int MAX_SAMPLE = 0xffff;
+
+    /**
+     * Name of the palette chunk.
+     */
+    private static final String PLTE = "PLTE";
+
+    /**
+     * Name of the transparency chunk.
+     */
+    private static final String TRNS = "tRNS";
+
+    /**
+     * The file being read.
+     */
+    private final DataInputStream file;
+
+    /**
+     * Header of the image.
+     */
+    private final ImageHeader header;
+
+    /**
+     * Decoded pixel per palette index, <code>null</code> if there is no
+     * palette.
+     */
+    private long[] palette;
+
+    /**
+     * Samples of the color marked transparent in grayscale and RGB images,
+     * <code>null</code> if there is none.
+     */
+    private int[] transparent;
+
+    /**
+     * Inflater of the image data.
+     */
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * Compressed image data, <code>null</code> until reached.
+     */
+    private ImageDataStream stream;
+
+    /**
+     * Inflated image data.
+     */
+    private DataInputStream data;
+
+    /**
+     * Samples of the pixel being decoded.
+     */
+    private final int[] samples = new int[4];
+
+    /**
+     * Current row, unfiltered.
+     */
+    private byte[] row;
+
+    /**
+     * Previous row, unfiltered.
+     */
+    private byte[] prior;
+
+    /**
+     * Number of passes: seven for interlaced images, one otherwise.
+     */
+    private final int passes;
+
+    /**
+     * Pass of the next row, {@link #passes} once all rows have been read.
+     */
+    private int pass = -1;
+
+    /**
+     * Image row of the next row.
+     */
+    private int y;
+
+    /**
+     * Number of pixels per row of the current pass.
+     */
+    private int columns;
+
+    /**
+     * Creates a reader, reading all chunks up to the image data.
+     *
+     * @param file stream positioned after the signature
+     * @throws IOException in case the file is malformed
+     */
+    private PixelReader(final DataInputStream file) throws IOException {
+        this.file = file;
+        ImageHeader parsed = null;
+        final byte[] type = new byte[4];
+        while (true) {
+            final int length = file.readInt();
+            file.readFully(type);
+            final String chunkType = new String(type,
+                StandardCharsets.US_ASCII);
+            if (length < 0) {
+                throw new IOException("Invalid chunk length " + length);
+            }
+            if (PngChunk.IDAT.equals(chunkType)) {
+                stream = new ImageDataStream(file, type, length);
+                data = new DataInputStream(new InflaterInputStream(stream,
+                    inflater));
+                break;
+            }
+            if (PngChunk.IEND.equals(chunkType)) {
+                throw new IOException("Missing " + PngChunk.IDAT + " chunk");
+            }
+
+            final PngChunk chunk = readChunk(chunkType, length);
+            if (PngChunk.IHDR.equals(chunkType)) {
+                parsed = ImageHeader.parse(chunk);
+            } else if (PLTE.equals(chunkType)) {
+                readPalette(chunk.getData());
+            } else if (TRNS.equals(chunkType)) {
+                readTransparency(parsed, chunk.getData());
+            }
+        }
+
+        if (parsed == null) {
+            throw new IOException("Missing " + PngChunk.IHDR + " chunk");
+        }
+        header = parsed;
+        if (header.getColorType() == ImageHeader.PALETTE && palette == null) {
+            throw new IOException("Missing " + PLTE + " chunk");
+        }
+        passes = header.getInterlace() == 0 ? 1
+            : ImageHeader.ADAM7_ROW_STEP.length;
+        nextPass();
+    }
+
+    /**
+     * Opens an image for reading.
+     *
+     * @param image image to read
+     * @return reader, to be closed by the caller
+     * @throws IOException in case the image could not be read or is
+     *         malformed
+     */
+    static PixelReader open(final File image) throws IOException {
+        final DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(image)));
+        try {
+            final byte[] signature = new byte[PngFile.SIGNATURE.length];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, PngFile.SIGNATURE)) {
+                throw new IOException("Not a PNG file");
+            }
+            return new PixelReader(in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Compares the pixels of two images row by row, then verifies that both
+     * end properly. Images interlaced differently are compared pass by pass
+     * of the interlaced one, reading the other one once per pass.
+     *
+     * @param a first image
+     * @param b second image
+     * @return <code>true</code> if both images have the same dimensions and
+     *         pixels
+     * @throws IOException in case either image could not be read, is
+     *         malformed or truncated
+     */
+    static boolean samePixels(final File a, final File b) throws IOException {
+        try (PixelReader first = open(a); PixelReader second = open(b)) {
+            final int width = first.header.getWidth();
+            if (width != second.header.getWidth() || first.header.getHeight()
+                    != second.header.getHeight()) {
+                return false;
+            }
+
+            if (first.passes != second.passes) {
+                return first.passes > second.passes
+                    ? samePixels(first, b) : samePixels(second, a);
+            }
+            final long[] firstRow = new long[width];
+            final long[] secondRow = new long[width];
+            while (first.hasNext()) {
+                final int count = first.readRow(firstRow);
+                second.readRow(secondRow);
+                for (int x = 0; x < count; x++) {
+                    if (firstRow[x] != secondRow[x]) {
+                        return false;
+                    }
+                }
+            }
+            first.finish();
+            second.finish();
+            return true;
+        }
+    }
+
+    /**
+     * Compares the pixels of an interlaced image with those of an image
+     * which is not, reading the latter once per pass of the former.
+     *
+     * @param interlaced reader of the interlaced image
+     * @param image image which is not interlaced, of the same dimensions
+     * @return <code>true</code> if both images have the same pixels
+     * @throws IOException in case either image could not be read, is
+     *         malformed or truncated
+     */
+    private static boolean samePixels(final PixelReader interlaced,
+            final File image) throws IOException {
+        final long[] passRow = new long[interlaced.header.getWidth()];
+        final long[] fullRow = new long[passRow.length];
+        while (interlaced.hasNext()) {
+            final int pass = interlaced.pass;
+            final int start = ImageHeader.ADAM7_COLUMN_START[pass];
+            final int step = ImageHeader.ADAM7_COLUMN_STEP[pass];
+            try (PixelReader reader = open(image)) {
+                while (reader.hasNext()) {
+                    final int row = reader.y;
+                    reader.readRow(fullRow);
+                    if (interlaced.pass != pass || interlaced.y != row) {
+                        continue;
+                    }
+                    final int count = interlaced.readRow(passRow);
+                    for (int x = 0; x < count; x++) {
+                        if (passRow[x] != fullRow[start + x * step]) {
+                            return false;
+                        }
+                    }
+                }
+                reader.finish();
+            }
+        }
+        interlaced.finish();
+        return true;
+    }
+
+    /**
+     * @return header of the image
+     */
+    ImageHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return <code>true</code> if there are rows left to read
+     */
+    boolean hasNext() {
+        return pass < passes;
+    }
+
+    /**
+     * Reads the next row of pixels. Rows of interlaced images are read pass
+     * by pass, each holding only the pixels of its pass.
+     *
+     * @param pixels array receiving the pixels, at least as long as the
+     *        image is wide
+     * @return number of pixels read
+     * @throws IOException in case the image data is malformed or all rows
+     *         have been read
+     */
+    int readRow(final long[] pixels) throws IOException {
+        if (!hasNext()) {
+            throw new IOException("No more rows");
+        }
+
+        readFiltered();
+        final int count = columns;
+        expand(count, pixels);
+        y += passes == 1 ? 1 : ImageHeader.ADAM7_ROW_STEP[pass];
+        if (y >= header.getHeight()) {
+            nextPass();
+        }
+        return count;
+    }
+
+    /**
+     * Verifies the end of the image once all rows have been read: the image
+     * data must end with its zlib stream, whose checksum is verified, and be
+     * followed by chunks with valid CRCs up to the end chunk.
+     *
+     * @throws IOException in case rows are left or the image is malformed
+     *         or truncated
+     */
+    void finish() throws IOException {
+        if (hasNext()) {
+            throw new IOException("Unread rows");
+        }
+        try {
+            if (data.read() >= 0) {
+                throw new IOException("Excess image data");
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated image data", e);
+        }
+        if (!inflater.finished()) {
+            throw new IOException("Truncated image data");
+        }
+
+        try {
+            stream.skipToEnd();
+            int length = stream.getNextLength();
+            String type = stream.getNextType();
+            final byte[] next = new byte[4];
+            while (true) {
+                if (length < 0) {
+                    throw new IOException("Invalid chunk length " + length);
+                }
+                if (PngChunk.IDAT.equals(type)) {
+                    throw new IOException("Non-consecutive " + PngChunk.IDAT
+                        + " chunks");
+                }
+                readChunk(type, length);
+                if (PngChunk.IEND.equals(type)) {
+                    return;
+                }
+                length = file.readInt();
+                file.readFully(next);
+                type = new String(next, StandardCharsets.US_ASCII);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Missing " + PngChunk.IEND + " chunk", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (data != null) {
+                data.close();
+            }
+        } finally {
+            inflater.end();
+            file.close();
+        }
+    }
+
+    /**
+     * Advances to the next pass holding any pixels.
+     */
+    private void nextPass() {
+        while (++pass < passes) {
+            final int start = passes == 1 ? 0
+                : ImageHeader.ADAM7_COLUMN_START[pass];
+            final int step = passes == 1 ? 1
+                : ImageHeader.ADAM7_COLUMN_STEP[pass];
+            columns = (header.getWidth() - start + step - 1) / step;
+            y = passes == 1 ? 0 : ImageHeader.ADAM7_ROW_START[pass];
+            if (columns > 0 && y < header.getHeight()) {
+                row = new byte[header.getRowBytes(columns)];
+                prior = new byte[row.length];
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the content of a chunk and verifies its CRC.
+     *
+     * @param type chunk type
+     * @param length length of the chunk data
+     * @return chunk read
+     * @throws IOException in case the chunk is truncated or its CRC does
+     *         not match
+     */
+    private PngChunk readChunk(final String type, final int length)
+            throws IOException {
+        final byte[] content = new byte[length];
+        file.readFully(content);
+        final PngChunk chunk = new PngChunk(type, content);
+        if (chunk.crc() != file.readInt()) {
+            throw new IOException("CRC mismatch in " + type + " chunk");
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads and unfilters the next row of image data into {@link #row},
+     * keeping the previous one in {@link #prior}.
+     *
+     * @throws IOException in case the image data is malformed
+     */
+    private void readFiltered() throws IOException {
+        final byte[] swap = prior;
+        prior = row;
+        row = swap;
+        try {
+            final int type = data.readUnsignedByte();
+            data.readFully(row);
+            PngFilters.unfilter(type, row, prior, header.getFilterUnit());
+        } catch (EOFException e) {
+            throw new IOException("Truncated image data", e);
+        }
+    }
+
+    /**
+     * Decodes the pixels of {@link #row}.
+     *
+     * @param count number of pixels in the row
+     * @param pixels array receiving the pixels
+     * @throws IOException in case a palette index is out of range
+     */
+    private void expand(final int count, final long[] pixels)
+            throws IOException {
+        final int depth = header.getBitDepth();
+        final int channels = header.getChannels();
+        int bit = 0;
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < channels; c++) {
+                samples[c] = sample(row, bit, depth);
+                bit += depth;
+            }
+            pixels[i] = decode(depth);
+        }
+    }
+
+    /**
+     * Decodes the pixel in {@link #samples}.
+     *
+     * @param depth bits per sample
+     * @return decoded pixel
+     * @throws IOException in case a palette index is out of range
+     */
+    private long decode(final int depth) throws IOException {
+        switch (header.getColorType()) {
+        case ImageHeader.PALETTE:
+            if (samples[0] >= palette.length) {
+                throw new IOException("Palette index out of range");
+            }
+            return palette[samples[0]];
+        case ImageHeader.GRAYSCALE:
+            final int gray = scale(samples[0], depth);
+            return pixel(gray, gray, gray, transparent != null
+                && samples[0] == transparent[0] ? 0 : MAX_SAMPLE);
+        case ImageHeader.GRAYSCALE_ALPHA:
+            final int value = scale(samples[0], depth);
+            return pixel(value, value, value, scale(samples[1], depth));
+        case ImageHeader.RGB:
+            final boolean clear = transparent != null
+                && samples[0] == transparent[0]
+                && samples[1] == transparent[1]
+                && samples[2] == transparent[2];
+            return pixel(scale(samples[0], depth), scale(samples[1], depth),
+                scale(samples[2], depth), clear ? 0 : MAX_SAMPLE);
+        default:
+            return pixel(scale(samples[0], depth), scale(samples[1], depth),
+                scale(samples[2], depth), scale(samples[3], depth));
+        }
+    }
+
+    /**
+     * Reads the palette, assuming all entries opaque.
+     *
+     * @param content content of the palette chunk
+     * @throws IOException in case the chunk is malformed
+     */
+    private void readPalette(final byte[] content) throws IOException {
+        if (content.length % 3 != 0) {
+            throw new IOException("Invalid " + PLTE + " chunk");
+        }
+        palette = new long[content.length / 3];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = pixel(scale(content[i * 3] & 0xff, 8),
+                scale(content[i * 3 + 1] & 0xff, 8),
+                scale(content[i * 3 + 2] & 0xff, 8), MAX_SAMPLE);
+        }
+    }
+
+    /**
+     * Reads the transparency chunk, which follows the header and palette.
+     *
+     * @param parsed header read so far, may be <code>null</code>
+     * @param content content of the transparency chunk
+     * @throws IOException in case the chunk is malformed
+     */
+    private void readTransparency(final ImageHeader parsed,
+            final byte[] content) throws IOException {
+        if (parsed == null) {
+            throw new IOException("Misplaced " + TRNS + " chunk");
+        }
+        switch (parsed.getColorType()) {
+        case ImageHeader.PALETTE:
+            if (palette == null || content.length > palette.length) {
+                throw new IOException("Invalid " + TRNS + " chunk");
+            }
+            for (int i = 0; i < content.length; i++) {
+                final long color = palette[i];
+                palette[i] = pixel((int) (color >>> 48) & MAX_SAMPLE,
+                    (int) (color >>> 32) & MAX_SAMPLE,
+                    (int) (color >>> 16) & MAX_SAMPLE,
+                    scale(content[i] & 0xff, 8));
+            }
+            break;
+        case ImageHeader.GRAYSCALE:
+        case ImageHeader.RGB:
+            if (content.length != parsed.getChannels() * 2) {
+                throw new IOException("Invalid " + TRNS + " chunk");
+            }
+            transparent = new int[parsed.getChannels()];
+            for (int i = 0; i < transparent.length; i++) {
+                transparent[i] = (content[i * 2] & 0xff) << 8
+                    | content[i * 2 + 1] & 0xff;
+            }
+            break;
+        default:
+            throw new IOException("Invalid " + TRNS + " chunk");
+        }
+    }
+
+    /**
+     * Extracts a sample from a row.
+     *
+     * @param row unfiltered row
+     * @param bit offset of the sample in bits
+     * @param depth bits per sample
+     * @return sample
+     */
+    static int sample(final byte[] row, final int bit,
+            final int depth) {
+        final int offset = bit >>> 3;
+        if (depth == 16) {
+            return (row[offset] & 0xff) << 8 | row[offset + 1] & 0xff;
+        }
+        return (row[offset] & 0xff) >>> (8 - depth - (bit & 7))
+            & (1 << depth) - 1;
+    }
+
+    /**
+     * Scales a sample to 16 bits.
+     *
+     * @param sample sample
+     * @param depth bits per sample
+     * @return scaled sample
+     */
+    private static int scale(final int sample, final int depth) {
+        return depth == 16 ? sample : sample * MAX_SAMPLE / ((1 << depth) - 1);
+    }
+
+    /**
+     * Packs the samples of a pixel.
+     *
+     * @param red red sample
+     * @param green green sample
+     * @param blue blue sample
+     * @param alpha alpha sample
+     * @return packed pixel, zero if fully transparent
+     */
+    private static long pixel(final int red, final int green, final int blue,
+            final int alpha) {
+        if (alpha == 0) {
+            return 0;
+        }
+        return (long) red << 48 | (long) green << 32 | (long) blue << 16
+            | alpha;
+    }
+}
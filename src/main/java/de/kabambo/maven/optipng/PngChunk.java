@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * A chunk of a PNG file.
+ */
+final class PngChunk {
+    /**
+     * Type of the image header chunk.
+     */
+    static final String IHDR = "IHDR";
+
+    /**
+     * Type of image data chunks.
+     */
+    static final String IDAT = "IDAT";
+
+    /**
+     * Type of the image trailer chunk.
+     */
+    static final String IEND = "IEND";
+
+    /**
+     * Four letter chunk type.
+     */
+    private final String type;
+
+    /**
+     * Chunk data, excluding length, type and CRC.
+     */
+    private final byte[] data;
+
+    /**
+     * Creates a new chunk.
+     *
+     * @param type four letter chunk type
+     * @param data chunk data
+     */
+    PngChunk(final String type, final byte[] data) {
+        this.type = type;
+        this.data = data;
+    }
+
+    /**
+     * @return four letter chunk type
+     */
+    String getType() {
+        return type;
+    }
+
+    /**
+     * @return chunk data
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Checks whether the chunk is ancillary, i.e. not needed to display the
+     * image, as denoted by a lower case first letter of its type.
+     *
+     * @return <code>true</code> if ancillary
+     */
+    boolean isAncillary() {
+        return Character.isLowerCase(type.charAt(0));
+    }
+
+    /**
+     * Computes the CRC of the chunk, covering type and data.
+     *
+     * @return CRC as stored in the file
+     */
+    int crc() {
+        final CRC32 crc = new CRC32();
+        crc.update(type.getBytes(StandardCharsets.US_ASCII));
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads and writes PNG files as sequences of chunks.
+ */
+final class PngFile {
+    /**
+     * Signature every PNG file starts with.
+     */
+    static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n',
+        0x1a, '\n'};
+
+    /**
+     * Chunks of the file in order.
+     */
+    private final List<PngChunk> chunks;
+
+    /**
+     * Creates a file from its chunks.
+     *
+     * @param chunks chunks in order
+     */
+    PngFile(final List<PngChunk> chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Reads a PNG file, verifying the signature and chunk CRCs.
+     *
+     * @param in stream to read, not closed
+     * @return file read
+     * @throws IOException in case reading failed or the file is malformed
+     */
+    static PngFile read(final InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        final byte[] signature = new byte[SIGNATURE.length];
+        data.readFully(signature);
+        if (!Arrays.equals(signature, SIGNATURE)) {
+            throw new IOException("Not a PNG file");
+        }
+
+        final List<PngChunk> chunks = new ArrayList<PngChunk>();
+        PngChunk chunk;
+        do {
+            final int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Missing " + PngChunk.IEND + " chunk",
+                    e);
+            }
+            if (length < 0) {
+                throw new IOException("Invalid chunk length " + length);
+            }
+
+            final byte[] type = new byte[4];
+            data.readFully(type);
+            final byte[] content = new byte[length];
+            data.readFully(content);
+            chunk = new PngChunk(new String(type, StandardCharsets.US_ASCII),
+                content);
+            if (chunk.crc() != data.readInt()) {
+                throw new IOException("CRC mismatch in " + chunk.getType()
+                    + " chunk");
+            }
+            chunks.add(chunk);
+        } while (!PngChunk.IEND.equals(chunk.getType()));
+
+        return new PngFile(chunks);
+    }
+
+    /**
+     * Writes the file.
+     *
+     * @param out stream to write to, not closed
+     * @throws IOException in case writing failed
+     */
+    void write(final OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+        for (PngChunk chunk : chunks) {
+            data.writeInt(chunk.getData().length);
+            data.write(chunk.getType().getBytes(StandardCharsets.US_ASCII));
+            data.write(chunk.getData());
+            data.writeInt(chunk.crc());
+        }
+        data.flush();
+    }
+
+    /**
+     * @return chunks in order
+     */
+    List<PngChunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * Returns the first chunk of a type.
+     *
+     * @param type chunk type
+     * @return chunk, <code>null</code> if there is none
+     */
+    PngChunk getChunk(final String type) {
+        for (PngChunk chunk : chunks) {
+            if (chunk.getType().equals(type)) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Concatenates the data of all image data chunks.
+     *
+     * @return compressed image data
+     */
+    byte[] getImageData() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (PngChunk chunk : chunks) {
+            if (PngChunk.IDAT.equals(chunk.getType())) {
+                out.write(chunk.getData(), 0, chunk.getData().length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a copy of this file with all image data chunks replaced by a
+     * single one.
+     *
+     * @param imageData compressed image data
+     * @return new file
+     */
+    PngFile withImageData(final byte[] imageData) {
+        final List<PngChunk> replaced = new ArrayList<PngChunk>(
+            chunks.size());
+        boolean written = false;
+        for (PngChunk chunk : chunks) {
+            if (!PngChunk.IDAT.equals(chunk.getType())) {
+                replaced.add(chunk);
+            } else if (!written) {
+                replaced.add(new PngChunk(PngChunk.IDAT, imageData));
+                written = true;
+            }
+        }
+        return new PngFile(replaced);
+    }
+}
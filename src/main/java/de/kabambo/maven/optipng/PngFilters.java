@@ -0,0 +1,215 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.IOException;
+
+/**
+ * The scanline filters defined by the PNG specification.
+ */
+final class PngFilters {
+    /**
+     * Filter type leaving bytes unchanged.
+     */
+    static final int NONE = 0;
+
+    /**
+     * Filter type predicting from the previous pixel.
+     */
+    static final int SUB = 1;
+
+    /**
+     * Filter type predicting from the previous row.
+     */
+    static final int UP = 2;
+
+    /**
+     * Filter type predicting from the average of both.
+     */
+    static final int AVERAGE = 3;
+
+    /**
+     * Filter type using the Paeth predictor.
+     */
+    static final int PAETH = 4;
+
+    /**
+     * Pseudo filter type choosing the filter per row which minimizes the sum
+     * of absolute differences, as recommended by the PNG specification.
+     */
+    static final int ADAPTIVE = 5;
+
+    /**
+     * Utility class, not instantiable.
+     */
+    private PngFilters() {
+    }
+
+    /**
+     * Reverses the filter of a row in place.
+     *
+     * @param type filter type of the row
+     * @param row filtered row, without filter byte
+     * @param prior unfiltered previous row, all zero for the first row
+     * @param unit filter unit in bytes
+     * @throws IOException in case the filter type is invalid
+     */
+    static void unfilter(final int type, final byte[] row, final byte[] prior,
+            final int unit) throws IOException {
+        final int length = row.length;
+        switch (type) {
+        case NONE:
+            break;
+        case SUB:
+            for (int i = unit; i < length; i++) {
+                row[i] += row[i - unit];
+            }
+            break;
+        case UP:
+            for (int i = 0; i < length; i++) {
+                row[i] += prior[i];
+            }
+            break;
+        case AVERAGE:
+            for (int i = 0; i < length; i++) {
+                final int left = i >= unit ? row[i - unit] & 0xff : 0;
+                row[i] += (left + (prior[i] & 0xff)) >>> 1;
+            }
+            break;
+        case PAETH:
+            for (int i = 0; i < length; i++) {
+                final int left = i >= unit ? row[i - unit] & 0xff : 0;
+                final int upperLeft = i >= unit ? prior[i - unit] & 0xff : 0;
+                row[i] += paeth(left, prior[i] & 0xff, upperLeft);
+            }
+            break;
+        default:
+            throw new IOException("Invalid filter type " + type);
+        }
+    }
+
+    /**
+     * Filters a row.
+     *
+     * @param type filter type, not {@link #ADAPTIVE}
+     * @param row unfiltered row
+     * @param prior unfiltered previous row, all zero for the first row
+     * @param unit filter unit in bytes
+     * @param out filtered row, same length as <code>row</code>
+     */
+    static void filter(final int type, final byte[] row, final byte[] prior,
+            final int unit, final byte[] out) {
+        final int length = row.length;
+        switch (type) {
+        case SUB:
+            for (int i = 0; i < length; i++) {
+                out[i] = (byte) (row[i] - (i >= unit ? row[i - unit] : 0));
+            }
+            break;
+        case UP:
+            for (int i = 0; i < length; i++) {
+                out[i] = (byte) (row[i] - prior[i]);
+            }
+            break;
+        case AVERAGE:
+            for (int i = 0; i < length; i++) {
+                final int left = i >= unit ? row[i - unit] & 0xff : 0;
+                out[i] = (byte) (row[i] - ((left + (prior[i] & 0xff)) >>> 1));
+            }
+            break;
+        case PAETH:
+            for (int i = 0; i < length; i++) {
+                final int left = i >= unit ? row[i - unit] & 0xff : 0;
+                final int upperLeft = i >= unit ? prior[i - unit] & 0xff : 0;
+                out[i] = (byte) (row[i] - paeth(left, prior[i] & 0xff,
+                    upperLeft));
+            }
+            break;
+        default:
+            System.arraycopy(row, 0, out, 0, length);
+            break;
+        }
+    }
+
+    /**
+     * Filters a row with the given filter type or, for {@link #ADAPTIVE},
+     * with the type minimizing the sum of absolute differences.
+     *
+     * @param type filter type
+     * @param row unfiltered row
+     * @param prior unfiltered previous row, all zero for the first row
+     * @param unit filter unit in bytes
+     * @param out filtered row, same length as <code>row</code>
+     * @param scratch buffer of the same length as <code>row</code>
+     * @return filter type used
+     */
+    static int filter(final int type, final byte[] row, final byte[] prior,
+            final int unit, final byte[] out, final byte[] scratch) {
+        if (type != ADAPTIVE) {
+            filter(type, row, prior, unit, out);
+            return type;
+        }
+
+        int best = NONE;
+        long bestSum = Long.MAX_VALUE;
+        for (int candidate = NONE; candidate <= PAETH; candidate++) {
+            filter(candidate, row, prior, unit, scratch);
+            final long sum = sumOfAbsoluteDifferences(scratch, bestSum);
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = candidate;
+                System.arraycopy(scratch, 0, out, 0, row.length);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Sums filtered bytes interpreted as signed differences, stopping early
+     * once a limit is exceeded.
+     *
+     * @param filtered filtered row
+     * @param limit sum beyond which summing stops
+     * @return sum of absolute values
+     */
+    private static long sumOfAbsoluteDifferences(final byte[] filtered,
+            final long limit) {
+        long sum = 0;
+        for (int i = 0; i < filtered.length && sum < limit; i++) {
+            sum += Math.abs((int) filtered[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * The Paeth predictor.
+     *
+     * @param a left byte
+     * @param b upper byte
+     * @param c upper left byte
+     * @return predicted byte
+     */
+    private static int paeth(final int a, final int b, final int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A persistent cache mapping the digest of an unoptimized image to its
+ * optimized content. Entries are keyed by content digest, optimization level
+ * and engine settings, so changing either of the latter invalidates them.
+ * The cache is bounded in size, evicting least recently used entries.
+ */
+class ResultCache {
+    /**
+     * File extension of cache entries.
+     */
+    private static final String ENTRY_SUFFIX = ".png";
+
+    /**
+     * Directory containing cache entries.
+     */
+    private final File directory;
+
+    /**
+     * Maximum size of all entries in bytes.
+     */
+    private final long maxSize;
+
+    /**
+     * Settings the optimized content depends on besides the level, e.g. the
+     * engine version.
+     */
+    private final String settings;
+
+    /**
+     * Number of images restored from the cache.
+     */
+    private final AtomicInteger hits = new AtomicInteger();
+
+    /**
+     * Number of images not found in the cache.
+     */
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param directory directory to store entries in
+     * @param maxSize maximum size of all entries in bytes
+     * @param settings settings the optimized content depends on
+     * @throws IOException in case the directory could not be created
+     */
+    ResultCache(final File directory, final long maxSize,
+            final String settings) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.settings = settings;
+        Files.createDirectories(directory.toPath());
+    }
+
+    /**
+     * Writes the cached optimized content of an image, if present. An empty
+     * entry denotes an image which is already optimal, so the image itself
+     * is written unless it is the target.
+     *
+     * @param digest digest of the unoptimized image
+     * @param level optimization level
+     * @param image unoptimized image
+     * @param target file to write the optimized image to, possibly the
+     *        image itself
+     * @return <code>true</code> on a cache hit, <code>false</code> otherwise
+     * @throws IOException in case copying the cached content failed
+     */
+    boolean restore(final String digest, final int level, final File image,
+            final File target) throws IOException {
+        final File entry = entryFor(digest, level);
+        if (!entry.isFile()) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        if (entry.length() > 0) {
+            AtomicFiles.copy(entry.toPath(), target.toPath());
+        } else if (!image.equals(target)) {
+            AtomicFiles.copy(image.toPath(), target.toPath());
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stores the result of an optimization. The optimized content itself is
+     * remembered as optimal, so that images already optimized in place are
+     * not optimized again.
+     *
+     * @param digest digest of the unoptimized image
+     * @param level optimization level
+     * @param optimized optimized image
+     * @return digest of the optimized image
+     * @throws IOException in case storing the content failed
+     */
+    String store(final String digest, final int level, final File optimized)
+            throws IOException {
+        final String optimizedDigest = Digests.digest(optimized);
+        if (!optimizedDigest.equals(digest)) {
+            AtomicFiles.copy(optimized.toPath(),
+                entryFor(digest, level).toPath());
+        }
+
+        final Path marker = entryFor(optimizedDigest, level).toPath();
+        if (!Files.exists(marker)) {
+            final Path temp = Files.createTempFile(directory.toPath(), null,
+                AtomicFiles.TEMP_SUFFIX);
+            Files.move(temp, marker, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        return optimizedDigest;
+    }
+
+    /**
+     * Deletes least recently used entries until the cache fits its maximum
+     * size.
+     *
+     * @return number of evicted entries
+     */
+    int evict() {
+        final File[] entries = directory.listFiles();
+        if (entries == null) {
+            return 0;
+        }
+
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+
+        long size = 0;
+        int evicted = 0;
+        for (File entry : entries) {
+            size += entry.length();
+            if (size > maxSize && entry.delete()) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return number of images restored from the cache
+     */
+    int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of images not found in the cache
+     */
+    int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Determines the entry for an image.
+     *
+     * @param digest digest of the image
+     * @param level optimization level
+     * @return entry file, which may not exist
+     */
+    private File entryFor(final String digest, final int level) {
+        return new File(directory, Digests.digest(digest + ":" + level + ":"
+            + settings) + ENTRY_SUFFIX);
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures elapsed and CPU time of the current thread. CPU time is zero if
+ * the JVM does not support measuring it.
+ */
+final class Stopwatch {
+    /**
+     * Source of thread CPU times.
+     */
+    private static final ThreadMXBean THREADS =
+        ManagementFactory.getThreadMXBean();
+
+    /**
+     * Elapsed time in nanoseconds at the start.
+     */
+    private final long wallStart = System.nanoTime();
+
+    /**
+     * CPU time in nanoseconds at the start.
+     */
+    private final long cpuStart = cpuTime();
+
+    /**
+     * @return elapsed time in nanoseconds since the stopwatch was created
+     */
+    long wall() {
+        return System.nanoTime() - wallStart;
+    }
+
+    /**
+     * @return CPU time in nanoseconds the current thread spent since the
+     *         stopwatch was created, on the same thread
+     */
+    long cpu() {
+        return cpuTime() - cpuStart;
+    }
+
+    /**
+     * @return CPU time in nanoseconds the current thread spent so far
+     */
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported()
+            ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+}
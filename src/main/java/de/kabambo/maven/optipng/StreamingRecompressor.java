@@ -0,0 +1,584 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Recompresses images too large to hold in memory, streaming their rows
+ * through inflating, unfiltering, refiltering and deflating. Only two rows
+ * and the deflater state of each trial are resident, so memory use is
+ * proportional to the width of the image rather than its size. Counting
+ * passes feed the trials and merely count the compressed bytes; if the
+ * smallest trial beats the original image data, a final pass writes the
+ * image with it. As each live trial holds a deflater of several hundred
+ * kilobytes, trials are counted in batches of at most
+ * {@link #MAX_LIVE_TRIALS}, reading the image once per batch, and trials
+ * of later batches are no longer fed once they exceed the smallest size
+ * counted so far. Unlike the in-memory path, colors are not reduced, as
+ * that requires knowing all pixels up front. Rows and compressors come
+ * from a {@link BufferPool}.
+ */
+final class StreamingRecompressor {
+    /**
+     * Size of the buffers used for reading and compression.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Maximum size of the image data chunks written.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of trials counted in one pass, bounding the number of
+     * deflaters alive at once per image.
+     */
+    static final int MAX_LIVE_TRIALS = 8;
+
+    /**
+     * Creates no instances.
+     */
+    private StreamingRecompressor() {
+    }
+
+    /**
+     * Reads the header of an image, which is its first chunk.
+     *
+     * @param file image
+     * @return header
+     * @throws IOException in case the image could not be read or is
+     *         malformed
+     */
+    static ImageHeader readHeader(final File file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            final ChunkHeader chunk = ChunkHeader.read(in);
+            if (!PngChunk.IHDR.equals(chunk.type)) {
+                throw new IOException("Missing " + PngChunk.IHDR + " chunk");
+            }
+            return ImageHeader.parse(chunk.readContent(in));
+        }
+    }
+
+    /**
+     * Recompresses an image in place, unless no trial beats its size.
+     *
+     * @param file image to optimize
+     * @param trials trials to run, ordered by filter type
+     * @param pool pool of buffers and compressors
+     * @param deadline time in milliseconds after which to give up
+     * @throws IOException in case the image could not be read or written
+     * @throws JavaPngEngine.TimeoutException in case the deadline passed
+     */
+    static void recompress(final File file,
+            final List<TrialMatrix.Trial> trials, final BufferPool pool,
+            final long deadline)
+            throws IOException, JavaPngEngine.TimeoutException {
+        long original = -1;
+        long bestSize = file.length();
+        int best = -1;
+        for (int from = 0; from < trials.size(); from += MAX_LIVE_TRIALS) {
+            final List<TrialMatrix.Trial> batch = trials.subList(from,
+                Math.min(from + MAX_LIVE_TRIALS, trials.size()));
+            final Counter[] counters = new Counter[batch.size()];
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = new Counter(bestSize);
+            }
+            original = transcode(file, batch, counters, null, pool,
+                deadline);
+
+            for (int i = 0; i < counters.length; i++) {
+                final long size = counters[i].getCount();
+                if (size < original && (best < 0 || size < bestSize)) {
+                    best = from + i;
+                    bestSize = size;
+                }
+            }
+        }
+        if (best < 0) {
+            return;
+        }
+
+        final Path temp = file.toPath().resolveSibling(file.getName() + "."
+            + UUID.randomUUID() + AtomicFiles.TEMP_SUFFIX);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp,
+                    StandardOpenOption.CREATE_NEW), BUFFER_SIZE))) {
+                transcode(file, Collections.singletonList(trials.get(best)),
+                    null, out, pool, deadline);
+            }
+            AtomicFiles.move(temp, file.toPath());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Streams the rows of an image through unfiltering and refiltering into
+     * one deflater per trial, all alive together, so callers bound the
+     * number of trials. Either the compressed size of every trial is
+     * counted, or the image is written with a single trial, copying all
+     * other chunks.
+     *
+     * @param file image to read
+     * @param trials trials to run, ordered by filter type
+     * @param counters counter per trial, <code>null</code> if writing
+     * @param out output to write the image to, <code>null</code> if counting
+     * @param pool pool of buffers and compressors
+     * @param deadline time in milliseconds after which to give up
+     * @return size of the original image data
+     * @throws IOException in case the image could not be read or written
+     * @throws JavaPngEngine.TimeoutException in case the deadline passed
+     */
+    private static long transcode(final File file,
+            final List<TrialMatrix.Trial> trials, final Counter[] counters,
+            final DataOutputStream out, final BufferPool pool,
+            final long deadline)
+            throws IOException, JavaPngEngine.TimeoutException {
+        final Deflater[] deflaters = new Deflater[trials.size()];
+        try (DataInputStream in = open(file)) {
+            if (out != null) {
+                out.write(PngFile.SIGNATURE);
+            }
+
+            ImageHeader header = null;
+            ChunkHeader chunk = ChunkHeader.read(in);
+            while (!PngChunk.IDAT.equals(chunk.type)) {
+                if (PngChunk.IEND.equals(chunk.type)) {
+                    throw new IOException("Missing " + PngChunk.IDAT
+                        + " chunk");
+                }
+                if (PngChunk.IHDR.equals(chunk.type)) {
+                    final PngChunk content = chunk.readContent(in);
+                    header = ImageHeader.parse(content);
+                    if (out != null) {
+                        writeChunk(out, content.getType(), content.getData(),
+                            content.getData().length);
+                    }
+                } else {
+                    chunk.copy(in, out);
+                }
+                chunk = ChunkHeader.read(in);
+            }
+            if (header == null) {
+                throw new IOException("Missing " + PngChunk.IHDR + " chunk");
+            }
+
+            final ChunkWriter writer = out == null ? null
+                : new ChunkWriter(out);
+            final DeflaterOutputStream[] streams =
+                new DeflaterOutputStream[trials.size()];
+            for (int i = 0; i < streams.length; i++) {
+                final TrialMatrix.Trial trial = trials.get(i);
+                deflaters[i] = pool.acquireDeflater(trial.getLevel(),
+                    trial.getStrategy());
+                streams[i] = new DeflaterOutputStream(writer == null
+                    ? counters[i] : writer, deflaters[i], BUFFER_SIZE);
+            }
+
+            final ImageDataStream data = new ImageDataStream(in,
+                chunk.type.getBytes(StandardCharsets.US_ASCII),
+                chunk.length);
+            final Inflater inflater = pool.acquireInflater();
+            try {
+                filterRows(header, new DataInputStream(new InflaterInputStream(
+                    data, inflater, BUFFER_SIZE)), trials, streams, counters,
+                    pool, deadline);
+            } finally {
+                pool.release(inflater);
+            }
+            data.skipToEnd();
+            for (DeflaterOutputStream stream : streams) {
+                stream.finish();
+            }
+            if (writer != null) {
+                writer.finish();
+            }
+
+            chunk = new ChunkHeader(data.getNextLength(), data.getNextType());
+            while (true) {
+                if (PngChunk.IDAT.equals(chunk.type)) {
+                    throw new IOException("Non-consecutive " + PngChunk.IDAT
+                        + " chunks");
+                }
+                chunk.copy(in, out);
+                if (PngChunk.IEND.equals(chunk.type)) {
+                    break;
+                }
+                chunk = ChunkHeader.read(in);
+            }
+            return data.getBytes();
+        } finally {
+            for (Deflater deflater : deflaters) {
+                if (deflater != null) {
+                    pool.release(deflater);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unfilters the rows of inflated image data and writes them, filtered
+     * per trial, to the trials' deflater streams. Trials which exceeded
+     * their counter's limit are no longer fed.
+     *
+     * @param header image header
+     * @param data inflated image data
+     * @param trials trials to run, ordered by filter type
+     * @param streams deflater stream per trial
+     * @param counters counter per trial, <code>null</code> if writing
+     * @param pool pool of buffers and compressors
+     * @param deadline time in milliseconds after which to give up
+     * @throws IOException in case the image data is malformed
+     * @throws JavaPngEngine.TimeoutException in case the deadline passed
+     */
+    private static void filterRows(final ImageHeader header,
+            final DataInputStream data, final List<TrialMatrix.Trial> trials,
+            final DeflaterOutputStream[] streams, final Counter[] counters,
+            final BufferPool pool, final long deadline)
+            throws IOException, JavaPngEngine.TimeoutException {
+        final int unit = header.getFilterUnit();
+        for (int[] pass : header.getPasses()) {
+            final int rowBytes = pass[0];
+            final byte[][] rows = pool.rows(4, rowBytes);
+            byte[] prior = rows[0];
+            byte[] row = rows[1];
+            final byte[] out = rows[2];
+            final byte[] scratch = rows[3];
+            final byte[] line = new byte[rowBytes + 1];
+            for (int y = 0; y < pass[1]; y++) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new JavaPngEngine.TimeoutException();
+                }
+
+                try {
+                    final int type = data.readUnsignedByte();
+                    data.readFully(row);
+                    PngFilters.unfilter(type, row, prior, unit);
+                } catch (EOFException e) {
+                    throw new IOException("Truncated image data", e);
+                }
+
+                int filteredWith = -1;
+                for (int i = 0; i < streams.length; i++) {
+                    if (counters != null && counters[i].isExceeded()) {
+                        continue;
+                    }
+                    final int filter = trials.get(i).getFilter();
+                    if (filter != filteredWith) {
+                        line[0] = (byte) PngFilters.filter(filter, row, prior,
+                            unit, out, scratch);
+                        System.arraycopy(out, 0, line, 1, rowBytes);
+                        filteredWith = filter;
+                    }
+                    streams[i].write(line);
+                }
+
+                final byte[] swap = prior;
+                prior = row;
+                row = swap;
+            }
+        }
+    }
+
+    /**
+     * Opens an image and verifies its signature.
+     *
+     * @param file image
+     * @return stream positioned after the signature
+     * @throws IOException in case the image could not be read or is no PNG
+     *         file
+     */
+    private static DataInputStream open(final File file) throws IOException {
+        final DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            final byte[] signature = new byte[PngFile.SIGNATURE.length];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, PngFile.SIGNATURE)) {
+                throw new IOException("Not a PNG file");
+            }
+            return in;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a chunk.
+     *
+     * @param out output
+     * @param type chunk type
+     * @param content buffer holding the chunk data
+     * @param length length of the chunk data
+     * @throws IOException in case writing failed
+     */
+    private static void writeChunk(final DataOutputStream out,
+            final String type, final byte[] content, final int length)
+            throws IOException {
+        final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(content, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(content, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Length and type of a chunk whose content has not been read yet.
+     */
+    private static final class ChunkHeader {
+        /**
+         * Length of the chunk data.
+         */
+        private final int length;
+
+        /**
+         * Four letter chunk type.
+         */
+        private final String type;
+
+        /**
+         * Creates a chunk header.
+         *
+         * @param length length of the chunk data
+         * @param type four letter chunk type
+         * @throws IOException in case the length is invalid
+         */
+        ChunkHeader(final int length, final String type) throws IOException {
+            if (length < 0) {
+                throw new IOException("Invalid chunk length " + length);
+            }
+            this.length = length;
+            this.type = type;
+        }
+
+        /**
+         * Reads the length and type of the next chunk.
+         *
+         * @param in stream positioned at a chunk
+         * @return chunk header
+         * @throws IOException in case reading failed or the file ended
+         */
+        static ChunkHeader read(final DataInputStream in) throws IOException {
+            final int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Missing " + PngChunk.IEND + " chunk",
+                    e);
+            }
+            final byte[] type = new byte[4];
+            in.readFully(type);
+            return new ChunkHeader(length, new String(type,
+                StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Reads the content of the chunk into memory, verifying its CRC.
+         * Only suited to small chunks such as the image header.
+         *
+         * @param in stream positioned at the chunk data
+         * @return chunk
+         * @throws IOException in case reading failed or the CRC does not
+         *         match
+         */
+        PngChunk readContent(final DataInputStream in) throws IOException {
+            final byte[] content = new byte[length];
+            in.readFully(content);
+            final PngChunk chunk = new PngChunk(type, content);
+            if (chunk.crc() != in.readInt()) {
+                throw new IOException("CRC mismatch in " + type + " chunk");
+            }
+            return chunk;
+        }
+
+        /**
+         * Copies the content and CRC of the chunk piecewise, verifying the
+         * CRC.
+         *
+         * @param in stream positioned at the chunk data
+         * @param out output receiving the whole chunk, <code>null</code> to
+         *        skip it
+         * @throws IOException in case reading or writing failed or the CRC
+         *         does not match
+         */
+        void copy(final DataInputStream in, final DataOutputStream out)
+                throws IOException {
+            final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+            final CRC32 crc = new CRC32();
+            crc.update(typeBytes);
+            if (out != null) {
+                out.writeInt(length);
+                out.write(typeBytes);
+            }
+            final byte[] buffer = new byte[Math.min(length, BUFFER_SIZE)];
+            for (int remaining = length; remaining > 0;) {
+                final int read = Math.min(remaining, buffer.length);
+                in.readFully(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                }
+                remaining -= read;
+            }
+            final int stored = in.readInt();
+            if (stored != (int) crc.getValue()) {
+                throw new IOException("CRC mismatch in " + type + " chunk");
+            }
+            if (out != null) {
+                out.writeInt(stored);
+            }
+        }
+    }
+
+    /**
+     * Output discarding bytes while counting them.
+     */
+    private static final class Counter extends OutputStream {
+        /**
+         * Count beyond which the trial is hopeless.
+         */
+        private final long limit;
+
+        /**
+         * Number of bytes written.
+         */
+        private long count;
+
+        /**
+         * Creates a counter.
+         *
+         * @param limit count beyond which the trial is hopeless
+         */
+        Counter(final long limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+
+        /**
+         * @return number of bytes written
+         */
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return <code>true</code> if more bytes than the limit have been
+         *         written
+         */
+        boolean isExceeded() {
+            return count > limit;
+        }
+    }
+
+    /**
+     * Output splitting compressed image data into chunks of bounded size.
+     */
+    private static final class ChunkWriter extends OutputStream {
+        /**
+         * Output the chunks are written to.
+         */
+        private final DataOutputStream out;
+
+        /**
+         * Data of the chunk being assembled.
+         */
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+
+        /**
+         * Number of bytes in the buffer.
+         */
+        private int size;
+
+        /**
+         * Creates a writer.
+         *
+         * @param out output the chunks are written to
+         */
+        ChunkWriter(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                final int n = Math.min(remaining, buffer.length - size);
+                System.arraycopy(b, offset, buffer, size, n);
+                size += n;
+                offset += n;
+                remaining -= n;
+                if (size == buffer.length) {
+                    finish();
+                }
+            }
+        }
+
+        /**
+         * Writes the data assembled so far as a chunk.
+         *
+         * @throws IOException in case writing failed
+         */
+        void finish() throws IOException {
+            if (size > 0) {
+                writeChunk(out, PngChunk.IDAT, buffer, size);
+                size = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.List;
+
+/**
+ * Engine leaving image data as is, for builds which only strip chunks.
+ * Chunks are dropped while the working copies are created, so nothing is
+ * left to do here.
+ */
+class StripEngine implements OptimizationEngine {
+    /**
+     * Name of this engine.
+     */
+    static final String NAME = "strip";
+
+    /**
+     * Version of this engine, to be increased whenever its output changes.
+     */
+    private static final String VERSION = "1";
+
+    @Override
+    public String getIdentifier() {
+        return NAME + " " + VERSION;
+    }
+
+    @Override
+    public void optimize(final List<ImageJob> jobs) {
+        // image data is kept as is
+    }
+
+    @Override
+    public void shutdown() {
+        // holds no resources
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the estimated cost of outstanding work against a deadline and
+ * lowers the optimization level of batches about to start when the
+ * remaining work would not fit otherwise. Batches are described by their
+ * estimated cost with the levels of their images capped at each level, as
+ * derived by {@link CostEstimator#scale(long, int, int)}.
+ */
+class TimeBudget {
+    /**
+     * Level returned for batches which should not be optimized at all.
+     */
+    static final int DEFER = -1;
+
+    /**
+     * Time in milliseconds by which all work should be finished.
+     */
+    private final long deadline;
+
+    /**
+     * Number of batches optimized concurrently.
+     */
+    private final int workers;
+
+    /**
+     * Estimated cost in milliseconds of work submitted and not finished.
+     */
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * Creates a budget starting now.
+     *
+     * @param budget time in milliseconds available
+     * @param workers number of batches optimized concurrently
+     */
+    TimeBudget(final long budget, final int workers) {
+        this.deadline = System.currentTimeMillis() + budget;
+        this.workers = workers;
+    }
+
+    /**
+     * Accounts a batch submitted for optimization.
+     *
+     * @param cost estimated cost in milliseconds at the levels chosen for
+     *        its images
+     */
+    void submitted(final long cost) {
+        outstanding.addAndGet(cost);
+    }
+
+    /**
+     * Chooses the level to cap a batch about to start at. The levels chosen
+     * for its images are kept while the outstanding work, spread across all
+     * workers, fits into the remaining time; otherwise they are capped at a
+     * level scaled down in proportion. Once the deadline has passed or even
+     * level zero would overrun it, the batch is deferred.
+     *
+     * @param costs estimated cost in milliseconds of the batch with the
+     *        levels of its images capped at each index, up to the highest
+     *        level chosen for any of them
+     * @return level to cap the batch at, {@link #DEFER} if the batch should
+     *         be left unchanged
+     */
+    int start(final long[] costs) {
+        final int level = costs.length - 1;
+        final long remaining = getRemaining();
+        final long needed = outstanding.get() / workers;
+        int chosen = level;
+        if (remaining <= 0 || costs[0] > remaining) {
+            chosen = DEFER;
+        } else if (needed > remaining) {
+            chosen = Math.max(0, (int) ((double) remaining / needed
+                * (level + 1)) - 1);
+        }
+        outstanding.addAndGet(cost(costs, chosen) - costs[level]);
+        return chosen;
+    }
+
+    /**
+     * Accounts a batch which finished.
+     *
+     * @param costs estimated costs of the batch as passed to
+     *        {@link #start(long[])}
+     * @param chosen level returned by {@link #start(long[])}
+     */
+    void finished(final long[] costs, final int chosen) {
+        outstanding.addAndGet(-cost(costs, chosen));
+    }
+
+    /**
+     * @return time in milliseconds until the deadline, negative once passed
+     */
+    long getRemaining() {
+        return deadline - System.currentTimeMillis();
+    }
+
+    /**
+     * Looks up the estimated cost of a batch capped at a level.
+     *
+     * @param costs estimated costs of the batch per level
+     * @param chosen level to cap the batch at, {@link #DEFER} for no cost
+     *        at all
+     * @return estimated cost in milliseconds
+     */
+    private static long cost(final long[] costs, final int chosen) {
+        return chosen == DEFER ? 0 : costs[chosen];
+    }
+}
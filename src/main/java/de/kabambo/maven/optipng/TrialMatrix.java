@@ -0,0 +1,181 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * The combinations of filter type and deflate settings tried when
+ * recompressing an image, growing with the optimization level in the spirit
+ * of optipng's levels.
+ */
+final class TrialMatrix {
+    /**
+     * Filter types tried from level 3 on.
+     */
+    private static final int[] ALL_FILTERS = {PngFilters.NONE,
+        PngFilters.SUB, PngFilters.UP, PngFilters.AVERAGE, PngFilters.PAETH,
+        PngFilters.ADAPTIVE};
+
+    /**
+     * Filter types tried at levels 1 and 2.
+     */
+    private static final int[] BASIC_FILTERS = {PngFilters.NONE,
+        PngFilters.ADAPTIVE};
+
+    /**
+     * Deflate strategies tried from level 4 on.
+     */
+    private static final int[] ALL_STRATEGIES = {Deflater.DEFAULT_STRATEGY,
+        Deflater.FILTERED, Deflater.HUFFMAN_ONLY};
+
+    /**
+     * Deflate strategies tried at levels 2 and 3.
+     */
+    private static final int[] BASIC_STRATEGIES = {Deflater.DEFAULT_STRATEGY,
+        Deflater.FILTERED};
+
+    /**
+     * A single combination of settings.
+     */
+    static final class Trial {
+        /**
+         * Filter type, possibly {@link PngFilters#ADAPTIVE}.
+         */
+        private final int filter;
+
+        /**
+         * Deflate level.
+         */
+        private final int level;
+
+        /**
+         * Deflate strategy.
+         */
+        private final int strategy;
+
+        /**
+         * Creates a trial.
+         *
+         * @param filter filter type
+         * @param level deflate level
+         * @param strategy deflate strategy
+         */
+        Trial(final int filter, final int level, final int strategy) {
+            this.filter = filter;
+            this.level = level;
+            this.strategy = strategy;
+        }
+
+        /**
+         * @return filter type
+         */
+        int getFilter() {
+            return filter;
+        }
+
+        /**
+         * @return deflate level
+         */
+        int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return deflate strategy
+         */
+        int getStrategy() {
+            return strategy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("filter %d, level %d, strategy %d", filter,
+                level, strategy);
+        }
+    }
+
+    /**
+     * Utility class, not instantiable.
+     */
+    private TrialMatrix() {
+    }
+
+    /**
+     * Determines the trials for an optimization level. Level 0 performs no
+     * trials, i.e. keeps the image data as is.
+     *
+     * @param optimizationLevel optimization level between 0 and 7
+     * @return trials, ordered by filter type
+     */
+    static List<Trial> forLevel(final int optimizationLevel) {
+        switch (optimizationLevel) {
+        case 0:
+            return Collections.emptyList();
+        case 1:
+            return combine(new int[] {PngFilters.ADAPTIVE},
+                new int[] {Deflater.BEST_COMPRESSION},
+                new int[] {Deflater.DEFAULT_STRATEGY});
+        case 2:
+            return combine(BASIC_FILTERS,
+                new int[] {Deflater.BEST_COMPRESSION}, BASIC_STRATEGIES);
+        case 3:
+            return combine(ALL_FILTERS,
+                new int[] {Deflater.BEST_COMPRESSION}, BASIC_STRATEGIES);
+        case 4:
+            return combine(ALL_FILTERS,
+                new int[] {Deflater.BEST_COMPRESSION}, ALL_STRATEGIES);
+        case 5:
+            return combine(ALL_FILTERS, new int[] {6, 9}, ALL_STRATEGIES);
+        case 6:
+            return combine(ALL_FILTERS, new int[] {4, 6, 8, 9},
+                ALL_STRATEGIES);
+        default:
+            return combine(ALL_FILTERS, new int[] {1, 2, 3, 4, 5, 6, 7, 8, 9},
+                ALL_STRATEGIES);
+        }
+    }
+
+    /**
+     * Builds the cross product of settings. Huffman-only compression does
+     * not depend on the deflate level and is tried once per filter.
+     *
+     * @param filters filter types
+     * @param levels deflate levels
+     * @param strategies deflate strategies
+     * @return trials
+     */
+    private static List<Trial> combine(final int[] filters, final int[] levels,
+            final int[] strategies) {
+        final List<Trial> trials = new ArrayList<Trial>();
+        for (int filter : filters) {
+            for (int strategy : strategies) {
+                if (strategy == Deflater.HUFFMAN_ONLY) {
+                    trials.add(new Trial(filter, Deflater.BEST_COMPRESSION,
+                        strategy));
+                    continue;
+                }
+                for (int level : levels) {
+                    trials.add(new Trial(filter, level, strategy));
+                }
+            }
+        }
+        return trials;
+    }
+}
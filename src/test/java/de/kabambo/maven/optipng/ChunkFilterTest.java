@@ -0,0 +1,241 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link ChunkFilter} on a small palette image carrying metadata
+ * and transparency.
+ */
+public class ChunkFilterTest {
+    /**
+     * Name of the palette chunk.
+     */
+    private static final String PLTE = "PLTE";
+
+    /**
+     * Name of the transparency chunk.
+     */
+    private static final String TRNS = "tRNS";
+
+    /**
+     * Name of the text chunk.
+     */
+    private static final String TEXT = "tEXt";
+
+    /**
+     * Name of the modification time chunk.
+     */
+    private static final String TIME = "tIME";
+
+    /**
+     * Directory for the images.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Configured chunks are dropped before and after the image data, while
+     * critical chunks and the transparency chunk are kept unchanged, every
+     * CRC stays valid and the pixels are the same.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void stripsConfiguredChunks() throws IOException {
+        final PngFile png = image();
+        final File source = write(png);
+        final File target = new File(folder.getRoot(), "stripped.png");
+        final ChunkFilter filter = new ChunkFilter(Arrays.asList(TEXT,
+            " " + TIME));
+
+        long expected = 0;
+        final List<PngChunk> kept = new ArrayList<PngChunk>();
+        for (PngChunk chunk : png.getChunks()) {
+            if (TEXT.equals(chunk.getType())
+                    || TIME.equals(chunk.getType())) {
+                expected += 12 + chunk.getData().length;
+            } else {
+                kept.add(chunk);
+            }
+        }
+        assertEquals(expected, filter.copy(source, target));
+
+        final List<PngChunk> chunks = read(target).getChunks();
+        assertEquals(types(kept), types(chunks));
+        for (int i = 0; i < kept.size(); i++) {
+            assertArrayEquals(kept.get(i).getData(), chunks.get(i).getData());
+        }
+        assertTrue(PixelReader.samePixels(source, target));
+        assertEquals(1, filter.getImages());
+        assertEquals(expected, filter.getBytes());
+        assertEquals("[tEXt, tIME]", filter.getSettings());
+    }
+
+    /**
+     * An image without configured chunks is copied byte for byte.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void copiesImageWithoutConfiguredChunks() throws IOException {
+        final File source = write(image());
+        final File target = folder.newFile();
+        final ChunkFilter filter = new ChunkFilter(Arrays.asList("eXIf"));
+        assertEquals(0, filter.copy(source, target));
+        assertArrayEquals(Files.readAllBytes(source.toPath()),
+            Files.readAllBytes(target.toPath()));
+        assertEquals(0, filter.getImages());
+    }
+
+    /**
+     * Critical chunks, the transparency chunk and malformed types cannot be
+     * configured.
+     */
+    @Test
+    public void rejectsChunksAffectingPixels() {
+        for (String type : new String[] {PngChunk.IHDR, PLTE, PngChunk.IDAT,
+                PngChunk.IEND, TRNS, "tEX", "tEXtt"}) {
+            try {
+                new ChunkFilter(Arrays.asList(type));
+                fail(type + " accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * A truncated image is not copied.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void rejectsTruncatedImage() throws IOException {
+        final File source = write(image());
+        final byte[] content = Files.readAllBytes(source.toPath());
+        Files.write(source.toPath(), Arrays.copyOf(content,
+            content.length - 20));
+        try {
+            new ChunkFilter(Arrays.asList(TEXT)).copy(source,
+                folder.newFile());
+            fail("truncated image copied");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Creates a 4x4 palette image with a transparent entry, a modification
+     * time, and text before and after the image data.
+     *
+     * @return image
+     * @throws IOException in case compressing failed
+     */
+    private static PngFile image() throws IOException {
+        final byte[] raw = new byte[4 * 5];
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                raw[y * 5 + 1 + x] = (byte) ((x + y) % 2);
+            }
+        }
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(
+                compressed)) {
+            out.write(raw);
+        }
+
+        return new PngFile(Arrays.asList(
+            new ImageHeader(4, 4, 8, ImageHeader.PALETTE, 0).toChunk(),
+            new PngChunk(TIME, new byte[] {7, (byte) 0xdb, 3, 14, 12, 0, 0}),
+            new PngChunk(PLTE, new byte[] {0, 0, 0, (byte) 0xff, 0, 0}),
+            new PngChunk(TRNS, new byte[] {0}),
+            new PngChunk(TEXT, ascii("Title\0Checkerboard")),
+            new PngChunk(PngChunk.IDAT, compressed.toByteArray()),
+            new PngChunk(TEXT, ascii("Comment\0After the image data")),
+            new PngChunk(PngChunk.IEND, new byte[0])));
+    }
+
+    /**
+     * @param text text to encode
+     * @return ASCII bytes of the text
+     */
+    private static byte[] ascii(final String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param chunks chunks
+     * @return types of the chunks in order
+     */
+    private static List<String> types(final List<PngChunk> chunks) {
+        final List<String> types = new ArrayList<String>();
+        for (PngChunk chunk : chunks) {
+            types.add(chunk.getType());
+        }
+        return types;
+    }
+
+    /**
+     * Writes an image to a temporary file.
+     *
+     * @param png image to write
+     * @return file
+     * @throws IOException in case writing failed
+     */
+    private File write(final PngFile png) throws IOException {
+        final File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            png.write(out);
+        }
+        return file;
+    }
+
+    /**
+     * Reads an image, verifying its chunk CRCs.
+     *
+     * @param image image to read
+     * @return image read
+     * @throws IOException in case the image is malformed
+     */
+    private static PngFile read(final File image) throws IOException {
+        try (InputStream in = new FileInputStream(image)) {
+            return PngFile.read(in);
+        }
+    }
+}
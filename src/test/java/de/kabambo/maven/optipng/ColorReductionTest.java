@@ -0,0 +1,499 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link ColorReduction}. Each reduction is applied to a generated
+ * image, whose pixels are then compared to the original by
+ * {@link PixelReader} and whose chunks are checked for consistency with the
+ * reduced color type.
+ */
+public class ColorReductionTest {
+    /**
+     * Name of the palette chunk.
+     */
+    private static final String PLTE = "PLTE";
+
+    /**
+     * Name of the transparency chunk.
+     */
+    private static final String TRNS = "tRNS";
+
+    /**
+     * Name of the embedded ICC profile chunk.
+     */
+    private static final String ICCP = "iCCP";
+
+    /**
+     * Directory for images compared by {@link PixelReader}.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Pool without idle capacity, so that every buffer is fresh.
+     */
+    private final BufferPool pool = new BufferPool(0);
+
+    /**
+     * An opaque alpha channel is dropped.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void dropsOpaqueAlpha() throws IOException {
+        final ImageHeader header = new ImageHeader(32, 32, 8,
+            ImageHeader.RGBA, 0);
+        final int[][] samples = new int[32 * 32][];
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                samples[y * 32 + x] = new int[] {x * 8, y * 8, x + y, 255};
+            }
+        }
+
+        final PngFile reduced = assertReduced(image(header, samples));
+        assertHeader(reduced, ImageHeader.RGB, 8);
+    }
+
+    /**
+     * RGB images whose pixels are all gray become grayscale images.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void storesGrayRgbAsGrayscale() throws IOException {
+        final PngFile reduced = assertReduced(image(
+            new ImageHeader(16, 16, 8, ImageHeader.RGB, 0), grayRamp(16)));
+        assertHeader(reduced, ImageHeader.GRAYSCALE, 8);
+    }
+
+    /**
+     * Gray levels on a coarser grid are stored in fewer bits.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void reducesGrayBitDepth() throws IOException {
+        final int[][] samples = new int[8 * 8][];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new int[] {i % 4 * 0x55};
+        }
+
+        final PngFile reduced = assertReduced(image(new ImageHeader(8, 8, 8,
+            ImageHeader.GRAYSCALE, 0), samples));
+        assertHeader(reduced, ImageHeader.GRAYSCALE, 2);
+    }
+
+    /**
+     * Images of few colors become palette images, with transparent entries
+     * first.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void storesFewColorsAsPalette() throws IOException {
+        final int[][] colors = {{255, 0, 0, 255}, {0, 0, 255, 128},
+            {0, 255, 0, 255}};
+        final int[][] samples = new int[10 * 10][];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = colors[i % colors.length];
+        }
+
+        final PngFile reduced = assertReduced(image(new ImageHeader(10, 10, 8,
+            ImageHeader.RGBA, 0), samples));
+        assertHeader(reduced, ImageHeader.PALETTE, 2);
+        assertEquals(9, reduced.getChunk(PLTE).getData().length);
+        assertEquals(1, reduced.getChunk(TRNS).getData().length);
+    }
+
+    /**
+     * Palette images with fewer entries than their bit depth allows are
+     * stored in fewer bits per index.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void reducesPaletteBitDepth() throws IOException {
+        final int[][] samples = new int[12 * 5][];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new int[] {i % 3 == 0 ? 1 : 0};
+        }
+
+        final PngFile reduced = assertReduced(image(new ImageHeader(12, 5, 8,
+            ImageHeader.PALETTE, 0), samples, new PngChunk(PLTE,
+            new byte[] {10, 20, 30, 40, 50, 60})));
+        assertHeader(reduced, ImageHeader.PALETTE, 1);
+    }
+
+    /**
+     * 16-bit samples with equal high and low bytes are stored in 8 bits.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void reducesRedundantSixteenBitSamples() throws IOException {
+        final int[][] samples = new int[24 * 24][];
+        for (int i = 0; i < samples.length; i++) {
+            final int red = i % 251;
+            final int green = i * 7 % 256;
+            samples[i] = new int[] {red * 0x101, green * 0x101, 0x4242};
+        }
+
+        final PngFile reduced = assertReduced(image(new ImageHeader(24, 24,
+            16, ImageHeader.RGB, 0), samples));
+        assertHeader(reduced, ImageHeader.RGB, 8);
+    }
+
+    /**
+     * 16-bit samples whose low bytes carry information are not reduced.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void keepsSignificantSixteenBitSamples() throws IOException {
+        final int[][] samples = new int[4 * 4][];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new int[] {i == 5 ? 0x1234 : 0};
+        }
+
+        assertNull(reduce(image(new ImageHeader(4, 4, 16,
+            ImageHeader.GRAYSCALE, 0), samples)));
+    }
+
+    /**
+     * Interlaced images stay interlaced, including passes of odd size.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void reducesInterlacedImage() throws IOException {
+        final int[][] samples = new int[13 * 11][];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = i % 5 == 0 ? new int[] {200, 100, 0, 255}
+                : new int[] {0, 0, 0, 255};
+        }
+
+        final PngFile reduced = assertReduced(image(new ImageHeader(13, 11, 8,
+            ImageHeader.RGBA, 1), samples));
+        assertHeader(reduced, ImageHeader.PALETTE, 1);
+        assertEquals(1, ImageHeader.parse(reduced.getChunk(PngChunk.IHDR))
+            .getInterlace());
+    }
+
+    /**
+     * Images with chunks depending on the color type are not reduced.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void skipsColorDependentChunks() throws IOException {
+        assertNull(reduce(image(new ImageHeader(16, 16, 8, ImageHeader.RGB,
+            0), grayRamp(16), new PngChunk("bKGD", new byte[6]))));
+    }
+
+    /**
+     * Gray RGB images with a color profile are not stored as grayscale, as
+     * the profile requires a color image.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void keepsColorImagesWithProfileInColor() throws IOException {
+        final ImageHeader header = new ImageHeader(16, 16, 8,
+            ImageHeader.RGB, 0);
+        final PngFile reduced = assertReduced(image(header, grayRamp(16),
+            profile()));
+        assertHeader(reduced, ImageHeader.PALETTE, 8);
+        assertNotNull(reduced.getChunk(ICCP));
+    }
+
+    /**
+     * Grayscale images with a gray profile are not stored as palette
+     * images, as the profile requires a grayscale image.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void keepsGrayImagesWithProfileGray() throws IOException {
+        final ImageHeader header = new ImageHeader(8, 8, 8,
+            ImageHeader.GRAYSCALE_ALPHA, 0);
+        final int[][] samples = new int[8 * 8][];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new int[] {i % 5, 255};
+        }
+        assertHeader(assertReduced(image(header, samples)),
+            ImageHeader.PALETTE, 4);
+
+        final PngFile reduced = assertReduced(image(header, samples,
+            profile()));
+        assertHeader(reduced, ImageHeader.GRAYSCALE, 8);
+        assertNotNull(reduced.getChunk(ICCP));
+    }
+
+    /**
+     * Reduces an image, applies the reduction and checks that pixels are
+     * unchanged and chunks consistent.
+     *
+     * @param png image to reduce
+     * @return reduced image
+     * @throws IOException in case the image could not be processed
+     */
+    private PngFile assertReduced(final PngFile png) throws IOException {
+        final ColorReduction reduction = reduce(png);
+        assertNotNull("image not reduced", reduction);
+        final ImageHeader header = reduction.getHeader();
+        final byte[] filtered = JavaPngEngine.filter(header,
+            reduction.getRaw(), PngFilters.NONE, pool);
+        final PngFile reduced = reduction.apply(png, compress(Arrays.copyOf(
+            filtered, reduction.getRaw().length)));
+
+        final File original = write(png);
+        final File result = write(reduced);
+        assertTrue("pixels changed", PixelReader.samePixels(original,
+            result));
+        assertTrue("reduced image not smaller", reduction.getHeader()
+            .getRawSize() < ImageHeader.parse(png.getChunk(PngChunk.IHDR))
+            .getRawSize());
+        assertValidChunks(reduced);
+        return reduced;
+    }
+
+    /**
+     * Decodes an image and analyzes it.
+     *
+     * @param png image to analyze
+     * @return reduction, <code>null</code> if none
+     * @throws IOException in case the image is malformed
+     */
+    private ColorReduction reduce(final PngFile png) throws IOException {
+        final ImageHeader header = ImageHeader.parse(png.getChunk(
+            PngChunk.IHDR));
+        return ColorReduction.analyze(png, header, JavaPngEngine.decode(
+            header, png.getImageData(), pool));
+    }
+
+    /**
+     * Checks the order and size of palette, transparency and profile
+     * chunks against the color type.
+     *
+     * @param png image to check
+     * @throws IOException in case the header is malformed
+     */
+    private static void assertValidChunks(final PngFile png)
+            throws IOException {
+        final List<String> types = new ArrayList<String>();
+        for (PngChunk chunk : png.getChunks()) {
+            types.add(chunk.getType());
+        }
+        assertEquals(PngChunk.IHDR, types.get(0));
+        assertEquals(PngChunk.IEND, types.get(types.size() - 1));
+
+        final ImageHeader header = ImageHeader.parse(png.getChunk(
+            PngChunk.IHDR));
+        final int data = types.indexOf(PngChunk.IDAT);
+        final PngChunk palette = png.getChunk(PLTE);
+        final PngChunk transparency = png.getChunk(TRNS);
+        if (header.getColorType() == ImageHeader.PALETTE) {
+            assertNotNull(palette);
+            assertEquals(0, palette.getData().length % 3);
+            assertTrue(palette.getData().length / 3
+                <= 1 << header.getBitDepth());
+            assertTrue(types.indexOf(PLTE) < data);
+            if (transparency != null) {
+                assertTrue(types.indexOf(PLTE) < types.indexOf(TRNS));
+                assertTrue(transparency.getData().length
+                    <= palette.getData().length / 3);
+            }
+            if (types.contains(ICCP)) {
+                assertTrue(types.indexOf(ICCP) < types.indexOf(PLTE));
+            }
+        } else {
+            assertNull(palette);
+        }
+        if (transparency != null) {
+            assertTrue(types.indexOf(TRNS) < data);
+        }
+    }
+
+    /**
+     * Generates a ramp of all gray levels as RGB samples.
+     *
+     * @param size width and height of the image
+     * @return samples per pixel
+     */
+    private static int[][] grayRamp(final int size) {
+        final int[][] samples = new int[size * size][];
+        for (int i = 0; i < samples.length; i++) {
+            final int level = i * 255 / (samples.length - 1);
+            samples[i] = new int[] {level, level, level};
+        }
+        return samples;
+    }
+
+    /**
+     * Creates an ICC profile chunk. Its content is not a valid profile,
+     * which neither the reduction nor {@link PixelReader} interpret.
+     *
+     * @return profile chunk
+     * @throws IOException in case compressing failed
+     */
+    private static PngChunk profile() throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write("test".getBytes(StandardCharsets.US_ASCII));
+        data.write(new byte[2]);
+        data.write(compress(new byte[128]));
+        return new PngChunk(ICCP, data.toByteArray());
+    }
+
+    /**
+     * Creates an image from samples, placing further chunks between the
+     * header and the image data.
+     *
+     * @param header image header
+     * @param samples samples of each pixel in image order, or its palette
+     *        index
+     * @param chunks chunks to add
+     * @return image
+     * @throws IOException in case compressing failed
+     */
+    private static PngFile image(final ImageHeader header,
+            final int[][] samples, final PngChunk... chunks)
+            throws IOException {
+        final List<PngChunk> all = new ArrayList<PngChunk>();
+        all.add(header.toChunk());
+        all.addAll(Arrays.asList(chunks));
+        all.add(new PngChunk(PngChunk.IDAT, compress(pack(header,
+            samples))));
+        all.add(new PngChunk(PngChunk.IEND, new byte[0]));
+        return new PngFile(all);
+    }
+
+    /**
+     * Packs samples into unfiltered image data, pass by pass for
+     * interlaced images.
+     *
+     * @param header image header
+     * @param samples samples of each pixel in image order
+     * @return image data with filter type none
+     */
+    private static byte[] pack(final ImageHeader header,
+            final int[][] samples) {
+        final byte[] raw = new byte[(int) header.getRawSize()];
+        final boolean interlaced = header.getInterlace() != 0;
+        final int depth = header.getBitDepth();
+        int offset = 0;
+        for (int pass = 0; pass < ImageHeader.ADAM7_ROW_STEP.length; pass++) {
+            final int columnStart = interlaced
+                ? ImageHeader.ADAM7_COLUMN_START[pass] : 0;
+            final int columnStep = interlaced
+                ? ImageHeader.ADAM7_COLUMN_STEP[pass] : 1;
+            final int rowStart = interlaced
+                ? ImageHeader.ADAM7_ROW_START[pass] : 0;
+            final int rowStep = interlaced ? ImageHeader.ADAM7_ROW_STEP[pass]
+                : 1;
+            final int columns = (header.getWidth() - columnStart
+                + columnStep - 1) / columnStep;
+            if (columns <= 0 || rowStart >= header.getHeight()) {
+                continue;
+            }
+
+            for (int y = rowStart; y < header.getHeight(); y += rowStep) {
+                long bit = (offset + 1) * 8L;
+                for (int x = columnStart; x < header.getWidth();
+                        x += columnStep) {
+                    for (int sample : samples[y * header.getWidth() + x]) {
+                        for (int b = depth - 1; b >= 0; b--, bit++) {
+                            if ((sample >>> b & 1) != 0) {
+                                raw[(int) (bit >>> 3)] |= 0x80 >>> (bit & 7);
+                            }
+                        }
+                    }
+                }
+                offset += header.getRowBytes(columns) + 1;
+            }
+            if (!interlaced) {
+                break;
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Compresses data in zlib format.
+     *
+     * @param data data to compress
+     * @return compressed data
+     * @throws IOException in case compressing failed
+     */
+    private static byte[] compress(final byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes an image to a temporary file.
+     *
+     * @param png image to write
+     * @return file
+     * @throws IOException in case writing failed
+     */
+    private File write(final PngFile png) throws IOException {
+        final File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            png.write(out);
+        }
+        return file;
+    }
+
+    /**
+     * Checks color type and bit depth of an image.
+     *
+     * @param png image to check
+     * @param colorType expected color type
+     * @param bitDepth expected bit depth
+     * @throws IOException in case the header is malformed
+     */
+    private static void assertHeader(final PngFile png, final int colorType,
+            final int bitDepth) throws IOException {
+        final ImageHeader header = ImageHeader.parse(png.getChunk(
+            PngChunk.IHDR));
+        assertEquals("color type", colorType, header.getColorType());
+        assertEquals("bit depth", bitDepth, header.getBitDepth());
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link OptimalDeflater}. Every stream is decoded by the JDK's
+ * {@link Inflater}, which must consume it completely, verify its checksum
+ * and reproduce the input.
+ */
+public class OptimalDeflaterTest {
+    /**
+     * Deadline far enough in the future not to pass during a test.
+     */
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Empty input yields a valid stream of a single empty block.
+     *
+     * @throws DataFormatException in case the stream is malformed
+     */
+    @Test
+    public void compressesEmptyInput() throws DataFormatException {
+        assertRoundTrip(new byte[0], 1);
+    }
+
+    /**
+     * Input shorter than the shortest match consists of literals only.
+     *
+     * @throws DataFormatException in case the stream is malformed
+     */
+    @Test
+    public void compressesTinyInput() throws DataFormatException {
+        assertRoundTrip(new byte[] {42}, 1);
+        assertRoundTrip(new byte[] {1, 2}, 1);
+        assertRoundTrip(new byte[] {7, 7, 7, 7}, 1);
+    }
+
+    /**
+     * Long runs of a single byte are encoded as matches of the maximum
+     * length at distance one.
+     *
+     * @throws DataFormatException in case the stream is malformed
+     */
+    @Test
+    public void compressesRuns() throws DataFormatException {
+        final byte[] data = new byte[100000];
+        Arrays.fill(data, 30000, 70000, (byte) 0xff);
+        final byte[] compressed = assertRoundTrip(data, 3);
+        assertTrue(compressed.length < 1000);
+    }
+
+    /**
+     * Incompressible input still decodes and grows only slightly.
+     *
+     * @throws DataFormatException in case the stream is malformed
+     */
+    @Test
+    public void compressesIncompressibleInput() throws DataFormatException {
+        final byte[] data = new byte[200000];
+        new Random(1).nextBytes(data);
+        final byte[] compressed = assertRoundTrip(data, 1);
+        assertTrue(compressed.length < data.length + data.length / 100);
+    }
+
+    /**
+     * Redundant input compresses at least as well as with zlib's highest
+     * level, over enough iterations to exercise the blending and
+     * perturbation of statistics.
+     *
+     * @throws DataFormatException in case the stream is malformed
+     */
+    @Test
+    public void beatsZlibOnRedundantInput() throws DataFormatException {
+        final byte[] data = words(new Random(2), 60000, 300);
+        final byte[] compressed = assertRoundTrip(data, 15);
+        assertTrue(compressed.length <= zlib(data));
+    }
+
+    /**
+     * Input spanning several segments, with matches reaching across their
+     * boundaries, decodes for lengths around the segment size.
+     *
+     * @throws DataFormatException in case the stream is malformed
+     */
+    @Test
+    public void compressesAcrossSegments() throws DataFormatException {
+        final byte[] data = words(new Random(3),
+            OptimalDeflater.SEGMENT_SIZE + 1, 4096);
+        assertRoundTrip(Arrays.copyOf(data, OptimalDeflater.SEGMENT_SIZE),
+            1);
+        assertRoundTrip(data, 1);
+    }
+
+    /**
+     * Filtered image data, the actual use, decodes.
+     *
+     * @throws DataFormatException in case the stream is malformed
+     */
+    @Test
+    public void compressesImageData() throws DataFormatException {
+        final int width = 200;
+        final byte[] data = new byte[(width * 3 + 1) * 150];
+        for (int y = 0, offset = 0; y < 150; y++) {
+            data[offset++] = (byte) (y % 5);
+            for (int x = 0; x < width; x++) {
+                data[offset++] = (byte) (x * y);
+                data[offset++] = (byte) (x ^ y);
+                data[offset++] = (byte) ((x / 16 + y / 16) % 2 * 255);
+            }
+        }
+        assertRoundTrip(data, 5);
+    }
+
+    /**
+     * Nothing is returned once the deadline passed.
+     */
+    @Test
+    public void givesUpAfterDeadline() {
+        assertNull(OptimalDeflater.deflate(words(new Random(4), 10000, 100),
+            15, 0));
+    }
+
+    /**
+     * Code lengths form a complete prefix code within the limit, also for
+     * skewed frequencies whose optimal code exceeds it. Limits are paired
+     * with alphabet sizes as used: 15 bits for literals, lengths and
+     * distances, 7 bits for the 19 code length symbols.
+     */
+    @Test
+    public void limitsCodeLengths() {
+        final Random random = new Random(5);
+        for (int round = 0; round < 200; round++) {
+            final int limit = round % 3 == 0 ? 7 : 15;
+            final long[] counts = new long[2 + random.nextInt(limit == 7
+                ? 18 : 287)];
+            for (int i = 0; i < counts.length; i++) {
+                if (random.nextInt(4) > 0) {
+                    counts[i] = round % 2 == 0 ? 1 + random.nextInt(1000)
+                        : 1L << random.nextInt(40);
+                }
+            }
+            assertCompleteCode(counts, OptimalDeflater.codeLengths(counts,
+                limit), limit);
+        }
+    }
+
+    /**
+     * A single used symbol still gets a complete code of two symbols.
+     */
+    @Test
+    public void codesSingleSymbol() {
+        final long[] counts = new long[30];
+        counts[17] = 5;
+        final int[] lengths = OptimalDeflater.codeLengths(counts, 15);
+        assertEquals(1, lengths[17]);
+        assertCompleteCode(counts, lengths, 15);
+    }
+
+    /**
+     * Compresses data and decodes the result.
+     *
+     * @param data data to compress
+     * @param iterations number of iterations
+     * @return compressed data
+     * @throws DataFormatException in case the stream is malformed
+     */
+    private static byte[] assertRoundTrip(final byte[] data,
+            final int iterations) throws DataFormatException {
+        final byte[] compressed = OptimalDeflater.deflate(data, iterations,
+            NO_DEADLINE);
+        assertNotNull(compressed);
+
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            final byte[] decoded = new byte[data.length + 1];
+            int size = 0;
+            while (!inflater.finished() && size < decoded.length) {
+                final int read = inflater.inflate(decoded, size,
+                    decoded.length - size);
+                if (read == 0 && (inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                size += read;
+            }
+            assertTrue("stream not finished", inflater.finished());
+            assertEquals("trailing bytes", 0, inflater.getRemaining());
+            assertArrayEquals(data, Arrays.copyOf(decoded, size));
+        } finally {
+            inflater.end();
+        }
+        return compressed;
+    }
+
+    /**
+     * Checks that code lengths are within the limit, assigned to all used
+     * symbols and satisfy Kraft's inequality with equality.
+     *
+     * @param counts symbol frequencies
+     * @param lengths code lengths
+     * @param limit maximum code length
+     */
+    private static void assertCompleteCode(final long[] counts,
+            final int[] lengths, final int limit) {
+        long kraft = 0;
+        for (int i = 0; i < counts.length; i++) {
+            assertTrue(lengths[i] >= 0 && lengths[i] <= limit);
+            if (counts[i] > 0) {
+                assertTrue("unused symbol " + i, lengths[i] > 0);
+            }
+            if (lengths[i] > 0) {
+                kraft += 1L << (limit - lengths[i]);
+            }
+        }
+        assertEquals("incomplete code", 1L << limit, kraft);
+    }
+
+    /**
+     * Generates text-like data by concatenating random words from a
+     * dictionary.
+     *
+     * @param random source of randomness
+     * @param length length of the data
+     * @param words size of the dictionary
+     * @return data
+     */
+    private static byte[] words(final Random random, final int length,
+            final int words) {
+        final byte[][] dictionary = new byte[words][];
+        for (int i = 0; i < words; i++) {
+            dictionary[i] = new byte[3 + random.nextInt(12)];
+            random.nextBytes(dictionary[i]);
+        }
+        final byte[] data = new byte[length];
+        for (int offset = 0; offset < length;) {
+            final byte[] word = dictionary[random.nextInt(words)];
+            final int count = Math.min(word.length, length - offset);
+            System.arraycopy(word, 0, data, offset, count);
+            offset += count;
+        }
+        return data;
+    }
+
+    /**
+     * Compresses data with zlib's highest level.
+     *
+     * @param data data to compress
+     * @return size of the zlib stream
+     */
+    private static int zlib(final byte[] data) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final byte[] buffer = new byte[data.length + 1024];
+            int size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+}
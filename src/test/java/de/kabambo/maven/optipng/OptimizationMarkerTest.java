@@ -0,0 +1,187 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link OptimizationMarker}, writing markers into generated images
+ * and reading them back.
+ */
+public class OptimizationMarkerTest {
+    /**
+     * Identifier of an engine and its settings.
+     */
+    private static final String ENGINE = "java-3:tEXt,tIME";
+
+    /**
+     * Directory for the images.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A marker read back covers its own and lower levels of the same engine
+     * and settings only, so that raising the level optimizes the image
+     * again.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void coversSameEngineUpToItsLevel() throws IOException {
+        final File image = image();
+        new OptimizationMarker(2, ENGINE).mark(image);
+
+        final OptimizationMarker marker = OptimizationMarker.read(image);
+        assertNotNull(marker);
+        assertTrue(marker.covers(1, ENGINE));
+        assertTrue(marker.covers(2, ENGINE));
+        assertFalse(marker.covers(3, ENGINE));
+        assertFalse(marker.covers(2, "java-3"));
+        assertFalse(marker.covers(2, "optipng-0.7.7:tEXt,tIME"));
+    }
+
+    /**
+     * Marking a marked image replaces the marker, which stays a single
+     * chunk right after the header, and leaves the pixels and all other
+     * chunks intact.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void replacesPreviousMarker() throws IOException {
+        final File image = image();
+        final File original = folder.newFile("original.png");
+        Files.copy(image.toPath(), original.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+        new OptimizationMarker(5, ENGINE).mark(image);
+        new OptimizationMarker(1, ENGINE).mark(image);
+
+        final OptimizationMarker marker = OptimizationMarker.read(image);
+        assertTrue(marker.covers(1, ENGINE));
+        assertFalse(marker.covers(2, ENGINE));
+
+        final List<PngChunk> chunks = read(image).getChunks();
+        final List<PngChunk> unmarked = read(original).getChunks();
+        assertEquals(unmarked.size() + 1, chunks.size());
+        assertEquals(PngChunk.IHDR, chunks.get(0).getType());
+        assertEquals(OptimizationMarker.TYPE, chunks.get(1).getType());
+        assertEquals("1 " + ENGINE, new String(chunks.get(1).getData(),
+            StandardCharsets.US_ASCII));
+        for (int i = 1; i < unmarked.size(); i++) {
+            assertEquals(unmarked.get(i).getType(),
+                chunks.get(i + 1).getType());
+        }
+        assertTrue(PixelReader.samePixels(original, image));
+    }
+
+    /**
+     * Images without a marker, with a malformed one and files which are no
+     * images carry no marker.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void readsNoMarkerFromOtherFiles() throws IOException {
+        assertNull(OptimizationMarker.read(image()));
+
+        final File malformed = image();
+        new OptimizationMarker(2, ENGINE).mark(malformed);
+        final byte[] content = Files.readAllBytes(malformed.toPath());
+        final int data = indexOf(content, OptimizationMarker.TYPE) + 4;
+        content[data + 1] = 'x';
+        Files.write(malformed.toPath(), content);
+        assertNull(OptimizationMarker.read(malformed));
+
+        final File text = folder.newFile("text.png");
+        Files.write(text.toPath(), "not an image".getBytes(
+            StandardCharsets.US_ASCII));
+        assertNull(OptimizationMarker.read(text));
+    }
+
+    /**
+     * Writes a small image with ImageIO.
+     *
+     * @return image file
+     * @throws IOException in case writing failed
+     */
+    private File image() throws IOException {
+        final BufferedImage image = new BufferedImage(16, 16,
+            BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 16; x++) {
+                image.setRGB(x, y, x * 16 << 16 | y * 16 << 8 | 0x80);
+            }
+        }
+        final File file = folder.newFile();
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    /**
+     * Reads an image, verifying its chunk CRCs.
+     *
+     * @param image image to read
+     * @return image read
+     * @throws IOException in case the image is malformed
+     */
+    private static PngFile read(final File image) throws IOException {
+        try (InputStream in = new FileInputStream(image)) {
+            return PngFile.read(in);
+        }
+    }
+
+    /**
+     * Finds the first occurrence of an ASCII string in a byte array.
+     *
+     * @param content bytes to search
+     * @param text string to find
+     * @return index of the first occurrence, -1 if there is none
+     */
+    private static int indexOf(final byte[] content, final String text) {
+        final byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        outer:
+        for (int i = 0; i + bytes.length <= content.length; i++) {
+            for (int j = 0; j < bytes.length; j++) {
+                if (content[i + j] != bytes[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
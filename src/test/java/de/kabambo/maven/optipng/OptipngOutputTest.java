@@ -0,0 +1,160 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link OptipngOutput} on output captured from optipng 0.7.
+ */
+public class OptipngOutputTest {
+    /**
+     * First image of the batch, optimized.
+     */
+    private static final File FIRST = new File("work/first.png");
+
+    /**
+     * Second image of the batch, rejected.
+     */
+    private static final File SECOND = new File("work/second.png");
+
+    /**
+     * Third image of the batch, already optimized.
+     */
+    private static final File THIRD = new File("work/third.png");
+
+    /**
+     * Output of a batch of three images, each ending in its result line.
+     */
+    private static final List<String> BATCH = Arrays.asList(
+        "OptiPNG version 0.7.7",
+        "Copyright (C) 2001-2017 Cosmin Truta and the Contributing Authors.",
+        "",
+        "** Processing: work/first.png",
+        "64x64 pixels, 4x8 bits/pixel, RGB+alpha",
+        "Reducing image to 3x8 bits/pixel, RGB",
+        "Input IDAT size = 5126 bytes",
+        "Input file size = 5211 bytes",
+        "",
+        "Trying:",
+        "  zc = 9  zm = 8  zs = 0  f = 0\t\tIDAT size = 3017",
+        "",
+        "Selecting parameters:",
+        "  zc = 9  zm = 8  zs = 0  f = 0\t\tIDAT size = 3017",
+        "",
+        "Output IDAT size = 3017 bytes (2109 bytes decrease)",
+        "Output file size = 3090 bytes (2121 bytes = 40.70% decrease)",
+        "",
+        "** Processing: work/second.png",
+        "Error: Not a PNG file",
+        "",
+        "** Processing: work/third.png",
+        "16x16 pixels, 8 bits/pixel, 4 colors in palette",
+        "Input IDAT size = 97 bytes",
+        "Input file size = 160 bytes",
+        "",
+        "Trying:",
+        "",
+        "work/third.png is already optimized.",
+        "",
+        "1 error(s) have been encountered.");
+
+    /**
+     * Every image of a complete batch has a section holding its lines, and
+     * errors are attributed to the image they were reported for.
+     */
+    @Test
+    public void parsesCompleteBatch() {
+        final OptipngOutput output = OptipngOutput.parse(BATCH);
+        for (File image : Arrays.asList(FIRST, SECOND, THIRD)) {
+            assertTrue(output.isProcessed(image));
+        }
+        assertNull(output.getError(FIRST));
+        assertEquals("Error: Not a PNG file", output.getError(SECOND));
+        assertNull(output.getError(THIRD));
+
+        final List<String> lines = output.getLines(FIRST);
+        assertEquals("64x64 pixels, 4x8 bits/pixel, RGB+alpha",
+            lines.get(0));
+        assertEquals("Output file size = 3090 bytes (2121 bytes = 40.70% "
+            + "decrease)", lines.get(lines.size() - 1));
+        assertEquals(Arrays.asList("Error: Not a PNG file"),
+            output.getLines(SECOND));
+        assertTrue(output.getLines(THIRD).contains(
+            "work/third.png is already optimized."));
+    }
+
+    /**
+     * Only images optipng moved on from count as completed. The last image
+     * does not, as its output alone does not tell whether it was written.
+     */
+    @Test
+    public void completesImagesFollowedByAnother() {
+        final OptipngOutput output = OptipngOutput.parse(BATCH);
+        assertTrue(output.isCompleted(FIRST));
+        assertTrue(output.isCompleted(SECOND));
+        assertFalse(output.isCompleted(THIRD));
+    }
+
+    /**
+     * Output of a process killed while trying settings for the second image
+     * completes the first image only, and images not reached are neither
+     * processed nor completed.
+     */
+    @Test
+    public void parsesBatchCutOffWithinImage() {
+        final List<String> lines = new ArrayList<String>(BATCH.subList(0,
+            BATCH.indexOf("** Processing: work/second.png") + 1));
+        lines.addAll(Arrays.asList(
+            "640x480 pixels, 3x8 bits/pixel, RGB",
+            "Input IDAT size = 412338 bytes",
+            "Input file size = 412421 bytes",
+            "",
+            "Trying:",
+            "  zc = 9  zm = 8  zs = 0  f = 0\t\tIDAT size = 3"));
+        final OptipngOutput output = OptipngOutput.parse(lines);
+
+        assertTrue(output.isCompleted(FIRST));
+        assertTrue(output.isProcessed(SECOND));
+        assertFalse(output.isCompleted(SECOND));
+        assertNull(output.getError(SECOND));
+        assertFalse(output.isProcessed(THIRD));
+        assertFalse(output.isCompleted(THIRD));
+        assertTrue(output.getLines(THIRD).isEmpty());
+    }
+
+    /**
+     * Output of a process killed before it processed any image completes
+     * nothing.
+     */
+    @Test
+    public void parsesBatchCutOffBeforeFirstImage() {
+        final OptipngOutput output = OptipngOutput.parse(BATCH.subList(0, 2));
+        assertFalse(output.isProcessed(FIRST));
+        assertFalse(output.isCompleted(FIRST));
+        assertTrue(output.getLines(FIRST).isEmpty());
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link PixelReader}, comparing generated RGB images, interlaced
+ * and not, and rejecting images which are damaged after their last row.
+ */
+public class PixelReaderTest {
+    /**
+     * Width of the images, not a multiple of the Adam7 column steps.
+     */
+    private static final int WIDTH = 13;
+
+    /**
+     * Height of the images, not a multiple of the Adam7 row steps.
+     */
+    private static final int HEIGHT = 11;
+
+    /**
+     * Directory for the images.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Identical images have the same pixels, and a single changed pixel is
+     * detected.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void comparesPixels() throws IOException {
+        final int[] pixels = pixels();
+        final File image = write(image(WIDTH, HEIGHT, pixels, false));
+        assertTrue(PixelReader.samePixels(image, write(image(WIDTH, HEIGHT,
+            pixels, false))));
+
+        final int[] changed = pixels.clone();
+        changed[changed.length - 1] ^= 1;
+        assertFalse(PixelReader.samePixels(image, write(image(WIDTH, HEIGHT,
+            changed, false))));
+    }
+
+    /**
+     * Interlaced images are compared with interlaced and progressive images
+     * alike, in either order, also when some passes are empty.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void comparesAcrossInterlacing() throws IOException {
+        final int[] pixels = pixels();
+        final File plain = write(image(WIDTH, HEIGHT, pixels, false));
+        final File interlaced = write(image(WIDTH, HEIGHT, pixels, true));
+        assertTrue(PixelReader.samePixels(interlaced, write(image(WIDTH,
+            HEIGHT, pixels, true))));
+        assertTrue(PixelReader.samePixels(plain, interlaced));
+        assertTrue(PixelReader.samePixels(interlaced, plain));
+
+        for (int i : new int[] {0, WIDTH + 1, pixels.length - 1}) {
+            final int[] changed = pixels.clone();
+            changed[i] ^= 0x010000;
+            final File other = write(image(WIDTH, HEIGHT, changed, false));
+            assertFalse(PixelReader.samePixels(interlaced, other));
+            assertFalse(PixelReader.samePixels(other, interlaced));
+        }
+
+        final int[] tiny = {0x102030, 0x405060, 0x708090};
+        assertTrue(PixelReader.samePixels(write(image(3, 1, tiny, true)),
+            write(image(3, 1, tiny, false))));
+    }
+
+    /**
+     * An image cut off right after the data of its last row, before the
+     * zlib checksum, is rejected although all its rows decode.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void rejectsImageCutAfterLastRow() throws IOException {
+        final File image = write(image(WIDTH, HEIGHT, pixels(), false));
+        final byte[] content = Files.readAllBytes(image.toPath());
+        final int data = indexOf(content, PngChunk.IDAT) + 4;
+        final int length = readInt(content, data - 8);
+        final File truncated = folder.newFile();
+        Files.write(truncated.toPath(), Arrays.copyOf(content,
+            data + length - 4));
+        assertRejected(image, truncated);
+    }
+
+    /**
+     * An image whose zlib checksum does not match its image data is
+     * rejected.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void rejectsWrongChecksum() throws IOException {
+        final PngFile png = image(WIDTH, HEIGHT, pixels(), false);
+        final byte[] data = png.getImageData();
+        data[data.length - 1] ^= 1;
+        assertRejected(write(png), write(png.withImageData(data)));
+    }
+
+    /**
+     * An image whose image data holds more rows than its header declares is
+     * rejected.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void rejectsExcessImageData() throws IOException {
+        final PngFile png = image(WIDTH, HEIGHT, pixels(), false);
+        final byte[] raw = pack(WIDTH, HEIGHT, pixels(), false);
+        final byte[] excess = Arrays.copyOf(raw, raw.length + 1 + WIDTH * 3);
+        assertRejected(write(png), write(png.withImageData(
+            compress(excess))));
+    }
+
+    /**
+     * An image lacking its end chunk is rejected.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void rejectsMissingEndChunk() throws IOException {
+        final PngFile png = image(WIDTH, HEIGHT, pixels(), false);
+        final List<PngChunk> chunks = new ArrayList<PngChunk>(
+            png.getChunks());
+        chunks.remove(chunks.size() - 1);
+        assertRejected(write(png), write(new PngFile(chunks)));
+    }
+
+    /**
+     * An image with a corrupt chunk following its image data is rejected.
+     *
+     * @throws IOException in case the test failed
+     */
+    @Test
+    public void rejectsCorruptChunkAfterImageData() throws IOException {
+        final PngFile png = image(WIDTH, HEIGHT, pixels(), false);
+        final List<PngChunk> chunks = new ArrayList<PngChunk>(
+            png.getChunks());
+        chunks.add(chunks.size() - 1, new PngChunk("tEXt",
+            "Comment\0trailing".getBytes(StandardCharsets.US_ASCII)));
+        final File image = write(new PngFile(chunks));
+        assertTrue(PixelReader.samePixels(write(png), image));
+
+        final byte[] content = Files.readAllBytes(image.toPath());
+        content[indexOf(content, "trailing")] ^= 1;
+        Files.write(image.toPath(), content);
+        assertRejected(write(png), image);
+    }
+
+    /**
+     * Checks that comparing an image with a damaged copy fails in either
+     * order.
+     *
+     * @param image intact image
+     * @param damaged damaged copy
+     * @throws IOException in case the intact image could not be read
+     */
+    private static void assertRejected(final File image, final File damaged)
+            throws IOException {
+        assertTrue(PixelReader.samePixels(image, image));
+        for (File[] pair : new File[][] {{image, damaged},
+                {damaged, image}}) {
+            try {
+                PixelReader.samePixels(pair[0], pair[1]);
+                fail("damaged image accepted");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * @return pixels of a gradient image
+     */
+    private static int[] pixels() {
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixels[y * WIDTH + x] = x * 19 << 16 | y * 23 << 8
+                    | (x ^ y) * 11;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Creates an 8-bit RGB image.
+     *
+     * @param width width in pixels
+     * @param height height in pixels
+     * @param pixels RGB value of each pixel in image order
+     * @param interlaced whether to interlace the image
+     * @return image
+     * @throws IOException in case compressing failed
+     */
+    private static PngFile image(final int width, final int height,
+            final int[] pixels, final boolean interlaced) throws IOException {
+        return new PngFile(Arrays.asList(new ImageHeader(width, height, 8,
+            ImageHeader.RGB, interlaced ? 1 : 0).toChunk(),
+            new PngChunk(PngChunk.IDAT, compress(pack(width, height, pixels,
+            interlaced))), new PngChunk(PngChunk.IEND, new byte[0])));
+    }
+
+    /**
+     * Packs pixels into unfiltered image data, pass by pass for interlaced
+     * images.
+     *
+     * @param width width in pixels
+     * @param height height in pixels
+     * @param pixels RGB value of each pixel in image order
+     * @param interlaced whether to interlace the image
+     * @return image data with filter type none
+     */
+    private static byte[] pack(final int width, final int height,
+            final int[] pixels, final boolean interlaced) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int passes = interlaced ? ImageHeader.ADAM7_ROW_STEP.length : 1;
+        for (int pass = 0; pass < passes; pass++) {
+            final int columnStart = interlaced
+                ? ImageHeader.ADAM7_COLUMN_START[pass] : 0;
+            final int columnStep = interlaced
+                ? ImageHeader.ADAM7_COLUMN_STEP[pass] : 1;
+            if (columnStart >= width) {
+                continue;
+            }
+            for (int y = interlaced ? ImageHeader.ADAM7_ROW_START[pass] : 0;
+                    y < height; y += interlaced
+                    ? ImageHeader.ADAM7_ROW_STEP[pass] : 1) {
+                out.write(PngFilters.NONE);
+                for (int x = columnStart; x < width; x += columnStep) {
+                    final int pixel = pixels[y * width + x];
+                    out.write(pixel >>> 16);
+                    out.write(pixel >>> 8);
+                    out.write(pixel);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses data in zlib format.
+     *
+     * @param data data to compress
+     * @return compressed data
+     * @throws IOException in case compressing failed
+     */
+    private static byte[] compress(final byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes an image to a temporary file.
+     *
+     * @param png image to write
+     * @return file
+     * @throws IOException in case writing failed
+     */
+    private File write(final PngFile png) throws IOException {
+        final File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            png.write(out);
+        }
+        return file;
+    }
+
+    /**
+     * Finds the first occurrence of an ASCII string in a byte array.
+     *
+     * @param content bytes to search
+     * @param text string to find
+     * @return index of the first occurrence, -1 if there is none
+     */
+    private static int indexOf(final byte[] content, final String text) {
+        final byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i + bytes.length <= content.length; i++) {
+            if (Arrays.equals(bytes, Arrays.copyOfRange(content, i,
+                    i + bytes.length))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a big-endian int.
+     *
+     * @param content bytes to read from
+     * @param offset offset of the int
+     * @return int read
+     */
+    private static int readInt(final byte[] content, final int offset) {
+        return (content[offset] & 0xff) << 24
+            | (content[offset + 1] & 0xff) << 16
+            | (content[offset + 2] & 0xff) << 8 | content[offset + 3] & 0xff;
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright 2011 Niklas Schmidtmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kabambo.maven.optipng;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link StreamingRecompressor}. Recompressed image data is
+ * decoded by the JDK's {@link Inflater} and unfiltered independently of the
+ * engine, and must reproduce the rows of the input.
+ */
+public class StreamingRecompressorTest {
+    /**
+     * Size of the image data chunks of the input.
+     */
+    private static final int INPUT_CHUNK_SIZE = 100;
+
+    /**
+     * Deadline far enough in the future not to pass during a test.
+     */
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Directory for the images.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Pool without idle capacity, so that every buffer is fresh.
+     */
+    private final BufferPool pool = new BufferPool(0);
+
+    /**
+     * Rows of an RGB image survive recompression, which shrinks the image
+     * and keeps all other chunks in place.
+     *
+     * @throws Exception in case the test failed
+     */
+    @Test
+    public void recompressesRows() throws Exception {
+        assertRoundTrip(new ImageHeader(61, 37, 8, ImageHeader.RGB, 0), 2);
+    }
+
+    /**
+     * Rows of the passes of an interlaced 16-bit image survive
+     * recompression with more trials than are counted in one pass.
+     *
+     * @throws Exception in case the test failed
+     */
+    @Test
+    public void recompressesInterlacedRowsInBatches() throws Exception {
+        assertTrue(TrialMatrix.forLevel(7).size()
+            > StreamingRecompressor.MAX_LIVE_TRIALS);
+        assertRoundTrip(new ImageHeader(23, 19, 16, ImageHeader.RGBA, 1), 7);
+    }
+
+    /**
+     * An image no trial shrinks is left as is.
+     *
+     * @throws Exception in case the test failed
+     */
+    @Test
+    public void keepsImageWithoutSmallerTrial() throws Exception {
+        final ImageHeader header = new ImageHeader(61, 37, 8,
+            ImageHeader.RGB, 0);
+        final File file = write(image(header, Deflater.BEST_COMPRESSION));
+        final byte[] before = Files.readAllBytes(file.toPath());
+        StreamingRecompressor.recompress(file, Collections.singletonList(
+            new TrialMatrix.Trial(PngFilters.NONE, Deflater.NO_COMPRESSION,
+            Deflater.DEFAULT_STRATEGY)), pool, NO_DEADLINE);
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Nothing is written once the deadline passed.
+     *
+     * @throws Exception in case the test failed
+     */
+    @Test
+    public void givesUpAfterDeadline() throws Exception {
+        final File file = write(image(new ImageHeader(61, 37, 8,
+            ImageHeader.RGB, 0), Deflater.BEST_SPEED));
+        final byte[] before = Files.readAllBytes(file.toPath());
+        try {
+            StreamingRecompressor.recompress(file, TrialMatrix.forLevel(2),
+                pool, 0);
+            fail("deadline ignored");
+        } catch (JavaPngEngine.TimeoutException e) {
+            // expected
+        }
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * A truncated image is rejected and left as is.
+     *
+     * @throws Exception in case the test failed
+     */
+    @Test
+    public void rejectsTruncatedImage() throws Exception {
+        final File file = write(image(new ImageHeader(61, 37, 8,
+            ImageHeader.RGB, 0), Deflater.BEST_SPEED));
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final byte[] truncated = Arrays.copyOf(content, content.length / 2);
+        Files.write(file.toPath(), truncated);
+        try {
+            StreamingRecompressor.recompress(file, TrialMatrix.forLevel(2),
+                pool, NO_DEADLINE);
+            fail("truncated image accepted");
+        } catch (IOException e) {
+            // expected
+        }
+        assertArrayEquals(truncated, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Recompresses a generated image and checks the result.
+     *
+     * @param header header of the image
+     * @param level optimization level
+     * @throws Exception in case the test failed
+     */
+    private void assertRoundTrip(final ImageHeader header, final int level)
+            throws Exception {
+        final PngFile input = image(header, Deflater.BEST_SPEED);
+        final File file = write(input);
+        final long size = file.length();
+        StreamingRecompressor.recompress(file, TrialMatrix.forLevel(level),
+            pool, NO_DEADLINE);
+        assertTrue("not recompressed", file.length() < size);
+
+        final PngFile output;
+        try (InputStream in = new FileInputStream(file)) {
+            output = PngFile.read(in);
+        }
+        assertEquals(otherChunks(input), otherChunks(output));
+        assertConsecutiveImageData(output);
+
+        final byte[] filtered = inflate(output.getImageData(),
+            (int) header.getRawSize());
+        final byte[] expected = rows(header);
+        int offset = 0;
+        for (int[] pass : header.getPasses()) {
+            byte[] prior = new byte[pass[0]];
+            for (int y = 0; y < pass[1]; y++) {
+                final byte[] row = Arrays.copyOfRange(filtered, offset + 1,
+                    offset + 1 + pass[0]);
+                unfilter(filtered[offset], row, prior,
+                    header.getFilterUnit());
+                assertArrayEquals("row at " + offset,
+                    Arrays.copyOfRange(expected, offset + 1,
+                    offset + 1 + pass[0]), row);
+                prior = row;
+                offset += pass[0] + 1;
+            }
+        }
+    }
+
+    /**
+     * Creates an image with text before and after its image data, which is
+     * unfiltered and split into several chunks.
+     *
+     * @param header image header
+     * @param level deflate level of the image data
+     * @return image
+     * @throws IOException in case compressing failed
+     */
+    private static PngFile image(final ImageHeader header, final int level)
+            throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed,
+                new Deflater(level))) {
+            out.write(rows(header));
+        }
+        final byte[] data = compressed.toByteArray();
+
+        final List<PngChunk> chunks = new ArrayList<PngChunk>();
+        chunks.add(header.toChunk());
+        chunks.add(new PngChunk("tEXt", "Title\0Gradient".getBytes(
+            StandardCharsets.US_ASCII)));
+        for (int i = 0; i < data.length; i += INPUT_CHUNK_SIZE) {
+            chunks.add(new PngChunk(PngChunk.IDAT, Arrays.copyOfRange(data,
+                i, Math.min(i + INPUT_CHUNK_SIZE, data.length))));
+        }
+        chunks.add(new PngChunk("tEXt", "Comment\0After the image data"
+            .getBytes(StandardCharsets.US_ASCII)));
+        chunks.add(new PngChunk(PngChunk.IEND, new byte[0]));
+        return new PngFile(chunks);
+    }
+
+    /**
+     * Generates the unfiltered rows of an image, pass by pass for
+     * interlaced images, each preceded by filter type none.
+     *
+     * @param header image header
+     * @return image data before compression
+     */
+    private static byte[] rows(final ImageHeader header) {
+        final byte[] raw = new byte[(int) header.getRawSize()];
+        int offset = 0;
+        for (int[] pass : header.getPasses()) {
+            for (int y = 0; y < pass[1]; y++) {
+                raw[offset++] = PngFilters.NONE;
+                for (int x = 0; x < pass[0]; x++) {
+                    raw[offset++] = (byte) (x * 3 + y * 5 + x * y % 7);
+                }
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Reverses a PNG filter, independently of {@link PngFilters}.
+     *
+     * @param type filter type
+     * @param row filtered row, unfiltered in place
+     * @param prior unfiltered previous row, all zero for the first row
+     * @param unit bytes per complete pixel
+     */
+    private static void unfilter(final int type, final byte[] row,
+            final byte[] prior, final int unit) {
+        for (int i = 0; i < row.length; i++) {
+            final int a = i >= unit ? row[i - unit] & 0xff : 0;
+            final int b = prior[i] & 0xff;
+            final int c = i >= unit ? prior[i - unit] & 0xff : 0;
+            switch (type) {
+            case PngFilters.NONE:
+                break;
+            case PngFilters.SUB:
+                row[i] += a;
+                break;
+            case PngFilters.UP:
+                row[i] += b;
+                break;
+            case PngFilters.AVERAGE:
+                row[i] += (a + b) / 2;
+                break;
+            case PngFilters.PAETH:
+                final int p = a + b - c;
+                final int pa = Math.abs(p - a);
+                final int pb = Math.abs(p - b);
+                final int pc = Math.abs(p - c);
+                row[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                break;
+            default:
+                fail("invalid filter type " + type);
+            }
+        }
+    }
+
+    /**
+     * Inflates a zlib stream, which must decode to exactly the expected
+     * length.
+     *
+     * @param data zlib stream
+     * @param length expected length of the inflated data
+     * @return inflated data
+     * @throws DataFormatException in case the stream is malformed
+     */
+    private static byte[] inflate(final byte[] data, final int length)
+            throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final byte[] inflated = new byte[length + 1];
+            int size = 0;
+            while (!inflater.finished() && size < inflated.length) {
+                final int read = inflater.inflate(inflated, size,
+                    inflated.length - size);
+                if (read == 0 && (inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                size += read;
+            }
+            assertTrue("stream not finished", inflater.finished());
+            assertEquals("trailing bytes", 0, inflater.getRemaining());
+            assertEquals("inflated length", length, size);
+            return Arrays.copyOf(inflated, length);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Describes all chunks but the image data.
+     *
+     * @param png image
+     * @return type and content of each chunk in order
+     */
+    private static List<String> otherChunks(final PngFile png) {
+        final List<String> chunks = new ArrayList<String>();
+        for (PngChunk chunk : png.getChunks()) {
+            if (!PngChunk.IDAT.equals(chunk.getType())) {
+                chunks.add(chunk.getType() + Arrays.toString(
+                    chunk.getData()));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Checks that the image data chunks of an image are consecutive and
+     * stand where the input's did, after the first text chunk.
+     *
+     * @param png image
+     */
+    private static void assertConsecutiveImageData(final PngFile png) {
+        final List<PngChunk> chunks = png.getChunks();
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < chunks.size(); i++) {
+            if (PngChunk.IDAT.equals(chunks.get(i).getType())) {
+                first = first < 0 ? i : first;
+                last = i;
+            }
+        }
+        assertEquals(2, first);
+        for (int i = first; i <= last; i++) {
+            assertEquals(PngChunk.IDAT, chunks.get(i).getType());
+        }
+    }
+
+    /**
+     * Writes an image to a temporary file.
+     *
+     * @param png image to write
+     * @return file
+     * @throws IOException in case writing failed
+     */
+    private File write(final PngFile png) throws IOException {
+        final File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            png.write(out);
+        }
+        return file;
+    }
+}